@@ -0,0 +1,107 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Proxy.isBlocked on every request, against the console rules and an
+ * imported hosts file of the given number of domains. Console rules are typed
+ * by hand, so they stop at 10000 whatever the size of the imported list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch" })
+public class BlocklistBenchmark {
+
+	private static final MethodHandle IS_BLOCKED = ProxyClasses.method("Proxy", "isBlocked", String.class);
+	private static final MethodHandle RULES = ProxyClasses.method("Blocklist", "of", Collection.class);
+	private static final MethodHandle IMPORT = ProxyClasses.method("ImportedBlocklist", "load", List.class);
+
+	private static final int URLS = 1024;
+
+	@Param({ "100", "10000", "1000000" })
+	public int size;
+
+	private final String[] blocked = new String[URLS];
+	private final String[] allowed = new String[URLS];
+	private File hostsFile;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		Random random = new Random(42);
+		List<String> rules = new ArrayList<>();
+		List<String> domains = new ArrayList<>();
+		hostsFile = File.createTempFile("blocklist", ".hosts");
+		try (BufferedWriter writer = Files.newBufferedWriter(hostsFile.toPath(), StandardCharsets.UTF_8)) {
+			for (int i = 0; i < size; i++) {
+				String domain = domain(random, i);
+				writer.write("0.0.0.0 ");
+				writer.write(domain);
+				writer.newLine();
+				if (i < URLS) {
+					domains.add(domain);
+				}
+				if (i < 10000) {
+					rules.add("*." + domain(random, i) + "/ads");
+				}
+			}
+		}
+		ProxyClasses.setStatic("Proxy", "blocklist", (Object) RULES.invokeExact((Object) rules));
+		ProxyClasses.setStatic("Proxy", "importedSites", (Object) IMPORT.invokeExact((Object) List.of(hostsFile)));
+
+		for (int i = 0; i < URLS; i++) {
+			blocked[i] = "http://" + domains.get(i % domains.size()) + "/index.html";
+			allowed[i] = "http://www." + Integer.toHexString(random.nextInt()) + ".example.org/index.html";
+		}
+	}
+
+	private static String domain(Random random, int i) {
+		return Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + i + ".example.com";
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(hostsFile.toPath());
+	}
+
+	@Benchmark
+	public boolean blocked(Cursor cursor) throws Throwable {
+		return (boolean) IS_BLOCKED.invokeExact((Object) blocked[cursor.next++ & (URLS - 1)]);
+	}
+
+	@Benchmark
+	public boolean allowed(Cursor cursor) throws Throwable {
+		return (boolean) IS_BLOCKED.invokeExact((Object) allowed[cursor.next++ & (URLS - 1)]);
+	}
+}
@@ -0,0 +1,108 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CacheIndex get and put from several handler threads at once. The keys are
+ * skewed toward the first URLs, as browsing is, and there are twice as many as
+ * the budget holds, so writers evict while readers hit.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch" })
+public class CacheIndexBenchmark {
+
+	private static final MethodHandle NEW_INDEX = ProxyClasses.constructor("CacheIndex", long.class,
+			BiConsumer.class);
+	private static final MethodHandle GET = ProxyClasses.method("CacheIndex", "get", String.class);
+	private static final MethodHandle PUT = ProxyClasses.method("CacheIndex", "put", String.class,
+			ProxyClasses.type("CachedResponse"));
+	private static final MethodHandle NEW_RESPONSE = ProxyClasses.constructor("CachedResponse", String.class,
+			long.class, ProxyClasses.type("HttpHeaders"), long.class, long.class);
+	private static final MethodHandle READ_HEADERS = ProxyClasses.method("HttpHeaders", "read",
+			java.io.InputStream.class);
+
+	private static final int KEYS = 16384;
+	private static final long BODY_SIZE = 16 * 1024;
+	// Index of the URL of each access, skewed toward the first ones
+	private static final int ACCESSES = 1 << 16;
+
+	private final String[] urls = new String[KEYS];
+	private final Object[] responses = new Object[KEYS];
+	private final int[] accesses = new int[ACCESSES];
+	private Object index;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+
+		@Setup
+		public void setup() {
+			// Threads start apart in the access sequence
+			next = (int) (Thread.currentThread().getId() * 7919);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		Random random = new Random(42);
+		byte[] head = ("Content-Type: text/html\r\nCache-Control: max-age=3600\r\nETag: \"abc\"\r\n\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+		Object headers = (Object) READ_HEADERS.invokeExact((Object) new ByteArrayInputStream(head));
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < KEYS; i++) {
+			urls[i] = "http://host" + (i % 97) + ".example.com/page/" + i;
+			responses[i] = (Object) NEW_RESPONSE.invokeExact((Object) Integer.toHexString(random.nextInt()),
+					BODY_SIZE, headers, now, now);
+		}
+		for (int i = 0; i < ACCESSES; i++) {
+			double skew = random.nextDouble();
+			accesses[i] = (int) (skew * skew * skew * KEYS);
+		}
+
+		BiConsumer<Object, Object> onRemoval = (url, response) -> {
+		};
+		index = (Object) NEW_INDEX.invokeExact(KEYS / 2 * BODY_SIZE, (Object) onRemoval);
+		for (int i = 0; i < KEYS; i++) {
+			PUT.invokeExact(index, (Object) urls[i], responses[i]);
+		}
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public Object get(Cursor cursor) throws Throwable {
+		int key = accesses[cursor.next++ & (ACCESSES - 1)];
+		return (Object) GET.invokeExact(index, (Object) urls[key]);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void put(Cursor cursor) throws Throwable {
+		int key = accesses[cursor.next++ & (ACCESSES - 1)];
+		PUT.invokeExact(index, (Object) urls[key], responses[key]);
+	}
+}
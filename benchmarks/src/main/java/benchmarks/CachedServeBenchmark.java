@@ -0,0 +1,115 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A cache hit served by RequestHandler.sendCachedPageToClient: the head
+ * written through the client stream, then the body sent from its segment file
+ * to a loopback client reading as fast as it can.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch" })
+public class CachedServeBenchmark {
+
+	private static final MethodHandle NEW_STORE = ProxyClasses.constructor("SegmentStore", File.class, long.class,
+			double.class, long.class);
+	private static final MethodHandle STORE_PUT = ProxyClasses.method("SegmentStore", "put", File.class);
+	private static final MethodHandle STORE_CLOSE = ProxyClasses.method("SegmentStore", "close");
+	private static final MethodHandle NEW_RESPONSE = ProxyClasses.constructor("CachedResponse", String.class,
+			long.class, ProxyClasses.type("HttpHeaders"), long.class, long.class);
+	private static final MethodHandle READ_HEADERS = ProxyClasses.method("HttpHeaders", "read",
+			java.io.InputStream.class);
+	private static final MethodHandle NEW_HANDLER = ProxyClasses.constructor("RequestHandler", Socket.class,
+			ProxyClasses.type("CertHandler"), int.class);
+	private static final MethodHandle SEND_CACHED = ProxyClasses.method("RequestHandler", "sendCachedPageToClient",
+			ProxyClasses.type("CachedResponse"), ProxyClasses.type("HttpHeaders"), boolean.class);
+
+	@Param({ "1024", "65536", "1048576" })
+	public int bodySize;
+
+	private Path directory;
+	private Object store;
+	private Object cached;
+	private Object requestHeaders;
+	private SocketChannel[] connection;
+	private Object handler;
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		directory = Files.createTempDirectory("cached-serve");
+		File body = directory.resolve("body").toFile();
+		byte[] bytes = new byte[bodySize];
+		new Random(42).nextBytes(bytes);
+		try (RandomAccessFile file = new RandomAccessFile(body, "rw")) {
+			file.write(bytes);
+		}
+		store = (Object) NEW_STORE.invokeExact((Object) directory.resolve("store").toFile(), 64L << 20, 0.5,
+				3600_000L);
+		String hash = (String) (Object) STORE_PUT.invokeExact(store, (Object) body);
+		ProxyClasses.setStatic("Proxy", "store", store);
+
+		byte[] head = ("Content-Type: application/octet-stream\r\nCache-Control: max-age=3600\r\n"
+				+ "ETag: \"5e1a-61b2c3d4e5f60\"\r\nLast-Modified: Tue, 11 Jun 2024 08:15:00 GMT\r\n\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+		Object headers = (Object) READ_HEADERS.invokeExact((Object) new ByteArrayInputStream(head));
+		long now = System.currentTimeMillis();
+		requestHeaders = (Object) READ_HEADERS.invokeExact((Object) new ByteArrayInputStream(
+				"Accept-Encoding: gzip, deflate, br\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+		cached = (Object) NEW_RESPONSE.invokeExact((Object) hash, (long) bodySize, headers, now, now);
+
+		// connection[0] is the client, connection[1] the proxy side given to the handler
+		connection = Loopback.pair();
+		Loopback.drain(connection[0]);
+		handler = (Object) NEW_HANDLER.invokeExact((Object) connection[1].socket(), (Object) null, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Throwable {
+		connection[1].close();
+		connection[0].close();
+		STORE_CLOSE.invokeExact(store);
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public boolean serve() throws Throwable {
+		boolean keepAlive = (boolean) SEND_CACHED.invokeExact(handler, cached, requestHeaders, true);
+		if (!keepAlive) {
+			throw new IOException("Cached response could not be sent");
+		}
+		return keepAlive;
+	}
+}
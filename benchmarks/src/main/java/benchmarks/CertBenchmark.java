@@ -0,0 +1,121 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Certificates of intercepted hosts: CertHandler.genCert for a host already
+ * in memory, minting the certificate of a new host, and loading the contexts
+ * of known hosts from the certificate store after a restart. The CA and the
+ * store live in a temporary directory, never in the CAROOT of the user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch" })
+public class CertBenchmark {
+
+	private static final Path DIRECTORY;
+	private static final File STORE;
+
+	static {
+		// ProxyConfig reads the store location once, before any handle below loads it
+		try {
+			DIRECTORY = Files.createTempDirectory("cert-bench");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		STORE = DIRECTORY.resolve("certs.p12").toFile();
+		System.setProperty("proxy.certStore", STORE.getPath());
+		System.setProperty("proxy.certMint", "inprocess");
+	}
+
+	private static final Class<?> MINTER = ProxyClasses.type("CertCache$Minter");
+	private static final MethodHandle LOAD_CA = ProxyClasses.method("CertificateAuthority", "load", File.class);
+	private static final MethodHandle MINT = ProxyClasses.method("CertificateAuthority", "mint", String.class);
+	private static final MethodHandle NEW_HANDLER = ProxyClasses.constructor("CertHandler");
+	private static final MethodHandle GEN_CERT = ProxyClasses.method("CertHandler", "genCert", String.class);
+	private static final MethodHandle CERT_CACHE = ProxyClasses.method("CertHandler", "getCertCache");
+	private static final MethodHandle WRITE_STORE = ProxyClasses.method("CertCache", "writeStore");
+	private static final MethodHandle NEW_CACHE = ProxyClasses.constructor("CertCache", int.class, File.class,
+			char[].class, MINTER);
+	private static final MethodHandle CACHE_GET = ProxyClasses.method("CertCache", "get", String.class);
+
+	// Hosts in the store, as many as a browsing session intercepts
+	private static final int HOSTS = 100;
+
+	private Object authority;
+	private Object certHandler;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		authority = (Object) LOAD_CA.invokeExact((Object) DIRECTORY.resolve("ca").toFile());
+		ProxyClasses.setStatic("CertificateAuthority", "authority", authority);
+
+		certHandler = (Object) NEW_HANDLER.invokeExact();
+		for (int i = 0; i < HOSTS; i++) {
+			if ((Object) GEN_CERT.invokeExact(certHandler, (Object) host(i)) == null) {
+				throw new IllegalStateException("No certificate for " + host(i));
+			}
+		}
+		WRITE_STORE.invokeExact((Object) CERT_CACHE.invokeExact(certHandler));
+	}
+
+	private static String host(int i) {
+		return "host" + i + ".example.com";
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(DIRECTORY)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public Object genCertHit() throws Throwable {
+		return (Object) GEN_CERT.invokeExact(certHandler, (Object) host(next++ % HOSTS));
+	}
+
+	@Benchmark
+	public Object mint() throws Throwable {
+		return (Object) MINT.invokeExact(authority, (Object) ("mint" + next++ + ".example.com"));
+	}
+
+	/**
+	 * A new CertCache over the store, then the context of each host in it
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void loadStore(Blackhole bh) throws Throwable {
+		Object cache = (Object) NEW_CACHE.invokeExact(HOSTS, (Object) STORE, (Object) "changeit".toCharArray(),
+				(Object) null);
+		for (int i = 0; i < HOSTS; i++) {
+			bh.consume((Object) CACHE_GET.invokeExact(cache, (Object) host(i)));
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connected pairs of loopback sockets standing for the client and origin of
+ * the proxy.
+ */
+final class Loopback {
+
+	private Loopback() {
+	}
+
+	/**
+	 * @return two blocking channels connected to each other
+	 * @throws IOException if loopback cannot be bound
+	 */
+	static SocketChannel[] pair() throws IOException {
+		try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			SocketChannel connected = SocketChannel.open(listener.getLocalAddress());
+			SocketChannel accepted = listener.accept();
+			connected.socket().setTcpNoDelay(true);
+			accepted.socket().setTcpNoDelay(true);
+			return new SocketChannel[] { connected, accepted };
+		}
+	}
+
+	/**
+	 * Read and discard everything a channel receives on a daemon thread
+	 *
+	 * @param channel channel to drain
+	 * @return bytes received so far
+	 */
+	static AtomicLong drain(SocketChannel channel) {
+		AtomicLong received = new AtomicLong();
+		Thread thread = new Thread(() -> {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+			try {
+				int read;
+				while ((read = channel.read(buffer)) >= 0) {
+					received.addAndGet(read);
+					buffer.clear();
+				}
+			} catch (IOException e) {
+				// Closed by the benchmark tear down
+			}
+		}, "loopback-drain");
+		thread.setDaemon(true);
+		thread.start();
+		return received;
+	}
+
+	/**
+	 * Write a whole buffer, from its position to its limit
+	 */
+	static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Read exactly length bytes into a scratch buffer
+	 */
+	static void readFully(SocketChannel channel, ByteBuffer scratch, long length) throws IOException {
+		while (length > 0) {
+			scratch.clear();
+			if (scratch.capacity() > length) {
+				scratch.limit((int) length);
+			}
+			int read = channel.read(scratch);
+			if (read < 0) {
+				throw new IOException("Connection closed with " + length + " bytes to come");
+			}
+			length -= read;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the classes of the proxy from the benchmarks.
+ *
+ * The proxy lives in the default package, which cannot be imported, and JMH
+ * refuses benchmarks in it, so its classes are reached by name. The handles
+ * are erased: every reference type is Object, primitives stay as they are, so
+ * a benchmark calls them with invokeExact and casts the result. Kept in static
+ * final fields they are constants to the JIT and cost no more than a direct
+ * call.
+ */
+final class ProxyClasses {
+
+	private ProxyClasses() {
+	}
+
+	/**
+	 * @param name name of a class of the proxy
+	 * @return Class
+	 */
+	static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Proxy class " + name + " not on the classpath", e);
+		}
+	}
+
+	/**
+	 * Handle on a method, static or not, whatever its access. An instance method
+	 * takes its receiver as first argument.
+	 *
+	 * @param owner  class declaring the method
+	 * @param name   name of the method
+	 * @param params types of its parameters
+	 * @return erased MethodHandle
+	 */
+	static MethodHandle method(String owner, String name, Class<?>... params) {
+		try {
+			Method method = type(owner).getDeclaredMethod(name, params);
+			method.setAccessible(true);
+			return erase(MethodHandles.lookup().unreflect(method));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No method " + owner + "." + name, e);
+		}
+	}
+
+	/**
+	 * @param owner  class to create
+	 * @param params types of the parameters of the constructor
+	 * @return erased MethodHandle returning the new instance
+	 */
+	static MethodHandle constructor(String owner, Class<?>... params) {
+		try {
+			Constructor<?> constructor = type(owner).getDeclaredConstructor(params);
+			constructor.setAccessible(true);
+			return erase(MethodHandles.lookup().unreflectConstructor(constructor));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No constructor of " + owner, e);
+		}
+	}
+
+	/**
+	 * Replace a static field, to point the proxy at a state set up by a benchmark
+	 *
+	 * @param owner class declaring the field
+	 * @param name  name of the field
+	 * @param value new value
+	 */
+	static void setStatic(String owner, String name, Object value) {
+		try {
+			Field field = type(owner).getDeclaredField(name);
+			field.setAccessible(true);
+			field.set(null, value);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No field " + owner + "." + name, e);
+		}
+	}
+
+	private static MethodHandle erase(MethodHandle handle) {
+		return handle.asType(handle.type().erase());
+	}
+}
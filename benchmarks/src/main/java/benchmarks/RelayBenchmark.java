@@ -0,0 +1,116 @@
+package benchmarks;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One megabyte through an established CONNECT tunnel over loopback, from the
+ * client socket to the origin socket. "blocking" relays it with the copy loop
+ * of RequestHandler on a thread of its own, "nio" with the TunnelEngine. Each
+ * operation writes the megabyte on one side and returns once all of it was
+ * read on the other.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch" })
+public class RelayBenchmark {
+
+	private static final MethodHandle RELAY = ProxyClasses.method("RequestHandler", "relay", InputStream.class,
+			OutputStream.class, ProxyClasses.type("TimerWheel$Timeout"));
+	private static final MethodHandle ENGINE = ProxyClasses.method("TunnelEngine", "get");
+	private static final MethodHandle REGISTER = ProxyClasses.method("TunnelEngine", "register",
+			SocketChannel.class, SocketChannel.class);
+
+	private static final int SIZE = 1 << 20;
+
+	@Param({ "blocking", "nio" })
+	public String mode;
+
+	private SocketChannel client;
+	private SocketChannel origin;
+	private SocketChannel[] proxySide = new SocketChannel[2];
+	private ExecutorService threads;
+	private ByteBuffer payload;
+	private ByteBuffer scratch;
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		byte[] bytes = new byte[SIZE];
+		new Random(42).nextBytes(bytes);
+		payload = ByteBuffer.allocateDirect(SIZE);
+		payload.put(bytes);
+		scratch = ByteBuffer.allocateDirect(256 * 1024);
+		threads = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "relay-bench");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		SocketChannel[] clientLeg = Loopback.pair();
+		SocketChannel[] originLeg = Loopback.pair();
+		client = clientLeg[0];
+		proxySide[0] = clientLeg[1];
+		proxySide[1] = originLeg[0];
+		origin = originLeg[1];
+
+		if (mode.equals("nio")) {
+			REGISTER.invokeExact((Object) ENGINE.invokeExact(), (Object) proxySide[0], (Object) proxySide[1]);
+		} else {
+			InputStream in = proxySide[0].socket().getInputStream();
+			OutputStream out = proxySide[1].socket().getOutputStream();
+			threads.execute(() -> {
+				try {
+					RELAY.invokeExact((Object) in, (Object) out, (Object) null);
+				} catch (Throwable e) {
+					// Ends with the client connection on tear down
+				}
+			});
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		client.close();
+		origin.close();
+		if (mode.equals("blocking")) {
+			proxySide[0].close();
+			proxySide[1].close();
+		}
+		threads.shutdownNow();
+	}
+
+	@Benchmark
+	public void megabyte() throws Exception {
+		Future<?> sent = threads.submit(() -> {
+			Loopback.writeFully(client, payload.duplicate().clear());
+			return null;
+		});
+		Loopback.readFully(origin, scratch, SIZE);
+		sent.get();
+	}
+}
@@ -0,0 +1,100 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a request head as RequestHandler.run does, with the RequestHead
+ * parsing in place, against the line by line HttpHeaders reader it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch" })
+public class RequestParseBenchmark {
+
+	private static final MethodHandle NEW_HEAD = ProxyClasses.constructor("RequestHead", int.class);
+	private static final MethodHandle READ = ProxyClasses.method("RequestHead", "read", java.io.InputStream.class);
+	private static final MethodHandle PARSE = ProxyClasses.method("RequestHead", "parse");
+	private static final MethodHandle URL = ProxyClasses.method("RequestHead", "url");
+	private static final MethodHandle NEXT = ProxyClasses.method("RequestHead", "next");
+	private static final MethodHandle READ_LINE = ProxyClasses.method("HttpHeaders", "readLine",
+			java.io.InputStream.class);
+	private static final MethodHandle READ_HEADERS = ProxyClasses.method("HttpHeaders", "read",
+			java.io.InputStream.class);
+	private static final MethodHandle GET_HEADER = ProxyClasses.method("HttpHeaders", "get", String.class);
+
+	private static final String SMALL = "GET http://example.com/ HTTP/1.1\r\n"
+			+ "Host: example.com\r\n"
+			+ "\r\n";
+
+	private static final String BROWSER = "GET http://www.example.com/static/js/app.3f9c2e.js?v=20240611 HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:126.0) Gecko/20100101 Firefox/126.0\r\n"
+			+ "Accept: */*\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate, br, zstd\r\n"
+			+ "Referer: http://www.example.com/articles/2024/06/benchmarking-a-proxy\r\n"
+			+ "Cookie: session=6f1e0c3b9a2d4e8f; theme=dark; consent=1; _ga=GA1.2.1234567890.1718000000\r\n"
+			+ "Proxy-Connection: keep-alive\r\n"
+			+ "Sec-Fetch-Dest: script\r\n"
+			+ "Sec-Fetch-Mode: no-cors\r\n"
+			+ "Sec-Fetch-Site: same-origin\r\n"
+			+ "If-None-Match: \"5e1a-61b2c3d4e5f60\"\r\n"
+			+ "If-Modified-Since: Tue, 11 Jun 2024 08:15:00 GMT\r\n"
+			+ "\r\n";
+
+	@Param({ "small", "browser" })
+	public String request;
+
+	private ByteArrayInputStream in;
+	private Object head;
+
+	@Setup
+	public void setup() throws Throwable {
+		in = new ByteArrayInputStream((request.equals("small") ? SMALL : BROWSER).getBytes(StandardCharsets.ISO_8859_1));
+		head = (Object) NEW_HEAD.invokeExact(64 * 1024);
+	}
+
+	@Benchmark
+	public void requestHead(Blackhole bh) throws Throwable {
+		in.reset();
+		int read = (int) READ.invokeExact(head, (Object) in);
+		bh.consume(read);
+		bh.consume((boolean) PARSE.invokeExact(head));
+		bh.consume((Object) URL.invokeExact(head));
+		NEXT.invokeExact(head);
+	}
+
+	@Benchmark
+	public void lineReader(Blackhole bh) throws Throwable {
+		in.reset();
+		String line = (String) (Object) READ_LINE.invokeExact((Object) in);
+		Object headers = (Object) READ_HEADERS.invokeExact((Object) in);
+		// Request line split and URL built as the handler used to
+		String[] parts = line.split(" ");
+		String url = parts[1];
+		if (!url.startsWith("http")) {
+			url = "http://" + (String) (Object) GET_HEADER.invokeExact(headers, (Object) "Host") + url;
+		}
+		bh.consume(parts[0]);
+		bh.consume(url);
+	}
+}
@@ -0,0 +1,303 @@
+package loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * One client thread, sending requests through the proxy one after the other
+ * until told to stop.
+ *
+ * A GET goes to the HTTP origin as a proxy request, on a connection kept for
+ * a number of requests. A CONNECT opens a new connection, tunnels TLS to the
+ * TLS origin and downloads, or uploads to the echo, one object over it. The
+ * latency of an operation includes the connection it opened.
+ */
+final class Client implements Runnable {
+
+	/**
+	 * What the thread measured, read once it has ended
+	 */
+	static final class Stats {
+		final LatencyHistogram getLatency = new LatencyHistogram();
+		final LatencyHistogram connectLatency = new LatencyHistogram();
+		long connections;
+		long bytes;
+		long errors;
+
+		void add(Stats other) {
+			getLatency.add(other.getLatency);
+			connectLatency.add(other.connectLatency);
+			connections += other.connections;
+			bytes += other.bytes;
+			errors += other.errors;
+		}
+	}
+
+	private final LoadTest.Options options;
+	private final int proxyPort;
+	private final int httpPort;
+	private final int tlsPort;
+	private final SSLSocketFactory tls;
+	private final Random random;
+	private final byte[] upload;
+
+	private volatile boolean stopped;
+	private volatile Stats stats = new Stats();
+
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	private int sentOnConnection;
+
+	Client(LoadTest.Options options, int proxyPort, int httpPort, int tlsPort, SSLSocketFactory tls, long seed) {
+		this.options = options;
+		this.proxyPort = proxyPort;
+		this.httpPort = httpPort;
+		this.tlsPort = tlsPort;
+		this.tls = tls;
+		this.random = new Random(seed);
+		this.upload = new byte[options.upload];
+	}
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			boolean tunnel = random.nextDouble() < options.connectShare;
+			int size = options.sizes[random.nextInt(options.sizes.length)];
+			// Skewed toward the first objects, as browsing is
+			double skew = random.nextDouble();
+			int object = (int) (skew * skew * skew * options.objects);
+			Stats current = stats;
+			long start = System.nanoTime();
+			try {
+				if (tunnel) {
+					current.bytes += tunnel(size, object, current);
+					current.connectLatency.record(System.nanoTime() - start);
+				} else {
+					current.bytes += get(size, object, current);
+					current.getLatency.record(System.nanoTime() - start);
+				}
+			} catch (IOException e) {
+				current.errors++;
+				close();
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Start measuring anew, what was measured so far is dropped
+	 */
+	void reset() {
+		stats = new Stats();
+	}
+
+	void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * @return what was measured since the last reset, once the thread ended
+	 */
+	Stats stats() {
+		return stats;
+	}
+
+	private long get(int size, int object, Stats current) throws IOException {
+		String target = "http://127.0.0.1:" + httpPort + "/object/" + size + "?n=" + object;
+		String request = "GET " + target + " HTTP/1.1\r\nHost: 127.0.0.1:" + httpPort + "\r\n\r\n";
+		boolean reused = socket != null;
+		if (!reused) {
+			connect(current);
+		}
+		try {
+			return exchange(request, current);
+		} catch (IOException e) {
+			if (!reused) {
+				throw e;
+			}
+			// The proxy closed the idle connection, try once on a new one
+			close();
+			connect(current);
+			return exchange(request, current);
+		}
+	}
+
+	private long exchange(String request, Stats current) throws IOException {
+		out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+		sentOnConnection++;
+		Response response = readResponse(in);
+		if (response.status != 200) {
+			throw new IOException("Status " + response.status + " for " + request);
+		}
+		if (response.close || sentOnConnection >= options.perConnection) {
+			close();
+		}
+		return response.length;
+	}
+
+	private void connect(Stats current) throws IOException {
+		socket = openProxyConnection();
+		current.connections++;
+		in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+		out = socket.getOutputStream();
+		sentOnConnection = 0;
+	}
+
+	private Socket openProxyConnection() throws IOException {
+		Socket connection = new Socket();
+		connection.setTcpNoDelay(true);
+		connection.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort), 5000);
+		connection.setSoTimeout(30000);
+		return connection;
+	}
+
+	private void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing left to do with it
+			}
+			socket = null;
+		}
+	}
+
+	private long tunnel(int size, int object, Stats current) throws IOException {
+		try (Socket connection = openProxyConnection()) {
+			current.connections++;
+			String authority = "127.0.0.1:" + tlsPort;
+			OutputStream tunnelOut = connection.getOutputStream();
+			tunnelOut.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1));
+			tunnelOut.flush();
+			InputStream tunnelIn = connection.getInputStream();
+			String status = readLine(tunnelIn);
+			while (!readLine(tunnelIn).isEmpty()) {
+				// Fields of the CONNECT response
+			}
+			if (!status.contains(" 200")) {
+				throw new IOException("CONNECT refused : " + status);
+			}
+
+			try (SSLSocket secure = (SSLSocket) tls.createSocket(connection, "localhost", tlsPort, true)) {
+				secure.startHandshake();
+				OutputStream secureOut = secure.getOutputStream();
+				if (upload.length > 0) {
+					secureOut.write(("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + upload.length
+							+ "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+					secureOut.write(upload);
+				} else {
+					secureOut.write(("GET /object/" + size + "?n=" + object
+							+ " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+							.getBytes(StandardCharsets.ISO_8859_1));
+				}
+				secureOut.flush();
+				Response response = readResponse(new BufferedInputStream(secure.getInputStream(), 64 * 1024));
+				if (response.status != 200) {
+					throw new IOException("Status " + response.status + " through the tunnel");
+				}
+				return response.length + upload.length;
+			}
+		}
+	}
+
+	private static final class Response {
+		int status;
+		long length;
+		boolean close;
+	}
+
+	/**
+	 * Read a response and skip its body, framed by its length, chunks or the
+	 * end of the connection
+	 */
+	private static Response readResponse(InputStream in) throws IOException {
+		Response response = new Response();
+		String statusLine = readLine(in);
+		String[] parts = statusLine.split(" ", 3);
+		if (parts.length < 2) {
+			throw new IOException("Malformed status line : " + statusLine);
+		}
+		response.status = Integer.parseInt(parts[1]);
+		response.close = statusLine.startsWith("HTTP/1.0");
+		long contentLength = -1;
+		boolean chunked = false;
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = line.substring(colon + 1).trim();
+			if (name.equals("content-length")) {
+				contentLength = Long.parseLong(value);
+			} else if (name.equals("transfer-encoding")) {
+				chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+			} else if (name.equals("connection")) {
+				response.close = value.equalsIgnoreCase("close");
+			}
+		}
+
+		if (chunked) {
+			long size;
+			while ((size = Long.parseLong(readLine(in).split(";")[0].trim(), 16)) > 0) {
+				skip(in, size);
+				readLine(in);
+				response.length += size;
+			}
+			while (!readLine(in).isEmpty()) {
+				// Trailer fields
+			}
+		} else if (contentLength >= 0) {
+			skip(in, contentLength);
+			response.length = contentLength;
+		} else {
+			response.length = in.transferTo(OutputStream.nullOutputStream());
+			response.close = true;
+		}
+		return response;
+	}
+
+	private static void skip(InputStream in, long length) throws IOException {
+		while (length > 0) {
+			long skipped = in.skip(length);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException(length + " bytes of the body missing");
+				}
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new EOFException("Connection closed in a response head");
+			}
+			if (c != '\r') {
+				line.write(c);
+			}
+		}
+		return line.toString(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,74 @@
+package loadtest;
+
+/**
+ * Latencies of one client thread, merged into the totals at the end of a run.
+ * Same layout as the histograms of the proxy metrics: 8 log-linear buckets per
+ * power of two, about 6% precision, quantiles read at the bucket midpoint.
+ */
+final class LatencyHistogram {
+	private static final int SUB_BUCKETS = 8;
+	private static final int BUCKETS = (64 - 3) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long max;
+
+	void record(long nanos) {
+		counts[bucket(Math.max(0, nanos))]++;
+		count++;
+		max = Math.max(max, nanos);
+	}
+
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		max = Math.max(max, other.max);
+	}
+
+	long count() {
+		return count;
+	}
+
+	long max() {
+		return max;
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return latency in nanoseconds, 0 when nothing was recorded
+	 */
+	long quantile(double quantile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return Math.min(max, (lowerBound(i) + lowerBound(i + 1)) / 2);
+			}
+		}
+		return max;
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, (exponent - 2) * SUB_BUCKETS + sub);
+	}
+
+	private static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + 2;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - 3);
+	}
+}
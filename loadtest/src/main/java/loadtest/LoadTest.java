@@ -0,0 +1,326 @@
+package loadtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * End to end load test of the proxy on loopback, with no network needed.
+ *
+ * Starts the proxy in its own JVM, a plain HTTP origin and a TLS origin, then
+ * clients sending GETs and CONNECTs through the proxy for a warmup and a
+ * measured period. Reports connections and requests per second, throughput,
+ * latency quantiles, the cache hit ratio and the peak memory and threads of
+ * the proxy. Results can be written to a file and compared with a previous
+ * one, e.g.
+ *
+ * java -jar loadtest/target/loadtest.jar --out=before.properties
+ * java -jar loadtest/target/loadtest.jar --jvm="-Dproxy.tunnel=nio" --baseline=before.properties
+ *
+ * Options, as --name=value:
+ * clients : client threads (64)
+ * duration, warmup : seconds measured, and run before measuring (30, 5)
+ * sizes : sizes of the objects requested, k and m suffixes allowed (1k,16k,256k)
+ * objects : distinct objects per size, fewer make more cache hits (1000)
+ * latency : milliseconds the origins wait before answering (10)
+ * connect : share of the operations made through a CONNECT tunnel (0.2)
+ * upload : bytes posted to the TLS echo instead of downloading, 0 for downloads (0)
+ * perConnection : GET requests sent on a client connection before closing it (10)
+ * jvm : JVM arguments of the proxy, e.g. "-Xmx512m -Dproxy.intercept=true"
+ * seed : seed of the clients' random choices (42)
+ * out : file the results are written to
+ * baseline : results of a previous run to compare with
+ * keep : keep the scratch directory of the proxy, with its log (false)
+ */
+public final class LoadTest {
+
+	/**
+	 * Parameters of a run
+	 */
+	static final class Options {
+		int clients = 64;
+		int duration = 30;
+		int warmup = 5;
+		int[] sizes = { 1024, 16 * 1024, 256 * 1024 };
+		int objects = 1000;
+		int latency = 10;
+		double connectShare = 0.2;
+		int upload = 0;
+		int perConnection = 10;
+		List<String> jvmArgs = new ArrayList<>();
+		long seed = 42;
+		File out;
+		File baseline;
+		boolean keep;
+
+		static Options parse(String[] args) {
+			Options options = new Options();
+			for (String arg : args) {
+				int equals = arg.indexOf('=');
+				if (!arg.startsWith("--") || equals < 0) {
+					throw new IllegalArgumentException("Expected --name=value, got " + arg);
+				}
+				String name = arg.substring(2, equals);
+				String value = arg.substring(equals + 1);
+				switch (name) {
+				case "clients":
+					options.clients = Integer.parseInt(value);
+					break;
+				case "duration":
+					options.duration = Integer.parseInt(value);
+					break;
+				case "warmup":
+					options.warmup = Integer.parseInt(value);
+					break;
+				case "sizes":
+					options.sizes = Arrays.stream(value.split(",")).mapToInt(LoadTest::parseSize).toArray();
+					break;
+				case "objects":
+					options.objects = Integer.parseInt(value);
+					break;
+				case "latency":
+					options.latency = Integer.parseInt(value);
+					break;
+				case "connect":
+					options.connectShare = Double.parseDouble(value);
+					break;
+				case "upload":
+					options.upload = parseSize(value);
+					break;
+				case "perConnection":
+					options.perConnection = Integer.parseInt(value);
+					break;
+				case "jvm":
+					options.jvmArgs = value.isBlank() ? new ArrayList<>() : Arrays.asList(value.trim().split("\\s+"));
+					break;
+				case "seed":
+					options.seed = Long.parseLong(value);
+					break;
+				case "out":
+					options.out = new File(value);
+					break;
+				case "baseline":
+					options.baseline = new File(value);
+					break;
+				case "keep":
+					options.keep = Boolean.parseBoolean(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option --" + name);
+				}
+			}
+			return options;
+		}
+	}
+
+	private LoadTest() {
+	}
+
+	static int parseSize(String size) {
+		String s = size.trim().toLowerCase(Locale.ROOT);
+		if (s.endsWith("k")) {
+			return Integer.parseInt(s.substring(0, s.length() - 1)) * 1024;
+		}
+		if (s.endsWith("m")) {
+			return Integer.parseInt(s.substring(0, s.length() - 1)) * 1024 * 1024;
+		}
+		return Integer.parseInt(s);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = Options.parse(args);
+		File directory = Files.createTempDirectory("loadtest").toFile();
+		int maxSize = Arrays.stream(options.sizes).max().orElse(0);
+
+		Origin http = new Origin(null, options.latency, maxSize);
+		Origin https = new Origin(Origin.createStores(directory), options.latency, maxSize);
+		ProxyProcess proxy = new ProxyProcess(directory, new File(directory, "truststore.p12"), options.jvmArgs);
+		Properties results;
+		try {
+			proxy.awaitListening(30000);
+			results = run(options, proxy, http.port(), https.port());
+		} finally {
+			proxy.stop();
+			http.stop();
+			https.stop();
+			if (options.keep) {
+				System.out.println("Proxy log and state kept in " + directory);
+			} else {
+				delete(directory.toPath());
+			}
+		}
+
+		if (options.out != null) {
+			try (OutputStream out = new FileOutputStream(options.out)) {
+				results.store(out, "LoadTest " + String.join(" ", args));
+			}
+		}
+		if (options.baseline != null) {
+			Properties baseline = new Properties();
+			try (InputStream in = new FileInputStream(options.baseline)) {
+				baseline.load(in);
+			}
+			System.out.println();
+			System.out.println(compare(baseline, results));
+		}
+	}
+
+	private static Properties run(Options options, ProxyProcess proxy, int httpPort, int tlsPort)
+			throws IOException, GeneralSecurityException, InterruptedException {
+		SSLContext tls = SSLContext.getInstance("TLS");
+		// The origin and the certificates minted by the proxy are only trusted on loopback, here
+		tls.init(null, new TrustManager[] { new TrustAll() }, null);
+
+		List<Client> clients = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < options.clients; i++) {
+			Client client = new Client(options, proxy.port(), httpPort, tlsPort, tls.getSocketFactory(),
+					options.seed + i);
+			Thread thread = new Thread(client, "client-" + i);
+			thread.setDaemon(true);
+			clients.add(client);
+			threads.add(thread);
+		}
+		System.out.printf("LoadTest %d clients, %d s after %d s of warmup, sizes %s, %d objects, %d ms origin latency, "
+				+ "%.0f%% CONNECT%n", options.clients, options.duration, options.warmup,
+				Arrays.toString(options.sizes), options.objects, options.latency, options.connectShare * 100);
+		threads.forEach(Thread::start);
+
+		TimeUnit.SECONDS.sleep(options.warmup);
+		clients.forEach(Client::reset);
+		proxy.resetPeaks();
+		Map<String, Double> before = proxy.metrics();
+		long start = System.nanoTime();
+
+		TimeUnit.SECONDS.sleep(options.duration);
+		clients.forEach(Client::stop);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Map<String, Double> after = proxy.metrics();
+		for (Thread thread : threads) {
+			thread.join(60000);
+		}
+
+		Client.Stats total = new Client.Stats();
+		clients.forEach(client -> total.add(client.stats()));
+		double hits = delta(before, after, "proxy_cache_hits_total") + delta(before, after, "proxy_cache_shared_fills_total")
+				+ delta(before, after, "proxy_cache_revalidations_total");
+		double served = hits + delta(before, after, "proxy_cache_misses_total");
+
+		Properties results = new Properties();
+		put(results, "connections_per_sec", total.connections / seconds);
+		put(results, "get_per_sec", total.getLatency.count() / seconds);
+		put(results, "connect_per_sec", total.connectLatency.count() / seconds);
+		put(results, "requests_per_sec", (total.getLatency.count() + total.connectLatency.count()) / seconds);
+		put(results, "throughput_mb_per_sec", total.bytes / seconds / (1024 * 1024));
+		putLatency(results, "get", total.getLatency);
+		putLatency(results, "connect", total.connectLatency);
+		put(results, "errors", total.errors);
+		put(results, "cache_hit_ratio", served == 0 ? 0 : hits / served);
+		put(results, "peak_rss_mb", proxy.peakRss() < 0 ? -1 : proxy.peakRss() / (1024.0 * 1024));
+		put(results, "peak_threads", proxy.peakThreads());
+
+		System.out.println(report(results));
+		if (total.errors > 0) {
+			System.out.println(total.errors + " operations failed, see " + proxy.log() + " with --keep=true");
+		}
+		return results;
+	}
+
+	private static double delta(Map<String, Double> before, Map<String, Double> after, String name) {
+		return after.getOrDefault(name, 0.0) - before.getOrDefault(name, 0.0);
+	}
+
+	private static void put(Properties results, String key, double value) {
+		results.setProperty(key, String.format(Locale.ROOT, "%.3f", value));
+	}
+
+	private static void putLatency(Properties results, String operation, LatencyHistogram latency) {
+		put(results, operation + "_p50_ms", latency.quantile(0.5) / 1e6);
+		put(results, operation + "_p99_ms", latency.quantile(0.99) / 1e6);
+		put(results, operation + "_p999_ms", latency.quantile(0.999) / 1e6);
+		put(results, operation + "_max_ms", latency.max() / 1e6);
+	}
+
+	private static double get(Properties results, String key) {
+		return Double.parseDouble(results.getProperty(key, "0"));
+	}
+
+	private static String report(Properties r) {
+		return String.format(Locale.ROOT,
+				"connections      %10.1f /s%n"
+						+ "requests         %10.1f /s (GET %.1f /s, CONNECT %.1f /s)%n"
+						+ "throughput       %10.1f MB/s%n"
+						+ "GET latency      p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms%n"
+						+ "CONNECT latency  p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms%n"
+						+ "errors           %10.0f%n"
+						+ "cache hit ratio  %10.1f %%%n"
+						+ "proxy peak RSS   %10.1f MB, peak threads %.0f",
+				get(r, "connections_per_sec"), get(r, "requests_per_sec"), get(r, "get_per_sec"),
+				get(r, "connect_per_sec"), get(r, "throughput_mb_per_sec"), get(r, "get_p50_ms"),
+				get(r, "get_p99_ms"), get(r, "get_p999_ms"), get(r, "get_max_ms"), get(r, "connect_p50_ms"),
+				get(r, "connect_p99_ms"), get(r, "connect_p999_ms"), get(r, "connect_max_ms"), get(r, "errors"),
+				get(r, "cache_hit_ratio") * 100, get(r, "peak_rss_mb"), get(r, "peak_threads"));
+	}
+
+	/**
+	 * @return one line per result found in both runs, with its change
+	 */
+	static String compare(Properties baseline, Properties results) {
+		StringBuilder text = new StringBuilder(String.format("%-24s %12s %12s %9s%n", "", "baseline", "now", "change"));
+		for (String key : new TreeSet<>(results.stringPropertyNames())) {
+			if (!baseline.containsKey(key)) {
+				continue;
+			}
+			double before = get(baseline, key);
+			double now = get(results, key);
+			String change = before == 0 ? "" : String.format(Locale.ROOT, "%+8.1f%%", (now - before) / before * 100);
+			text.append(String.format(Locale.ROOT, "%-24s %12.3f %12.3f %9s%n", key, before, now, change));
+		}
+		return text.toString();
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	/**
+	 * Accepts any certificate, the origin and the proxy CA are made for the run
+	 */
+	private static final class TrustAll implements X509TrustManager {
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package loadtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Stand-in origin on loopback, plain HTTP or TLS.
+ *
+ * GET /object/<size>?n=<id> answers size bytes, cacheable for an hour, after
+ * the configured latency; the id only makes distinct URLs. POST /echo answers
+ * the request body, for tunnels carrying uploads.
+ */
+final class Origin {
+	static final String STORE_PASSWORD = "changeit";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final int latencyMillis;
+	private final byte[] body;
+
+	/**
+	 * @param tls           key store of the TLS server, null for plain HTTP
+	 * @param latencyMillis time to wait before answering each request
+	 * @param maxSize       largest object served
+	 */
+	Origin(File tls, int latencyMillis, int maxSize) throws IOException, GeneralSecurityException {
+		this.latencyMillis = latencyMillis;
+		this.body = new byte[maxSize];
+		for (int i = 0; i < maxSize; i++) {
+			body[i] = (byte) ('a' + i % 26);
+		}
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+		if (tls == null) {
+			server = HttpServer.create(address, 1024);
+		} else {
+			HttpsServer https = HttpsServer.create(address, 1024);
+			https.setHttpsConfigurator(new HttpsConfigurator(serverContext(tls)));
+			server = https;
+		}
+		// A thread per request in flight, so the latency does not queue requests
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, tls == null ? "origin-http" : "origin-tls");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext("/object/", this::object);
+		server.createContext("/echo", this::echo);
+		server.start();
+	}
+
+	int port() {
+		return server.getAddress().getPort();
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void object(HttpExchange exchange) throws IOException {
+		try {
+			int size = Integer.parseInt(exchange.getRequestURI().getPath().substring("/object/".length()));
+			if (size < 0 || size > body.length) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			pause();
+			exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+			exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+			exchange.getResponseHeaders().set("ETag", "\"" + size + "-" + exchange.getRequestURI().getQuery() + "\"");
+			exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body, 0, size);
+			}
+		} catch (NumberFormatException e) {
+			exchange.sendResponseHeaders(404, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void echo(HttpExchange exchange) throws IOException {
+		try {
+			byte[] received = exchange.getRequestBody().readAllBytes();
+			pause();
+			exchange.sendResponseHeaders(200, received.length == 0 ? -1 : received.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(received);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void pause() {
+		if (latencyMillis > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static SSLContext serverContext(File keyStore) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		try (InputStream in = new FileInputStream(keyStore)) {
+			store.load(in, STORE_PASSWORD.toCharArray());
+		}
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(store, STORE_PASSWORD.toCharArray());
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), null, null);
+		return context;
+	}
+
+	/**
+	 * Create the key store of the TLS origin, for localhost and 127.0.0.1, and
+	 * a trust store holding its certificate for the proxy, with the keytool of
+	 * the running JDK
+	 *
+	 * @param directory  where both stores are written
+	 * @return key store, the trust store is truststore.p12 next to it
+	 */
+	static File createStores(File directory) throws IOException {
+		File keyStore = new File(directory, "origin.p12");
+		File certificate = new File(directory, "origin.crt");
+		File trustStore = new File(directory, "truststore.p12");
+		keytool("-genkeypair", "-alias", "origin", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "30",
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+				"-keystore", keyStore.getPath(), "-storepass", STORE_PASSWORD, "-keypass", STORE_PASSWORD);
+		keytool("-exportcert", "-alias", "origin", "-keystore", keyStore.getPath(), "-storepass", STORE_PASSWORD,
+				"-file", certificate.getPath());
+		keytool("-importcert", "-noprompt", "-alias", "origin", "-file", certificate.getPath(), "-storetype",
+				"PKCS12", "-keystore", trustStore.getPath(), "-storepass", STORE_PASSWORD);
+		return keyStore;
+	}
+
+	private static void keytool(String... args) throws IOException {
+		String[] command = new String[args.length + 1];
+		command[0] = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+		System.arraycopy(args, 0, command, 1, args.length);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		String output = new String(process.getInputStream().readAllBytes());
+		try {
+			if (process.waitFor() != 0) {
+				throw new IOException("keytool " + args[0] + " failed: " + output);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted running keytool", e);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The proxy under test, in a JVM of its own so its memory and threads are
+ * measured apart from the clients and origins.
+ *
+ * It runs in a scratch directory holding its cache, journals, certificate
+ * store and CA, listens on loopback only, trusts the TLS origin, and serves its
+ * metrics on loopback for the cache counters. Its console output goes to
+ * proxy.log in the scratch directory.
+ */
+final class ProxyProcess {
+	private final Process process;
+	private final OutputStream console;
+	private final int port;
+	private final int metricsPort;
+	private final File log;
+	private final Thread sampler;
+	private volatile long peakRss = -1;
+	private volatile int peakThreads = -1;
+
+	/**
+	 * @param directory  scratch directory of the proxy
+	 * @param trustStore trust store holding the certificate of the TLS origin
+	 * @param jvmArgs    extra JVM arguments, after the ones set here so they win
+	 */
+	ProxyProcess(File directory, File trustStore, List<String> jvmArgs) throws IOException {
+		this.port = freePort();
+		this.metricsPort = freePort();
+		this.log = new File(directory, "proxy.log");
+
+		List<String> command = new ArrayList<>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-Dproxy.port=" + port);
+		command.add("-Dproxy.bindAddress=" + InetAddress.getLoopbackAddress().getHostAddress());
+		command.add("-Dproxy.metrics.port=" + metricsPort);
+		command.add("-Djavax.net.ssl.trustStore=" + trustStore.getAbsolutePath());
+		command.add("-Djavax.net.ssl.trustStorePassword=" + Origin.STORE_PASSWORD);
+		command.addAll(jvmArgs);
+		command.add("Proxy");
+
+		ProcessBuilder builder = new ProcessBuilder(command).directory(directory).redirectErrorStream(true)
+				.redirectOutput(log);
+		// Minted certificates are signed by a CA of the run, not the one of the user
+		builder.environment().put("CAROOT", new File(directory, "ca").getAbsolutePath());
+		process = builder.start();
+		console = process.getOutputStream();
+
+		sampler = new Thread(this::sample, "proxy-sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			return socket.getLocalPort();
+		}
+	}
+
+	int port() {
+		return port;
+	}
+
+	File log() {
+		return log;
+	}
+
+	/**
+	 * Wait until the proxy accepts connections
+	 *
+	 * @param timeoutMillis longest wait
+	 * @throws IOException if it exits or does not listen in time
+	 */
+	void awaitListening(long timeoutMillis) throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (System.currentTimeMillis() < deadline) {
+			if (!process.isAlive()) {
+				throw new IOException("Proxy exited with " + process.exitValue() + ", see " + log);
+			}
+			try (Socket socket = new Socket()) {
+				socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 200);
+				return;
+			} catch (IOException e) {
+				TimeUnit.MILLISECONDS.sleep(100);
+			}
+		}
+		throw new IOException("Proxy not listening after " + timeoutMillis + " ms, see " + log);
+	}
+
+	/**
+	 * @return value of each metric without labels, read from the Prometheus
+	 *         endpoint of the proxy
+	 */
+	Map<String, Double> metrics() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + metricsPort + "/metrics")
+				.openConnection(java.net.Proxy.NO_PROXY);
+		Map<String, Double> values = new HashMap<>();
+		try (InputStream in = connection.getInputStream()) {
+			for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+				int space = line.indexOf(' ');
+				if (line.startsWith("#") || line.indexOf('{') >= 0 || space < 0) {
+					continue;
+				}
+				values.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1).trim()));
+			}
+		} finally {
+			connection.disconnect();
+		}
+		return values;
+	}
+
+	/**
+	 * Read the resident memory and threads of the proxy from /proc every 100 ms,
+	 * keeping the highest values. Elsewhere than Linux they stay unknown.
+	 */
+	private void sample() {
+		Path status = Path.of("/proc", Long.toString(process.pid()), "status");
+		if (!Files.isReadable(status)) {
+			return;
+		}
+		while (process.isAlive()) {
+			try {
+				for (String line : Files.readAllLines(status)) {
+					if (line.startsWith("VmRSS:")) {
+						long rss = Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+						peakRss = Math.max(peakRss, rss);
+					} else if (line.startsWith("Threads:")) {
+						peakThreads = Math.max(peakThreads, Integer.parseInt(line.replaceAll("[^0-9]", "")));
+					}
+				}
+				TimeUnit.MILLISECONDS.sleep(100);
+			} catch (IOException | NumberFormatException e) {
+				return;
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forget the peaks, so the next ones are those of the measured period
+	 */
+	void resetPeaks() {
+		peakRss = -1;
+		peakThreads = -1;
+	}
+
+	/**
+	 * @return highest resident memory in bytes, -1 if unknown
+	 */
+	long peakRss() {
+		return peakRss;
+	}
+
+	/**
+	 * @return highest number of threads, -1 if unknown
+	 */
+	int peakThreads() {
+		return peakThreads;
+	}
+
+	/**
+	 * Close the proxy from its console, killing it if it does not exit
+	 */
+	void stop() throws InterruptedException {
+		sampler.interrupt();
+		try {
+			console.write("close\n".getBytes(StandardCharsets.UTF_8));
+			console.flush();
+		} catch (IOException e) {
+			// Exited already
+		}
+		if (!process.waitFor(5, TimeUnit.SECONDS)) {
+			process.destroy();
+			if (!process.waitFor(5, TimeUnit.SECONDS)) {
+				process.destroyForcibly();
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listening socket of one thread accepting client connections.
+ *
+ * With several acceptors, see ProxyConfig.ACCEPTORS, they either take turns
+ * on one shared listening socket, one of them in accept while the others
+ * register and dispatch the connections they took, or bind one socket each
+ * with SO_REUSEPORT so the kernel spreads the connections over their accept
+ * queues and no lock is shared at all. The tunnels of the connections of an
+ * acceptor are served by the TunnelEngine loop of the same index, a
+ * connection stays on one loop from its accept to its close.
+ */
+public final class Acceptor {
+	final int index;
+	final ServerSocket socket;
+	final LongAdder accepted = new LongAdder();
+
+	private Acceptor(int index, ServerSocket socket) {
+		this.index = index;
+		this.socket = socket;
+		Metrics.gauge("proxy_acceptor_" + index + "_accepted_total", "Connections accepted by acceptor " + index,
+				"counter", accepted::sum);
+	}
+
+	/**
+	 * Bind the listening sockets of the acceptors. SO_REUSEPORT falls back to a
+	 * shared socket where the system does not support it.
+	 *
+	 * @param address   address to listen on
+	 * @param backlog   length of the accept queue of each socket
+	 * @param count     number of acceptors
+	 * @param reusePort true to bind one socket per acceptor
+	 * @return one Acceptor per thread
+	 * @throws IOException if the address cannot be bound
+	 */
+	static Acceptor[] open(InetSocketAddress address, int backlog, int count, boolean reusePort)
+			throws IOException {
+		Acceptor[] acceptors = new Acceptor[Math.max(1, count)];
+		ServerSocketChannel first = ServerSocketChannel.open();
+		try {
+			if (acceptors.length > 1 && reusePort) {
+				if (first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				} else {
+					System.out.println("SO_REUSEPORT not supported, the acceptors share one socket");
+					reusePort = false;
+				}
+			}
+			// Backed by a channel so accepted sockets can be handed to the TunnelEngine
+			first.bind(address, backlog);
+			acceptors[0] = new Acceptor(0, first.socket());
+
+			// An ephemeral port is shared once the first socket chose it
+			InetSocketAddress bound = new InetSocketAddress(address.getAddress(), first.socket().getLocalPort());
+			for (int i = 1; i < acceptors.length; i++) {
+				ServerSocket socket = first.socket();
+				if (reusePort) {
+					ServerSocketChannel channel = ServerSocketChannel.open();
+					try {
+						channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+						channel.bind(bound, backlog);
+					} catch (IOException | RuntimeException e) {
+						channel.close();
+						throw e;
+					}
+					socket = channel.socket();
+				}
+				acceptors[i] = new Acceptor(i, socket);
+			}
+		} catch (IOException | RuntimeException e) {
+			// Release what was bound so far, the first socket included
+			first.close();
+			for (Acceptor acceptor : acceptors) {
+				if (acceptor != null) {
+					acceptor.socket.close();
+				}
+			}
+			throw e;
+		}
+		return acceptors;
+	}
+
+	/**
+	 * @param acceptors every acceptor
+	 * @return one line with the connections taken by each acceptor
+	 */
+	static String report(Acceptor[] acceptors) {
+		StringBuilder text = new StringBuilder("accepted");
+		long total = 0;
+		for (Acceptor acceptor : acceptors) {
+			long count = acceptor.accepted.sum();
+			total += count;
+			text.append(acceptor.index == 0 ? " " : ", ").append(count).append(" by ").append(acceptor.index);
+		}
+		return text.append(", ").append(total).append(" in all").toString();
+	}
+}
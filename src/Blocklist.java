@@ -0,0 +1,280 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable set of blocking rules matched against request URLs.
+ *
+ * A rule is a host, optionally preceded by "*." and followed by a path
+ * prefix: "example.com" blocks the host and all its subdomains,
+ * "*.example.com" only its subdomains and "example.com/ads" the paths starting
+ * with /ads on the host and its subdomains. A scheme or port given with the
+ * rule is ignored, so rules typed as full URLs keep working.
+ *
+ * Rules are kept in a trie of host labels read from the right. A lookup costs
+ * one probe per label of the requested host whatever the number of rules, and
+ * reads the URL in place without allocating. Changing the rules compiles a
+ * new Blocklist which replaces the previous one, so readers never lock.
+ */
+public final class Blocklist {
+	private final Node root;
+	private final int size;
+
+	private Blocklist(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Compile rules, the ones without a host are ignored
+	 *
+	 * @param rules rules as typed in the console
+	 * @return Blocklist
+	 */
+	public static Blocklist of(Collection<String> rules) {
+		Builder root = new Builder();
+		int size = 0;
+		for (String rule : rules) {
+			if (root.add(rule)) {
+				size++;
+			}
+		}
+		return new Blocklist(root.build(), size);
+	}
+
+	/**
+	 * @return number of rules compiled
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Check a URL against the rules
+	 *
+	 * @param url absolute URL, or scheme://host:port for a CONNECT
+	 * @return true if a rule blocks it
+	 */
+	public boolean isBlocked(String url) {
+		int hostStart = hostStart(url);
+		int hostEnd = hostEnd(url, hostStart);
+		int pathStart = -1;
+		for (int i = hostEnd; i < url.length(); i++) {
+			char c = url.charAt(i);
+			if (c == '/') {
+				pathStart = i;
+				break;
+			}
+			if (c == '?' || c == '#') {
+				break;
+			}
+		}
+		while (hostEnd > hostStart && url.charAt(hostEnd - 1) == '.') {
+			hostEnd--;
+		}
+
+		Node node = root;
+		int end = hostEnd;
+		while (end > hostStart) {
+			int dot = url.lastIndexOf('.', end - 1);
+			if (dot < hostStart) {
+				dot = hostStart - 1;
+			}
+			node = node.child(url, dot + 1, end);
+			if (node == null) {
+				return false;
+			}
+			if (node.matches(url, pathStart, dot >= hostStart)) {
+				return true;
+			}
+			end = dot;
+		}
+		return false;
+	}
+
+	/**
+	 * @param url absolute URL
+	 * @return index of the host in the URL
+	 */
+	static int hostStart(String url) {
+		int scheme = url.indexOf("://");
+		return scheme < 0 ? 0 : scheme + 3;
+	}
+
+	/**
+	 * @param url       absolute URL
+	 * @param hostStart index of the host
+	 * @return index after the host, before its port, path or query
+	 */
+	static int hostEnd(String url, int hostStart) {
+		int length = url.length();
+		if (hostStart < length && url.charAt(hostStart) == '[') {
+			// IPv6 literal, matched as one label
+			int end = url.indexOf(']', hostStart);
+			return end < 0 ? length : end + 1;
+		}
+		int end = hostStart;
+		while (end < length && !isHostEnd(url.charAt(end))) {
+			end++;
+		}
+		return end;
+	}
+
+	private static boolean isHostEnd(char c) {
+		return c == ':' || c == '/' || c == '?' || c == '#';
+	}
+
+	/**
+	 * Hash of a label ignoring ASCII case, equal to hash(label, 0, length) of
+	 * the lower case label
+	 */
+	private static int hash(String s, int from, int to) {
+		int h = 0;
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Label of the trie, its children in an open addressing table
+	 */
+	private static final class Node {
+		private String[] labels;
+		private Node[] children;
+		// The host and its subdomains, every path
+		private boolean blocksHost;
+		// Only the subdomains, every path
+		private boolean blocksSubdomains;
+		private String[] hostPaths;
+		private String[] subdomainPaths;
+
+		Node child(String host, int from, int to) {
+			if (labels == null) {
+				return null;
+			}
+			int mask = labels.length - 1;
+			int length = to - from;
+			for (int i = hash(host, from, to) & mask; labels[i] != null; i = (i + 1) & mask) {
+				if (labels[i].length() == length && labels[i].regionMatches(true, 0, host, from, length)) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @param subdomain true if the requested host has labels left of this one
+		 */
+		boolean matches(String url, int pathStart, boolean subdomain) {
+			if (blocksHost || (subdomain && blocksSubdomains)) {
+				return true;
+			}
+			return matchesPath(hostPaths, url, pathStart) || (subdomain && matchesPath(subdomainPaths, url, pathStart));
+		}
+
+		private static boolean matchesPath(String[] paths, String url, int pathStart) {
+			if (paths == null || pathStart < 0) {
+				return false;
+			}
+			for (String path : paths) {
+				if (url.startsWith(path, pathStart)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Mutable trie, frozen into Nodes once every rule is added
+	 */
+	private static final class Builder {
+		private final Map<String, Builder> children = new HashMap<>();
+		private boolean blocksHost;
+		private boolean blocksSubdomains;
+		private final List<String> hostPaths = new ArrayList<>();
+		private final List<String> subdomainPaths = new ArrayList<>();
+
+		boolean add(String rule) {
+			rule = rule.trim();
+			int scheme = rule.indexOf("://");
+			if (scheme >= 0) {
+				rule = rule.substring(scheme + 3);
+			}
+			boolean subdomainsOnly = rule.startsWith("*.");
+			if (subdomainsOnly) {
+				rule = rule.substring(2);
+			}
+			int hostEnd = 0;
+			while (hostEnd < rule.length() && !isHostEnd(rule.charAt(hostEnd))) {
+				hostEnd++;
+			}
+			String host = rule.substring(0, hostEnd).toLowerCase(Locale.ROOT);
+			while (host.endsWith(".")) {
+				host = host.substring(0, host.length() - 1);
+			}
+			if (host.isEmpty()) {
+				return false;
+			}
+			String path = null;
+			int slash = rule.indexOf('/', hostEnd);
+			if (slash >= 0) {
+				path = rule.substring(slash);
+				while (path.endsWith("*")) {
+					path = path.substring(0, path.length() - 1);
+				}
+				if (path.equals("/") || path.isEmpty()) {
+					path = null;
+				}
+			}
+
+			Builder node = this;
+			String[] labels = host.split("\\.", -1);
+			for (int i = labels.length - 1; i >= 0; i--) {
+				node = node.children.computeIfAbsent(labels[i], label -> new Builder());
+			}
+			if (path == null) {
+				if (subdomainsOnly) {
+					node.blocksSubdomains = true;
+				} else {
+					node.blocksHost = true;
+				}
+			} else {
+				(subdomainsOnly ? node.subdomainPaths : node.hostPaths).add(path);
+			}
+			return true;
+		}
+
+		Node build() {
+			Node node = new Node();
+			node.blocksHost = blocksHost;
+			node.blocksSubdomains = blocksSubdomains;
+			node.hostPaths = hostPaths.isEmpty() ? null : hostPaths.toArray(new String[0]);
+			node.subdomainPaths = subdomainPaths.isEmpty() ? null : subdomainPaths.toArray(new String[0]);
+			if (!children.isEmpty()) {
+				// Kept at most half full so probes stay short
+				int capacity = Integer.highestOneBit(children.size() * 2 - 1) << 1;
+				node.labels = new String[capacity];
+				node.children = new Node[capacity];
+				for (Map.Entry<String, Builder> child : children.entrySet()) {
+					String label = child.getKey();
+					int i = hash(label, 0, label.length()) & (capacity - 1);
+					while (node.labels[i] != null) {
+						i = (i + 1) & (capacity - 1);
+					}
+					node.labels[i] = label;
+					node.children[i] = child.getValue().build();
+				}
+			}
+			return node;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Relay buffers shared by every tunnel, in power of two size classes.
+ *
+ * A tunnel holds a buffer only while bytes are in flight and gives it back
+ * once they are written, so an idle tunnel costs no buffer at all. Released
+ * buffers are kept for reuse up to a byte limit per pool, beyond it they are
+ * left to the garbage collector. The DIRECT pool serves channel reads and
+ * writes, which avoid a copy with direct memory, the HEAP pool the stream
+ * relays which need an array.
+ */
+public final class BufferPool {
+	static final BufferPool DIRECT = new BufferPool("direct", true);
+	static final BufferPool HEAP = new BufferPool("heap", false);
+
+	private final String name;
+	private final boolean direct;
+	private final int minShift;
+	private final Queue<ByteBuffer>[] free;
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final AtomicLong inUseBytes = new AtomicLong();
+	private final LongAdder reused = new LongAdder();
+	private final LongAdder allocated = new LongAdder();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private BufferPool(String name, boolean direct) {
+		this.name = name;
+		this.direct = direct;
+		minShift = shift(ProxyConfig.TUNNEL_BUFFER_MIN);
+		free = new Queue[shift(ProxyConfig.TUNNEL_BUFFER_MAX) - minShift + 1];
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new ConcurrentLinkedQueue<>();
+		}
+	}
+
+	/**
+	 * @return log2 of size rounded up to a power of two
+	 */
+	private static int shift(int size) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+	}
+
+	/**
+	 * @param size bytes wanted
+	 * @return size of the class serving it, between the smallest and largest
+	 *         class
+	 */
+	static int classSize(int size) {
+		int shift = Math.max(shift(ProxyConfig.TUNNEL_BUFFER_MIN),
+				Math.min(shift(ProxyConfig.TUNNEL_BUFFER_MAX), shift(size)));
+		return 1 << shift;
+	}
+
+	/**
+	 * Size of the next buffer of a relay, from how much of this one a burst of
+	 * reads filled: twice as large when full, half when under a quarter
+	 *
+	 * @param capacity capacity of the buffer
+	 * @param filled   bytes read into it before it was written out
+	 * @return size to acquire next
+	 */
+	static int nextSize(int capacity, int filled) {
+		if (filled >= capacity) {
+			return classSize(capacity * 2);
+		}
+		if (filled < capacity / 4) {
+			return classSize(capacity / 2);
+		}
+		return capacity;
+	}
+
+	/**
+	 * Take a cleared buffer from the pool, allocating one if none is free
+	 *
+	 * @param size bytes wanted, rounded to its size class
+	 * @return ByteBuffer
+	 */
+	ByteBuffer acquire(int size) {
+		int capacity = classSize(size);
+		ByteBuffer buffer = free[shift(capacity) - minShift].poll();
+		if (buffer != null) {
+			pooledBytes.addAndGet(-capacity);
+			reused.increment();
+		} else {
+			buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			allocated.increment();
+		}
+		inUseBytes.addAndGet(capacity);
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back, it must not be used afterwards
+	 *
+	 * @param buffer buffer taken from this pool
+	 */
+	void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		inUseBytes.addAndGet(-capacity);
+		if (pooledBytes.addAndGet(capacity) > ProxyConfig.BUFFER_POOL_MAX_BYTES) {
+			pooledBytes.addAndGet(-capacity);
+			return;
+		}
+		buffer.clear();
+		free[shift(capacity) - minShift].offer(buffer);
+	}
+
+	/**
+	 * @return bytes of the buffers held by relays
+	 */
+	long inUseBytes() {
+		return inUseBytes.get();
+	}
+
+	/**
+	 * @return one line summary of the pool
+	 */
+	String report() {
+		long reuses = reused.sum();
+		long total = reuses + allocated.sum();
+		return String.format("%-6s buffers in use %d KB, pooled %d KB, reused %d of %d (%.1f%%)", name,
+				inUseBytes.get() / 1024, pooledBytes.get() / 1024, reuses, total,
+				total == 0 ? 0.0 : 100.0 * reuses / total);
+	}
+}
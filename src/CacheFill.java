@@ -0,0 +1,388 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download of a page into the cache, shared by every request missing the
+ * same URL while it runs.
+ *
+ * The first request to miss becomes the leader and alone asks the origin.
+ * The body is written to a temporary file, and requests arriving meanwhile
+ * follow the fill: they read the file as it grows and send the bytes to
+ * their client as they arrive. Once the body is complete it is hashed into
+ * the SegmentStore and indexed, so a cached body is never seen half written.
+ * Text bodies are gzip compressed on the way, see Compression; followers read
+ * the file as received.
+ * A fill whose response cannot be cached is abandoned before any body is
+ * shared. Its followers then make their own requests at once, without
+ * electing another leader, and the URL is remembered for a while so that its
+ * next misses go to the origin without waiting on a fill either.
+ */
+public class CacheFill {
+	private static final ConcurrentHashMap<String, CacheFill> fills = new ConcurrentHashMap<>();
+	private static final AtomicLong ids = new AtomicLong();
+	// URLs whose response could not be cached, with the time until which their misses are not coalesced
+	private static final ConcurrentHashMap<String, Long> uncacheable = new ConcurrentHashMap<>();
+	// Beyond this many URLs remembered the expired ones are dropped, then all of them
+	private static final int MAX_UNCACHEABLE = 10000;
+
+	private static final int PENDING = 0;
+	private static final int FILLING = 1;
+	private static final int DONE = 2;
+	private static final int FAILED = 3;
+
+	final String url;
+
+	// Guarded by this
+	private int state = PENDING;
+	private File temp;
+	private FileChannel channel;
+	private HttpHeaders headers;
+	private long length;
+	private long written;
+	private int readers;
+
+	// Only used by the leader
+	private final MessageDigest digest = SegmentStore.newDigest();
+
+	private CacheFill(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * Start filling a URL unless a fill of it is already running
+	 *
+	 * @param url URL of the page
+	 * @return CacheFill led by the caller, null if another fill runs
+	 */
+	public static CacheFill begin(String url) {
+		CacheFill fill = new CacheFill(url);
+		return fills.putIfAbsent(url, fill) == null ? fill : null;
+	}
+
+	/**
+	 * @param url URL of the page
+	 * @return running fill of the URL, null if none
+	 */
+	public static CacheFill find(String url) {
+		return fills.get(url);
+	}
+
+	/**
+	 * Remember that the response of a URL could not be cached, its misses go
+	 * to the origin in parallel for ProxyConfig.CACHE_UNCACHEABLE_TTL
+	 *
+	 * @param url URL of the page
+	 */
+	public static void uncacheable(String url) {
+		if (ProxyConfig.CACHE_UNCACHEABLE_TTL <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (uncacheable.size() >= MAX_UNCACHEABLE) {
+			uncacheable.values().removeIf(until -> until <= now);
+			if (uncacheable.size() >= MAX_UNCACHEABLE) {
+				uncacheable.clear();
+			}
+		}
+		uncacheable.put(url, now + ProxyConfig.CACHE_UNCACHEABLE_TTL);
+	}
+
+	/**
+	 * Forget that a URL could not be cached, once one of its responses could
+	 *
+	 * @param url URL of the page
+	 */
+	public static void cacheable(String url) {
+		uncacheable.remove(url);
+	}
+
+	/**
+	 * @param url URL of the page
+	 * @return true if a recent response of the URL could not be cached, its
+	 *         misses are then not coalesced
+	 */
+	public static boolean isUncacheable(String url) {
+		Long until = uncacheable.get(url);
+		if (until == null) {
+			return false;
+		}
+		if (until > System.currentTimeMillis()) {
+			return true;
+		}
+		uncacheable.remove(url, until);
+		return false;
+	}
+
+	/**
+	 * @return number of fills running
+	 */
+	public static int running() {
+		return fills.size();
+	}
+
+	/**
+	 * Open the temporary file and let followers start
+	 *
+	 * @param directory directory of the temporary file
+	 * @param headers   end to end headers of the response, without framing
+	 * @param length    body length, -1 if unknown
+	 * @throws IOException if the temporary file cannot be created
+	 */
+	public synchronized void start(File directory, HttpHeaders headers, long length) throws IOException {
+		temp = new File(directory, "fill-" + ids.incrementAndGet() + ".fill");
+		channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+				StandardOpenOption.READ);
+		this.headers = headers;
+		this.length = length;
+		state = FILLING;
+		notifyAll();
+	}
+
+	/**
+	 * @return stream appending to the fill, for the leader
+	 */
+	public OutputStream output() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				append(b, off, len);
+			}
+		};
+	}
+
+	private void append(byte[] b, int off, int len) throws IOException {
+		FileChannel target;
+		long position;
+		synchronized (this) {
+			if (state != FILLING) {
+				throw new IOException("Cache fill of " + url + " is not running");
+			}
+			target = channel;
+			position = written;
+		}
+		// Only the leader writes, followers are woken once the bytes are in the file
+		digest.update(b, off, len);
+		ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+		while (buffer.hasRemaining()) {
+			position += target.write(buffer, position);
+		}
+		synchronized (this) {
+			written = position;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Store the complete body and index the response
+	 *
+	 * @param store        store receiving the body
+	 * @param headers      headers to serve and revalidate the response with
+	 * @param requestTime  time the request was sent
+	 * @param responseTime time the response head was received
+	 * @return CachedResponse now in the cache
+	 * @throws IOException if the body cannot be stored
+	 */
+	public CachedResponse complete(SegmentStore store, HttpHeaders headers, long requestTime, long responseTime)
+			throws IOException {
+		FileChannel source;
+		long size;
+		File file;
+		synchronized (this) {
+			if (state != FILLING) {
+				throw new IOException("Cache fill of " + url + " is not running");
+			}
+			source = channel;
+			size = written;
+			file = temp;
+		}
+		CachedResponse response;
+		try {
+			response = compress(store, source, size, file, headers, requestTime, responseTime);
+			if (response == null) {
+				response = new CachedResponse(store.put(source, size, digest.digest()), size, headers, requestTime,
+						responseTime);
+			}
+		} catch (IOException e) {
+			abandon();
+			throw e;
+		}
+		Proxy.addCachedPage(url, response);
+		synchronized (this) {
+			state = DONE;
+			notifyAll();
+			// Followers keep reading the open file
+			temp.delete();
+			closeIfUnused();
+		}
+		fills.remove(url, this);
+		return response;
+	}
+
+	/**
+	 * Store the body gzip compressed if its type gains from it
+	 *
+	 * @return CachedResponse of the compressed body, null to store it as received
+	 * @throws IOException if the body cannot be stored
+	 */
+	private CachedResponse compress(SegmentStore store, FileChannel source, long size, File file,
+			HttpHeaders headers, long requestTime, long responseTime) throws IOException {
+		if (!Compression.isCompressible(headers, size)) {
+			return null;
+		}
+		File compressed = new File(file.getPath() + ".gz");
+		try {
+			if (!Compression.gzip(source, size, compressed)) {
+				return null;
+			}
+			HttpHeaders coded = headers.endToEnd();
+			coded.set("Content-Encoding", "gzip");
+			long length = compressed.length();
+			CachedResponse response = new CachedResponse(store.put(compressed), length, coded, requestTime,
+					responseTime);
+			Metrics.CACHE_COMPRESSED.increment();
+			Metrics.CACHE_COMPRESSION_SAVED.add(size - length);
+			return response;
+		} finally {
+			compressed.delete();
+		}
+	}
+
+	/**
+	 * End the fill without publishing anything. Followers that already started
+	 * sending the body fail, the others make their own request.
+	 * Does nothing once the fill completed.
+	 */
+	public void abandon() {
+		synchronized (this) {
+			if (state == DONE || state == FAILED) {
+				return;
+			}
+			state = FAILED;
+			notifyAll();
+			if (temp != null) {
+				temp.delete();
+			}
+			closeIfUnused();
+		}
+		fills.remove(url, this);
+	}
+
+	/**
+	 * @return true if the fill ended without publishing anything
+	 */
+	public synchronized boolean isAbandoned() {
+		return state == FAILED;
+	}
+
+	/**
+	 * Wait until the leader knows whether the body is shared, and register as a
+	 * reader if it is
+	 *
+	 * @param timeoutMillis longest wait
+	 * @return true if the body can be read from this fill
+	 * @throws IOException if interrupted or no answer came in time
+	 */
+	public synchronized boolean follow(long timeoutMillis) throws IOException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (state == PENDING) {
+			awaitUntil(deadline);
+		}
+		if (state == FAILED || channel == null) {
+			// Or done with its file closed already, the body is in the cache by now
+			return false;
+		}
+		readers++;
+		return true;
+	}
+
+	/**
+	 * @return end to end headers of the response, once followed
+	 */
+	public synchronized HttpHeaders headers() {
+		return headers.endToEnd();
+	}
+
+	/**
+	 * @return length of the body, -1 if unknown, once followed
+	 */
+	public synchronized long length() {
+		return length;
+	}
+
+	/**
+	 * Read body bytes at a position, waiting for the leader to write them
+	 *
+	 * @param dst           destination
+	 * @param position      offset in the body
+	 * @param timeoutMillis longest wait for new bytes
+	 * @return bytes read, -1 at the end of the body
+	 * @throws IOException if the fill failed or stalled
+	 */
+	public int read(ByteBuffer dst, long position, long timeoutMillis) throws IOException {
+		FileChannel source;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (position >= written && state == FILLING) {
+				awaitUntil(deadline);
+			}
+			if (state == FAILED) {
+				throw new IOException("Cache fill of " + url + " failed");
+			}
+			if (position >= written) {
+				return -1;
+			}
+			source = channel;
+			// Never past what the leader finished writing
+			if (dst.remaining() > written - position) {
+				dst.limit(dst.position() + (int) (written - position));
+			}
+		}
+		return source.read(dst, position);
+	}
+
+	/**
+	 * Unregister a reader, after the body was read or on error
+	 */
+	public synchronized void release() {
+		readers--;
+		closeIfUnused();
+	}
+
+	private void awaitUntil(long deadline) throws IOException {
+		long wait = deadline - System.currentTimeMillis();
+		if (wait <= 0) {
+			throw new SocketTimeoutException("Cache fill of " + url + " stalled");
+		}
+		try {
+			wait(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted following the cache fill of " + url, e);
+		}
+	}
+
+	// Called holding the lock
+	private void closeIfUnused() {
+		if ((state == DONE || state == FAILED) && readers == 0 && channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,486 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Index of the cached pages, bounded by the bytes of their bodies.
+ *
+ * Lookups only touch a ConcurrentHashMap. The eviction policy is
+ * W-TinyLFU: new entries go to a small LRU window, and when the window
+ * overflows its oldest entry must beat the oldest entry of the main space on
+ * estimated access frequency to be kept. The main space is a segmented LRU
+ * where entries hit a second time move from probation to protected. This
+ * keeps the popular pages cached while a burst of one-off requests only
+ * churns the window.
+ * Accesses are recorded in a lossy buffer and applied to the policy under a
+ * lock, so readers never wait on each other. Evicted responses are handed to
+ * a listener which releases their body.
+ */
+public class CacheIndex {
+	// Share of the budget given to the admission window and to the protected segment
+	private static final double WINDOW_SHARE = 0.01;
+	private static final double PROTECTED_SHARE = 0.80;
+	// Guess of the mean entry size, used to size the frequency sketch
+	private static final long AVERAGE_ENTRY_SIZE = 16 * 1024;
+	// Buffered accesses that make a reader apply them to the policy
+	private static final int DRAIN_THRESHOLD = 32;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Queue<Entry> readBuffer = new ArrayBlockingQueue<>(256);
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	// Guarded by evictionLock
+	private final FrequencySketch sketch;
+	private final AccessQueue[] queues = { new AccessQueue(), new AccessQueue(), new AccessQueue() };
+	private final long maxBytes;
+	private final long windowMaxBytes;
+	private final long protectedMaxBytes;
+	private long totalBytes;
+	private final BiConsumer<String, CachedResponse> onRemoval;
+
+	/**
+	 * @param maxBytes  bytes the cached bodies may take
+	 * @param onRemoval called with the URL and response of each entry evicted,
+	 *                  replaced or removed
+	 */
+	public CacheIndex(long maxBytes, BiConsumer<String, CachedResponse> onRemoval) {
+		this.maxBytes = maxBytes;
+		this.onRemoval = onRemoval;
+		this.windowMaxBytes = Math.max(1, (long) (maxBytes * WINDOW_SHARE));
+		this.protectedMaxBytes = (long) ((maxBytes - windowMaxBytes) * PROTECTED_SHARE);
+		this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(1024, maxBytes / AVERAGE_ENTRY_SIZE)));
+	}
+
+	/**
+	 * Look for the cached response of a URL, counting the hit or miss
+	 *
+	 * @param url URL of the page
+	 * @return CachedResponse, null if not cached
+	 */
+	public CachedResponse get(String url) {
+		Entry entry = entries.get(url);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		entry.lastAccess = System.currentTimeMillis();
+		// A full buffer drops the access, losing some recency is cheaper than waiting
+		if ((!readBuffer.offer(entry) || readBuffer.size() >= DRAIN_THRESHOLD) && evictionLock.tryLock()) {
+			try {
+				drainReadBuffer();
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+		return entry.response;
+	}
+
+	/**
+	 * Add or replace the response of a URL, evicting entries to stay in budget.
+	 * A body larger than the whole budget is not admitted.
+	 *
+	 * @param url      URL of the page
+	 * @param response response to cache, the index now owns its body
+	 */
+	public void put(String url, CachedResponse response) {
+		put(url, response, false);
+	}
+
+	/**
+	 * Add the response of a URL unless one is cached already, evicting
+	 * entries to stay in budget
+	 *
+	 * @param url      URL of the page
+	 * @param response response to cache, the index owns its body if added
+	 * @return false if the URL was cached already
+	 */
+	public boolean putIfAbsent(String url, CachedResponse response) {
+		return put(url, response, true);
+	}
+
+	private boolean put(String url, CachedResponse response, boolean onlyIfAbsent) {
+		Entry entry = new Entry(url, response, response.length, response.responseTime);
+		List<Entry> removed = new ArrayList<>();
+		evictionLock.lock();
+		try {
+			drainReadBuffer();
+			Entry previous = onlyIfAbsent ? entries.putIfAbsent(url, entry) : entries.put(url, entry);
+			if (previous != null && onlyIfAbsent) {
+				return false;
+			}
+			if (previous != null) {
+				unlink(previous);
+				removed.add(previous);
+			}
+			if (entry.size > maxBytes) {
+				entries.remove(url, entry);
+				removed.add(entry);
+			} else {
+				sketch.increment(url);
+				link(WINDOW, entry);
+				evict(removed);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		for (Entry evicted : removed) {
+			onRemoval.accept(evicted.key, evicted.response);
+		}
+		return true;
+	}
+
+	/**
+	 * Replace the metadata of a response after it was revalidated, keeping its
+	 * place in the policy
+	 *
+	 * @param url      URL of the page
+	 * @param response response on the same body as the cached one
+	 * @return false if the URL is no longer cached on that body
+	 */
+	public boolean update(String url, CachedResponse response) {
+		Entry entry = entries.get(url);
+		if (entry != null && entry.response.hash.equals(response.hash)) {
+			entry.response = response;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param url URL of the page
+	 * @return true if cached, without counting a hit or miss
+	 */
+	public boolean containsKey(String url) {
+		return entries.containsKey(url);
+	}
+
+	/**
+	 * Forget a URL and release its body
+	 *
+	 * @param url URL of the page
+	 */
+	public void remove(String url) {
+		Entry entry;
+		evictionLock.lock();
+		try {
+			entry = entries.remove(url);
+			if (entry != null) {
+				unlink(entry);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		if (entry != null) {
+			onRemoval.accept(url, entry.response);
+		}
+	}
+
+	/**
+	 * @return copy of the URL to response mapping, for saving the index
+	 */
+	public HashMap<String, CachedResponse> snapshot() {
+		HashMap<String, CachedResponse> copy = new HashMap<>();
+		for (Entry entry : entries.values()) {
+			copy.put(entry.key, entry.response);
+		}
+		return copy;
+	}
+
+	/**
+	 * @return current entries, for listing
+	 */
+	public Iterable<Entry> entries() {
+		return entries.values();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return bytes currently taken by the cached bodies
+	 */
+	public long weightedSize() {
+		evictionLock.lock();
+		try {
+			return totalBytes;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * @return one line summary of occupancy and hit ratio
+	 */
+	public String report() {
+		long used = weightedSize();
+		long hitCount = hits.sum();
+		long requests = hitCount + misses.sum();
+		return String.format("cache %d entries, %d of %d bytes (%.1f%%), hits %d of %d (%.1f%%), evicted %d",
+				size(), used, maxBytes, 100.0 * used / maxBytes, hitCount, requests,
+				requests == 0 ? 0.0 : 100.0 * hitCount / requests, evictions.sum());
+	}
+
+	private void drainReadBuffer() {
+		Entry entry;
+		while ((entry = readBuffer.poll()) != null) {
+			onAccess(entry);
+		}
+	}
+
+	/**
+	 * Move an entry hit again up its queue, promoting it out of probation
+	 */
+	private void onAccess(Entry entry) {
+		if (entry.queue < 0) {
+			// Removed since it was read
+			return;
+		}
+		sketch.increment(entry.key);
+		if (entry.queue == PROBATION) {
+			unlink(entry);
+			link(PROTECTED, entry);
+			// Demote the oldest protected entries back to probation
+			AccessQueue protectedQueue = queues[PROTECTED];
+			while (protectedQueue.bytes > protectedMaxBytes && protectedQueue.head != entry) {
+				Entry demoted = protectedQueue.head;
+				unlink(demoted);
+				link(PROBATION, demoted);
+			}
+		} else {
+			AccessQueue queue = queues[entry.queue];
+			queue.unlink(entry);
+			queue.append(entry);
+		}
+	}
+
+	/**
+	 * Move the overflow of the window to probation, then evict until the
+	 * budget is met. Each entry leaving the window is a candidate which is only
+	 * kept if it is used more often than the oldest probation entry.
+	 */
+	private void evict(List<Entry> removed) {
+		ArrayDeque<Entry> candidates = new ArrayDeque<>();
+		AccessQueue window = queues[WINDOW];
+		while (window.bytes > windowMaxBytes && window.head != null) {
+			Entry candidate = window.head;
+			unlink(candidate);
+			link(PROBATION, candidate);
+			candidates.add(candidate);
+		}
+
+		while (totalBytes > maxBytes) {
+			Entry victim = firstVictim(candidates);
+			Entry candidate = candidates.peekLast();
+			if (candidate != null && victim != null && victim != candidate) {
+				// Admission: the least frequent of the two leaves
+				if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+					evictEntry(victim, removed);
+				} else {
+					candidates.pollLast();
+					evictEntry(candidate, removed);
+				}
+			} else if (victim != null) {
+				candidates.remove(victim);
+				evictEntry(victim, removed);
+			} else {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Oldest entry that was not a candidate of this round, from probation then
+	 * protected then the window
+	 */
+	private Entry firstVictim(ArrayDeque<Entry> candidates) {
+		for (int queue : new int[] { PROBATION, PROTECTED, WINDOW }) {
+			Entry head = queues[queue].head;
+			if (head != null && (queue != PROBATION || !candidates.contains(head))) {
+				return head;
+			}
+		}
+		return candidates.peekFirst();
+	}
+
+	private void evictEntry(Entry entry, List<Entry> removed) {
+		unlink(entry);
+		if (entries.remove(entry.key, entry)) {
+			evictions.increment();
+			removed.add(entry);
+		}
+	}
+
+	private void link(int queue, Entry entry) {
+		entry.queue = queue;
+		queues[queue].append(entry);
+		totalBytes += entry.size;
+	}
+
+	private void unlink(Entry entry) {
+		if (entry.queue >= 0) {
+			queues[entry.queue].unlink(entry);
+			totalBytes -= entry.size;
+			entry.queue = -1;
+		}
+	}
+
+	/**
+	 * Cached page with the metadata used by the policy
+	 */
+	public static class Entry {
+		final String key;
+		final long size;
+		final long created;
+		volatile CachedResponse response;
+		volatile long lastAccess;
+
+		// Guarded by evictionLock
+		int queue = -1;
+		Entry prev;
+		Entry next;
+
+		Entry(String key, CachedResponse response, long size, long created) {
+			this.key = key;
+			this.response = response;
+			this.size = size;
+			this.created = created;
+			this.lastAccess = created;
+		}
+	}
+
+	/**
+	 * Doubly linked LRU list of entries, oldest first
+	 */
+	static class AccessQueue {
+		Entry head;
+		Entry tail;
+		long bytes;
+
+		void append(Entry entry) {
+			entry.prev = tail;
+			entry.next = null;
+			if (tail == null) {
+				head = entry;
+			} else {
+				tail.next = entry;
+			}
+			tail = entry;
+			bytes += entry.size;
+		}
+
+		void unlink(Entry entry) {
+			if (entry.prev == null) {
+				head = entry.next;
+			} else {
+				entry.prev.next = entry.next;
+			}
+			if (entry.next == null) {
+				tail = entry.prev;
+			} else {
+				entry.next.prev = entry.prev;
+			}
+			entry.prev = null;
+			entry.next = null;
+			bytes -= entry.size;
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 bit counters estimating how often keys were seen.
+	 * Counters are halved once enough increments were made, so the estimate
+	 * follows recent popularity.
+	 */
+	static class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+				0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+		private static final long ONE_MASK = 0x1111111111111111L;
+
+		private final long[] table;
+		private final int tableMask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int expectedEntries) {
+			int length = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+			table = new long[length];
+			tableMask = length - 1;
+			sampleSize = 10 * length;
+		}
+
+		int frequency(String key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		void increment(String key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				added |= incrementAt(indexOf(hash, i), start + i);
+			}
+			if (added && ++additions == sampleSize) {
+				reset();
+			}
+		}
+
+		private boolean incrementAt(int index, int counter) {
+			int offset = counter << 2;
+			long mask = 0xfL << offset;
+			if ((table[index] & mask) != mask) {
+				table[index] += 1L << offset;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Halve every counter
+		 */
+		private void reset() {
+			int odd = 0;
+			for (int i = 0; i < table.length; i++) {
+				odd += Long.bitCount(table[i] & ONE_MASK);
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			additions = (additions - (odd >>> 2)) >>> 1;
+		}
+
+		private int indexOf(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return ((int) h) & tableMask;
+		}
+
+		private static int spread(int x) {
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A cached response: the hash addressing its body in the SegmentStore, the
+ * end to end headers it was received with and when it was received.
+ *
+ * Freshness follows RFC 9111 for a shared cache. The lifetime comes from
+ * s-maxage, max-age, Expires, or 10% of the time since Last-Modified when the
+ * origin gave none. A stale response is revalidated with the ETag and
+ * Last-Modified it was stored with, and a 304 refreshes it in place.
+ */
+public class CachedResponse implements Serializable {
+	private static final long serialVersionUID = 2L;
+
+	// Upper bound of a heuristic freshness lifetime
+	private static final long MAX_HEURISTIC_LIFETIME = 24 * 3600 * 1000L;
+
+	// Binary form kept in the cache Journal
+	static final Journal.Codec<CachedResponse> CODEC = new Journal.Codec<CachedResponse>() {
+		@Override
+		public void write(DataOutput out, CachedResponse response) throws IOException {
+			out.writeUTF(response.hash);
+			out.writeLong(response.length);
+			out.writeLong(response.requestTime);
+			out.writeLong(response.responseTime);
+			out.writeShort(response.headers.fields().size());
+			for (String[] field : response.headers.fields()) {
+				out.writeUTF(field[0]);
+				out.writeUTF(field[1]);
+			}
+		}
+
+		@Override
+		public CachedResponse read(DataInput in) throws IOException {
+			String hash = in.readUTF();
+			long length = in.readLong();
+			long requestTime = in.readLong();
+			long responseTime = in.readLong();
+			HttpHeaders headers = new HttpHeaders();
+			for (int fields = in.readUnsignedShort(); fields > 0; fields--) {
+				headers.add(in.readUTF(), in.readUTF());
+			}
+			return new CachedResponse(hash, length, headers, requestTime, responseTime);
+		}
+	};
+
+	// SHA-256 of the body in the SegmentStore
+	final String hash;
+	final long length;
+	final HttpHeaders headers;
+	// When the request was sent and the response received, in milliseconds
+	final long requestTime;
+	final long responseTime;
+
+	/**
+	 * @param hash         hash of the stored body
+	 * @param length       body length
+	 * @param headers      end to end headers of the response, without framing
+	 * @param requestTime  time the request was sent
+	 * @param responseTime time the response head was received
+	 */
+	public CachedResponse(String hash, long length, HttpHeaders headers, long requestTime, long responseTime) {
+		this.hash = hash;
+		this.length = length;
+		this.headers = headers;
+		this.requestTime = requestTime;
+		this.responseTime = responseTime;
+	}
+
+	/**
+	 * A shared cache may store a 200 response to a GET unless either side
+	 * forbids it or the response varies on every request
+	 *
+	 * @param method   method of the client request
+	 * @param request  headers of the client request
+	 * @param response headers of the origin response
+	 * @return true if the response may be cached
+	 */
+	public static boolean isStorable(String method, HttpHeaders request, HttpHeaders response) {
+		return method.equals("GET") && directive(request, "no-store") == null && directive(response, "no-store") == null
+				&& directive(response, "private") == null && !response.hasToken("Vary", "*");
+	}
+
+	/**
+	 * Check the response can be served without asking the origin, both for
+	 * its own lifetime and the requirements of the client request
+	 *
+	 * @param request headers of the client request
+	 * @param now     current time in milliseconds
+	 * @return true if fresh
+	 */
+	public boolean isFresh(HttpHeaders request, long now) {
+		if (directive(headers, "no-cache") != null || directive(request, "no-cache") != null
+				|| (request.get("Cache-Control") == null && request.hasToken("Pragma", "no-cache"))) {
+			return false;
+		}
+		long age = currentAge(now);
+		long maxAge = seconds(directive(request, "max-age"));
+		if (maxAge >= 0 && age > maxAge * 1000) {
+			return false;
+		}
+		return freshnessLifetime() > age;
+	}
+
+	/**
+	 * @return milliseconds the response stays fresh after it was generated
+	 */
+	public long freshnessLifetime() {
+		long lifetime = seconds(directive(headers, "s-maxage"));
+		if (lifetime < 0) {
+			lifetime = seconds(directive(headers, "max-age"));
+		}
+		if (lifetime >= 0) {
+			return lifetime * 1000;
+		}
+
+		long date = dateValue();
+		String expires = headers.get("Expires");
+		if (expires != null) {
+			// An invalid date means already expired
+			long expiresTime = parseDate(expires);
+			return expiresTime < 0 ? 0 : Math.max(0, expiresTime - date);
+		}
+
+		long lastModified = parseDate(headers.get("Last-Modified"));
+		if (lastModified >= 0 && lastModified < date) {
+			return Math.min(MAX_HEURISTIC_LIFETIME, (date - lastModified) / 10);
+		}
+		return 0;
+	}
+
+	/**
+	 * Age of the response: the age it had when received, corrected for the
+	 * network delay, plus the time it has spent in the cache
+	 *
+	 * @param now current time in milliseconds
+	 * @return milliseconds
+	 */
+	public long currentAge(long now) {
+		long apparentAge = Math.max(0, responseTime - dateValue());
+		long ageValue = Math.max(0, seconds(headers.get("Age"))) * 1000;
+		long correctedAge = ageValue + (responseTime - requestTime);
+		return Math.max(apparentAge, correctedAge) + (now - responseTime);
+	}
+
+	/**
+	 * @return If-None-Match and If-Modified-Since for the validators of the
+	 *         response, empty if it has none
+	 */
+	public HttpHeaders conditionalHeaders() {
+		HttpHeaders conditional = new HttpHeaders();
+		String etag = headers.get("ETag");
+		if (etag != null) {
+			conditional.add("If-None-Match", etag);
+		}
+		String lastModified = headers.get("Last-Modified");
+		if (lastModified != null) {
+			conditional.add("If-Modified-Since", lastModified);
+		}
+		return conditional;
+	}
+
+	/**
+	 * Response refreshed by a 304 of the origin: the fields of the 304 replace
+	 * the stored ones and the age starts over
+	 *
+	 * @param notModified  end to end headers of the 304
+	 * @param requestTime  time the conditional request was sent
+	 * @param responseTime time the 304 was received
+	 * @return CachedResponse on the same body
+	 */
+	public CachedResponse revalidated(HttpHeaders notModified, long requestTime, long responseTime) {
+		HttpHeaders updated = new HttpHeaders();
+		for (String[] field : headers.fields()) {
+			if (notModified.get(field[0]) == null) {
+				updated.add(field[0], field[1]);
+			}
+		}
+		for (String[] field : notModified.fields()) {
+			if (!field[0].equalsIgnoreCase("Content-Length")) {
+				updated.add(field[0], field[1]);
+			}
+		}
+		return new CachedResponse(hash, length, updated, requestTime, responseTime);
+	}
+
+	private long dateValue() {
+		long date = parseDate(headers.get("Date"));
+		return date < 0 ? responseTime : date;
+	}
+
+	/**
+	 * Value of a Cache-Control directive
+	 *
+	 * @param headers request or response headers
+	 * @param name    directive name
+	 * @return value without quotes, "" for a directive without value, null if
+	 *         absent
+	 */
+	static String directive(HttpHeaders headers, String name) {
+		for (String[] field : headers.fields()) {
+			if (!field[0].equalsIgnoreCase("Cache-Control")) {
+				continue;
+			}
+			for (String part : field[1].split(",")) {
+				part = part.trim();
+				int equals = part.indexOf('=');
+				String directive = equals < 0 ? part : part.substring(0, equals).trim();
+				if (directive.equalsIgnoreCase(name)) {
+					return equals < 0 ? "" : part.substring(equals + 1).trim().replace("\"", "");
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return delta-seconds value, -1 if absent or invalid
+	 */
+	private static long seconds(String value) {
+		if (value == null || value.isEmpty()) {
+			return -1;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		} catch (NumberFormatException e) {
+			// Too large values mean a very long time
+			return value.trim().chars().allMatch(Character::isDigit) ? Integer.MAX_VALUE : -1;
+		}
+	}
+
+	/**
+	 * @return HTTP date in milliseconds, -1 if absent or invalid
+	 */
+	private static long parseDate(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * In memory cache of ready to use SSLContexts, one per intercepted host.
+ *
+ * Creation is single flight: the first connection to a new host mints its
+ * certificate while every concurrent connection to the same host waits for
+ * that result instead of minting its own.
+ * Minted certificates are also kept in one PKCS12 store, so after a restart
+ * a host is served from the store (whose alias index is read once at start)
+ * rather than minted again or parsed from loose PEM files.
+ */
+public class CertCache {
+
+	/**
+	 * Source of the certificate of a host not found in the store
+	 */
+	public interface Minter {
+		CertificateAuthority.Leaf mint(String host) throws GeneralSecurityException, IOException;
+	}
+
+	// Number of entries looked at to pick the least recently used one to evict
+	private static final int EVICTION_SAMPLE = 16;
+
+	private final Map<String, Entry> contexts = new ConcurrentHashMap<>();
+	private final int maxEntries;
+	private final Minter minter;
+
+	private final File storeFile;
+	private final char[] storePassword;
+	private final KeyStore store;
+	private final AtomicBoolean storeDirty = new AtomicBoolean();
+	private final ScheduledExecutorService storeWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "cert-store-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @param maxEntries    maximum number of SSLContexts kept in memory
+	 * @param storeFile     PKCS12 file backing the cache
+	 * @param storePassword password of the store and of its keys
+	 * @param minter        creates the certificate of unknown hosts
+	 * @throws GeneralSecurityException if the store cannot be read
+	 * @throws IOException              if the store file cannot be read
+	 */
+	public CertCache(int maxEntries, File storeFile, char[] storePassword, Minter minter)
+			throws GeneralSecurityException, IOException {
+		this.maxEntries = maxEntries;
+		this.minter = minter;
+		this.storeFile = storeFile;
+		this.storePassword = storePassword;
+		this.store = KeyStore.getInstance("PKCS12");
+		if (storeFile.exists()) {
+			try (InputStream in = new FileInputStream(storeFile)) {
+				store.load(in, storePassword);
+			}
+			System.out.println("Loaded " + store.size() + " certificates from " + storeFile);
+		} else {
+			store.load(null, storePassword);
+		}
+	}
+
+	/**
+	 * Return the SSLContext serving a host, creating it on first use
+	 *
+	 * @param host host name or IP address
+	 * @return SSLContext
+	 * @throws IOException if the certificate could not be obtained
+	 */
+	public SSLContext get(String host) throws IOException {
+		Entry entry = contexts.get(host);
+		boolean creator = false;
+		if (entry == null) {
+			Entry created = new Entry();
+			entry = contexts.putIfAbsent(host, created);
+			if (entry == null) {
+				entry = created;
+				creator = true;
+			}
+		}
+		entry.lastAccess = System.nanoTime();
+
+		if (creator) {
+			try {
+				entry.context.complete(create(host));
+			} catch (GeneralSecurityException | IOException | RuntimeException e) {
+				// Do not keep the failure, the next connection tries again
+				contexts.remove(host, entry);
+				entry.context.completeExceptionally(e);
+			}
+			evictIfFull();
+		}
+
+		try {
+			return entry.context.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Cannot create certificate for " + host, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for certificate of " + host, e);
+		}
+	}
+
+	/**
+	 * @return number of SSLContexts in memory
+	 */
+	public int size() {
+		return contexts.size();
+	}
+
+	/**
+	 * Load the host from the store or mint it, then build its SSLContext
+	 */
+	private SSLContext create(String host) throws GeneralSecurityException, IOException {
+		PrivateKey key;
+		X509Certificate[] chain;
+		synchronized (store) {
+			key = (PrivateKey) store.getKey(host, storePassword);
+			Certificate[] stored = store.getCertificateChain(host);
+			chain = stored == null ? null : toX509(stored);
+		}
+		if (key == null || chain == null || isExpired(chain[0])) {
+			CertificateAuthority.Leaf leaf = minter.mint(host);
+			key = leaf.key;
+			chain = leaf.chain;
+			synchronized (store) {
+				store.setKeyEntry(host, key, storePassword, chain);
+			}
+			scheduleStoreWrite();
+		}
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(new KeyManager[] { new SingleKeyManager(host, key, chain) }, null, null);
+		// Returning clients resume their session instead of a full handshake
+		context.getServerSessionContext().setSessionCacheSize(ProxyConfig.TLS_SESSION_CACHE_SIZE);
+		context.getServerSessionContext().setSessionTimeout(ProxyConfig.TLS_SESSION_TIMEOUT);
+		return context;
+	}
+
+	private static X509Certificate[] toX509(Certificate[] chain) {
+		X509Certificate[] x509 = new X509Certificate[chain.length];
+		for (int i = 0; i < chain.length; i++) {
+			x509[i] = (X509Certificate) chain[i];
+		}
+		return x509;
+	}
+
+	private static boolean isExpired(X509Certificate cert) {
+		// Renew a day early so a cached context never serves an expired certificate
+		return cert.getNotAfter().getTime() < System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+	}
+
+	/**
+	 * Drop the least recently used of a sample of entries while over capacity
+	 */
+	private void evictIfFull() {
+		while (contexts.size() > maxEntries) {
+			String oldest = null;
+			long oldestAccess = Long.MAX_VALUE;
+			Iterator<Map.Entry<String, Entry>> it = contexts.entrySet().iterator();
+			for (int i = 0; i < EVICTION_SAMPLE && it.hasNext(); i++) {
+				Map.Entry<String, Entry> candidate = it.next();
+				if (candidate.getValue().context.isDone() && candidate.getValue().lastAccess < oldestAccess) {
+					oldest = candidate.getKey();
+					oldestAccess = candidate.getValue().lastAccess;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			contexts.remove(oldest);
+		}
+	}
+
+	/**
+	 * Write the store in the background, once for a burst of new hosts
+	 */
+	private void scheduleStoreWrite() {
+		if (storeDirty.compareAndSet(false, true)) {
+			storeWriter.schedule(this::writeStore, 2, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Write the store to a temporary file then move it in place so a crash never
+	 * leaves a truncated store. It holds the keys of every host, so only its
+	 * owner may read it.
+	 */
+	public void writeStore() {
+		if (!storeDirty.getAndSet(false)) {
+			return;
+		}
+		File tmp = new File(storeFile.getPath() + ".tmp");
+		try {
+			synchronized (store) {
+				try (OutputStream out = CertificateAuthority.openPrivate(tmp)) {
+					store.store(out, storePassword);
+				}
+			}
+			Files.move(tmp.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (GeneralSecurityException | IOException e) {
+			System.out.println("Error saving certificate store " + storeFile);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Cached SSLContext of a host, completed by the thread that created it
+	 */
+	private static class Entry {
+		final CompletableFuture<SSLContext> context = new CompletableFuture<>();
+		volatile long lastAccess;
+	}
+
+	/**
+	 * Key manager always presenting the one certificate of its host
+	 */
+	static class SingleKeyManager extends X509ExtendedKeyManager {
+		private final String alias;
+		private final PrivateKey key;
+		private final X509Certificate[] chain;
+
+		SingleKeyManager(String alias, PrivateKey key, X509Certificate[] chain) {
+			this.alias = alias;
+			this.key = key;
+			this.chain = chain;
+		}
+
+		@Override
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			return matches(keyType) ? alias : null;
+		}
+
+		@Override
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			return matches(keyType) ? alias : null;
+		}
+
+		/**
+		 * Key types look like "EC", "RSA" or "EC_EC" for the TLS 1.2 ECDH suites
+		 */
+		private boolean matches(String keyType) {
+			String algorithm = key.getAlgorithm();
+			return keyType.equals(algorithm) || keyType.startsWith(algorithm + "_");
+		}
+
+		@Override
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			return new String[] { alias };
+		}
+
+		@Override
+		public X509Certificate[] getCertificateChain(String alias) {
+			return chain;
+		}
+
+		@Override
+		public PrivateKey getPrivateKey(String alias) {
+			return key;
+		}
+
+		@Override
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			return null;
+		}
+
+		@Override
+		public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+			return null;
+		}
+	}
+}
@@ -2,19 +2,47 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
 
 public class CertHandler {
     private static String OS = System.getProperty("os.name").toLowerCase();
-    private final String mkcertPath = "/home/ltchr/Documents/proxy_tls/java-proxy-server/mkcertLinux";
+    private final String mkcertPath;
+    private final boolean inProcess;
+    private CertCache certCache;
 
     public CertHandler() {
+        this(ProxyConfig.MKCERT_PATH, ProxyConfig.CERT_MINT.equalsIgnoreCase("inprocess"));
+    }
+
+    /**
+     * Certificate handler forking the given mkcert binary
+     * 
+     * @param mkcertPath path of mkcert
+     */
+    public CertHandler(String mkcertPath) {
+        this(mkcertPath, false);
+    }
+
+    private CertHandler(String mkcertPath, boolean inProcess) {
+        this.mkcertPath = mkcertPath;
+        this.inProcess = inProcess;
     }
 
     /**
 	 * Install the keystore at $HOME/.local/share/mkcert/ for linux user only
+	 * When minting in process, load the CA once instead
 	 */
     public void mkCert() {
-        if (isOnWin()) {
+        if (inProcess) {
+            try {
+                CertificateAuthority.get();
+            } catch (GeneralSecurityException | IOException e) {
+                System.out.println("Error loading the certificate authority");
+                e.printStackTrace();
+            }
+        } else if (isOnWin()) {
             System.out.println("Please manually install mkcert or use linux");
         } else {
             runCommand(mkcertPath, "-install");
@@ -24,16 +52,70 @@ public class CertHandler {
 
     /**
 	 * Generate certificate url 
+	 * Certificates are cached in memory and in the certificate store, a host is
+	 * only minted on its first request
 	 * 
 	 * @param urlString parsed urlString
+	 * @return SSLContext presenting the certificate of the host, null on error
 	 */
-    public void genCert(String urlString) {
-        File file = new File(urlString+".pem");
-        if (!file.exists()) {
-            System.out.println("Creating cert");
-            runCommand(mkcertPath, urlString);    
-        } else{
-            System.out.println("Using cached certificate");
+    public SSLContext genCert(String urlString) {
+        long start = System.nanoTime();
+        try {
+            return getCertCache().get(urlString);
+        } catch (GeneralSecurityException | IOException e) {
+            Metrics.CERT_ERRORS.increment();
+            System.out.println("Error creating cert for " + urlString);
+            e.printStackTrace();
+            return null;
+        } finally {
+            Metrics.CERT_LOOKUP.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Create the certificate cache on first use
+     * 
+     * @return CertCache
+     * @throws GeneralSecurityException if the certificate store cannot be read
+     * @throws IOException if the certificate store file cannot be read
+     */
+    private synchronized CertCache getCertCache() throws GeneralSecurityException, IOException {
+        if (certCache == null) {
+            certCache = new CertCache(ProxyConfig.CERT_CACHE_SIZE, new File(ProxyConfig.CERT_STORE),
+                    ProxyConfig.CERT_STORE_PASSWORD.toCharArray(), this::mintCert);
+        }
+        return certCache;
+    }
+
+    /**
+     * Create the certificate of a host unknown to the certificate store
+     * 
+     * @param host host of the certificate
+     * @return CertificateAuthority.Leaf
+     * @throws GeneralSecurityException if the certificate cannot be created
+     * @throws IOException if mkcert output cannot be read
+     */
+    private CertificateAuthority.Leaf mintCert(String host) throws GeneralSecurityException, IOException {
+        System.out.println("Creating cert");
+        long start = System.nanoTime();
+        CertificateAuthority.Leaf leaf;
+        if (inProcess) {
+            leaf = CertificateAuthority.get().mint(host);
+        } else {
+            runCommand(mkcertPath, host);
+            leaf = CertificateAuthority.Leaf.readPem(new File(host + ".pem"), new File(host + "-key.pem"));
+        }
+        Metrics.CERT_MINT.record(System.nanoTime() - start);
+        Metrics.CERTS_MINTED.increment();
+        return leaf;
+    }
+
+    /**
+     * Write certificates minted since the last save to the certificate store
+     */
+    public synchronized void saveCerts() {
+        if (certCache != null) {
+            certCache.writeStore();
         }
     }
 
@@ -0,0 +1,386 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Certificate authority living in the JVM.
+ * The CA key is loaded once, from the mkcert CAROOT when mkcert was installed
+ * so browsers already trusting it keep doing so, and per host leaf
+ * certificates are then built and signed directly without forking mkcert.
+ * If no CA exists yet one is created in the CAROOT for the user to install.
+ */
+public class CertificateAuthority {
+	private static CertificateAuthority authority;
+
+	private static final String SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+	private static final String SHA256_WITH_ECDSA = "1.2.840.10045.4.3.2";
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final PrivateKey caKey;
+	private final X509Certificate caCert;
+
+	/**
+	 * Return the shared authority, loading or creating the CA on first use
+	 *
+	 * @return CertificateAuthority
+	 * @throws GeneralSecurityException if the CA cannot be parsed
+	 * @throws IOException              if the CA files cannot be read or written
+	 */
+	public static synchronized CertificateAuthority get() throws GeneralSecurityException, IOException {
+		if (authority == null) {
+			authority = load(caRoot());
+		}
+		return authority;
+	}
+
+	/**
+	 * Directory holding rootCA.pem and rootCA-key.pem, same lookup as mkcert
+	 *
+	 * @return File
+	 */
+	static File caRoot() {
+		String caRoot = System.getenv("CAROOT");
+		if (caRoot != null) {
+			return new File(caRoot);
+		}
+		String dataHome = System.getenv("XDG_DATA_HOME");
+		if (dataHome == null) {
+			dataHome = System.getProperty("user.home") + "/.local/share";
+		}
+		return new File(dataHome, "mkcert");
+	}
+
+	/**
+	 * Load the CA stored in a directory, creating it when missing
+	 *
+	 * @param caRoot directory of the CA
+	 * @return CertificateAuthority
+	 * @throws GeneralSecurityException if the CA cannot be parsed
+	 * @throws IOException              if the CA files cannot be read or written
+	 */
+	static CertificateAuthority load(File caRoot) throws GeneralSecurityException, IOException {
+		File certFile = new File(caRoot, "rootCA.pem");
+		File keyFile = new File(caRoot, "rootCA-key.pem");
+		if (!certFile.exists() || !keyFile.exists()) {
+			System.out.println("No CA found in " + caRoot + " - creating one, install " + certFile
+					+ " in your browser");
+			Leaf ca = createRoot();
+			caRoot.mkdirs();
+			ca.writePem(certFile, keyFile);
+			return new CertificateAuthority(ca.key, ca.chain[0]);
+		}
+
+		Leaf ca = Leaf.readPem(certFile, keyFile);
+		return new CertificateAuthority(ca.key, ca.chain[0]);
+	}
+
+	CertificateAuthority(PrivateKey caKey, X509Certificate caCert) {
+		this.caKey = caKey;
+		this.caCert = caCert;
+	}
+
+	/**
+	 * @return certificate of the CA
+	 */
+	public X509Certificate getCertificate() {
+		return caCert;
+	}
+
+	/**
+	 * Build and sign a leaf certificate for a host name or IP address
+	 *
+	 * @param host host the certificate is valid for
+	 * @return Leaf with its private key and chain
+	 * @throws GeneralSecurityException if key generation or signing fails
+	 */
+	public Leaf mint(String host) throws GeneralSecurityException {
+		KeyPair keyPair = newEcKeyPair();
+		Date notBefore = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+		// Browsers refuse leaf certificates valid for more than 398 days
+		Date notAfter = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(397));
+
+		byte[] keyUsage = caKey instanceof RSAKey || keyPair.getPublic() instanceof RSAKey
+				? new byte[] { (byte) 0xa0 } // digitalSignature, keyEncipherment
+				: new byte[] { (byte) 0x80 }; // digitalSignature
+		byte[] extensions = Der.sequence(
+				extension("2.5.29.15", true, Der.bitString(keyUsage)),
+				extension("2.5.29.37", false, Der.sequence(Der.oid("1.3.6.1.5.5.7.3.1"))),
+				extension("2.5.29.19", true, Der.sequence()),
+				authorityKeyIdentifier(),
+				extension("2.5.29.17", false, Der.sequence(subjectAltName(host))));
+
+		byte[] subject = Der.sequence(
+				rdn("2.5.4.10", "InterceptionTLSProxy"),
+				rdn("2.5.4.3", host));
+
+		X509Certificate cert = sign(caKey, caCert.getSubjectX500Principal().getEncoded(), subject,
+				keyPair.getPublic(), notBefore, notAfter, extensions);
+		return new Leaf(keyPair.getPrivate(), new X509Certificate[] { cert, caCert });
+	}
+
+	/**
+	 * Create a self signed CA certificate
+	 *
+	 * @return Leaf holding the CA key and certificate
+	 * @throws GeneralSecurityException if key generation or signing fails
+	 */
+	static Leaf createRoot() throws GeneralSecurityException {
+		KeyPair keyPair = newEcKeyPair();
+		Date notBefore = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+		Date notAfter = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(3650));
+		byte[] name = Der.sequence(
+				rdn("2.5.4.10", "InterceptionTLSProxy"),
+				rdn("2.5.4.3", "InterceptionTLSProxy CA " + System.getProperty("user.name")));
+		byte[] extensions = Der.sequence(
+				extension("2.5.29.15", true, Der.bitString(new byte[] { (byte) 0x06 })), // keyCertSign, cRLSign
+				extension("2.5.29.19", true, Der.sequence(Der.bool(true), Der.integer(0))),
+				extension("2.5.29.14", false, Der.octetString(keyIdentifier(keyPair.getPublic()))));
+		X509Certificate cert = sign(keyPair.getPrivate(), name, name, keyPair.getPublic(), notBefore,
+				notAfter, extensions);
+		return new Leaf(keyPair.getPrivate(), new X509Certificate[] { cert });
+	}
+
+	private static KeyPair newEcKeyPair() throws GeneralSecurityException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(new ECGenParameterSpec("secp256r1"));
+		return generator.generateKeyPair();
+	}
+
+	/**
+	 * Assemble the TBSCertificate, sign it and parse the result back
+	 */
+	private static X509Certificate sign(PrivateKey signer, byte[] issuer, byte[] subject, PublicKey publicKey,
+			Date notBefore, Date notAfter, byte[] extensions) throws GeneralSecurityException {
+		boolean rsa = signer instanceof RSAKey;
+		byte[] algorithm = rsa
+				? Der.sequence(Der.oid(SHA256_WITH_RSA), Der.nullValue())
+				: Der.sequence(Der.oid(SHA256_WITH_ECDSA));
+
+		byte[] serial = new byte[16];
+		RANDOM.nextBytes(serial);
+
+		byte[] tbs = Der.sequence(
+				Der.tagged(0, true, Der.integer(2)), // v3
+				Der.integer(new BigInteger(1, serial)),
+				algorithm,
+				issuer,
+				Der.sequence(Der.time(notBefore), Der.time(notAfter)),
+				subject,
+				publicKey.getEncoded(),
+				Der.tagged(3, true, extensions));
+
+		Signature signature = Signature.getInstance(rsa ? "SHA256withRSA" : "SHA256withECDSA");
+		signature.initSign(signer);
+		signature.update(tbs);
+		byte[] der = Der.sequence(tbs, algorithm, Der.bitString(signature.sign()));
+
+		return (X509Certificate) CertificateFactory.getInstance("X.509")
+				.generateCertificate(new ByteArrayInputStream(der));
+	}
+
+	private static byte[] rdn(String type, String value) {
+		return Der.set(Der.sequence(Der.oid(type), Der.utf8String(value)));
+	}
+
+	private static byte[] extension(String oid, boolean critical, byte[] value) {
+		if (critical) {
+			return Der.sequence(Der.oid(oid), Der.bool(true), Der.octetString(value));
+		}
+		return Der.sequence(Der.oid(oid), Der.octetString(value));
+	}
+
+	/**
+	 * iPAddress entry for IP literals, dNSName otherwise
+	 */
+	private static byte[] subjectAltName(String host) throws GeneralSecurityException {
+		if (host.matches("[0-9.]+") || host.indexOf(':') >= 0) {
+			try {
+				return Der.tagged(7, false, InetAddress.getByName(host).getAddress());
+			} catch (IOException e) {
+				throw new GeneralSecurityException("Invalid IP address " + host, e);
+			}
+		}
+		return Der.tagged(2, false, host.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Key identifier of the CA so clients can link the leaf to its issuer
+	 */
+	private byte[] authorityKeyIdentifier() throws GeneralSecurityException {
+		byte[] keyId = caCert.getExtensionValue("2.5.29.14");
+		if (keyId != null) {
+			// OCTET STRING wrapping the encoded OCTET STRING of the identifier
+			keyId = contents(contents(keyId));
+		} else {
+			keyId = keyIdentifier(caCert.getPublicKey());
+		}
+		return extension("2.5.29.35", false, Der.sequence(Der.tagged(0, false, keyId)));
+	}
+
+	/**
+	 * SHA-1 of the encoded public key, as recommended by RFC 5280
+	 */
+	private static byte[] keyIdentifier(PublicKey key) throws GeneralSecurityException {
+		return MessageDigest.getInstance("SHA-1").digest(key.getEncoded());
+	}
+
+	/**
+	 * Strip the tag and length of a DER value
+	 */
+	private static byte[] contents(byte[] der) {
+		int offset = 2;
+		if ((der[1] & 0x80) != 0) {
+			offset += der[1] & 0x7f;
+		}
+		byte[] contents = new byte[der.length - offset];
+		System.arraycopy(der, offset, contents, 0, contents.length);
+		return contents;
+	}
+
+	static byte[] readPem(File file) throws IOException {
+		String pem = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+		String base64 = pem.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+		return Base64.getDecoder().decode(base64);
+	}
+
+	/**
+	 * Open a file holding private keys for writing, readable by its owner only
+	 * where the file system has POSIX permissions. An existing file is
+	 * truncated and restricted the same way.
+	 *
+	 * @param file file to write
+	 * @return OutputStream
+	 * @throws IOException if the file cannot be created
+	 */
+	static OutputStream openPrivate(File file) throws IOException {
+		Path path = file.toPath();
+		if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Set<PosixFilePermission> owner = PosixFilePermissions.fromString("rw-------");
+			try {
+				Files.createFile(path, PosixFilePermissions.asFileAttribute(owner));
+			} catch (FileAlreadyExistsException e) {
+				Files.setPosixFilePermissions(path, owner);
+			}
+		}
+		return Files.newOutputStream(path);
+	}
+
+	/**
+	 * Private key and certificate chain issued for a host
+	 */
+	public static class Leaf {
+		final PrivateKey key;
+		final X509Certificate[] chain;
+
+		Leaf(PrivateKey key, X509Certificate[] chain) {
+			this.key = key;
+			this.chain = chain;
+		}
+
+		/**
+		 * Read a certificate and its PKCS#8 key from PEM files, as written by mkcert
+		 *
+		 * @param certFile certificate file
+		 * @param keyFile  private key file
+		 * @return Leaf
+		 * @throws GeneralSecurityException if the files cannot be parsed
+		 * @throws IOException              if a file cannot be read
+		 */
+		public static Leaf readPem(File certFile, File keyFile) throws GeneralSecurityException, IOException {
+			X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+					.generateCertificate(new ByteArrayInputStream(Files.readAllBytes(certFile.toPath())));
+			PrivateKey key = KeyFactory.getInstance(cert.getPublicKey().getAlgorithm())
+					.generatePrivate(new PKCS8EncodedKeySpec(CertificateAuthority.readPem(keyFile)));
+			return new Leaf(key, new X509Certificate[] { cert });
+		}
+
+		/**
+		 * Write the certificate and key as PEM files, with the names mkcert uses
+		 *
+		 * @param certFile destination of the certificate
+		 * @param keyFile  destination of the private key
+		 * @throws IOException if a file cannot be written
+		 */
+		public void writePem(File certFile, File keyFile) throws IOException {
+			try {
+				try (Writer writer = new FileWriter(certFile)) {
+					writer.write(pem("CERTIFICATE", chain[0].getEncoded()));
+				}
+				try (Writer writer = new OutputStreamWriter(openPrivate(keyFile), StandardCharsets.US_ASCII)) {
+					writer.write(pem("PRIVATE KEY", key.getEncoded()));
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Cannot encode certificate", e);
+			}
+		}
+
+		private static String pem(String type, byte[] der) {
+			Base64.Encoder encoder = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII));
+			return "-----BEGIN " + type + "-----\n" + encoder.encodeToString(der) + "\n-----END " + type
+					+ "-----\n";
+		}
+	}
+
+	/**
+	 * Compare minting certificates in process with forking mkcert
+	 * Usage: java CertificateAuthority [count] [mkcert path]
+	 *
+	 * @param args number of hosts, optional path of mkcert
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		CertificateAuthority ca = get();
+
+		// Warm up the signature providers before timing
+		for (int i = 0; i < 50; i++) {
+			ca.mint("warmup" + i + ".example");
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			ca.mint("host" + i + ".example");
+		}
+		System.out.printf("in process : %.3f ms per certificate%n", (System.nanoTime() - start) / 1e6 / count);
+
+		if (args.length > 1) {
+			CertHandler forked = new CertHandler(args[1]);
+			int forks = Math.min(count, 20);
+			start = System.nanoTime();
+			for (int i = 0; i < forks; i++) {
+				forked.runCommand(args[1], "fork" + i + ".example");
+			}
+			System.out.printf("mkcert fork : %.3f ms per certificate%n", (System.nanoTime() - start) / 1e6 / forks);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes what is written to it in the HTTP/1.1 chunked transfer coding.
+ * Used when the length of a body is not known before it is sent.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	public ChunkedOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	/**
+	 * Write one chunk holding len bytes
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			// An empty chunk would end the body
+			return;
+		}
+		out.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+		out.write(CRLF);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Write the last chunk ending the body. The underlying stream stays open.
+	 *
+	 * @throws IOException if the stream fails
+	 */
+	public void finish() throws IOException {
+		out.write(LAST_CHUNK);
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		flush();
+	}
+}
@@ -0,0 +1,48 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Why a client connection was closed, counted for the stats.
+ * Timeouts are named after the phase of the connection whose deadline passed,
+ * see TimerWheel. Connections still open when the proxy shuts down are not
+ * counted.
+ */
+public enum CloseReason {
+	CLIENT("client", "Connections ended by the client"),
+	ORIGIN("origin", "Tunnels ended by the origin"),
+	ERROR("error", "Connections ended by an error"),
+	HEADER_TIMEOUT("header_timeout", "Connections closed before sending a whole request head in time"),
+	KEEP_ALIVE_TIMEOUT("keep_alive_timeout", "Connections closed idle between two requests"),
+	CONNECT_TIMEOUT("connect_timeout", "Tunnels closed before being set up in time"),
+	HANDSHAKE_TIMEOUT("handshake_timeout", "Intercepted tunnels closed before their TLS handshakes ended"),
+	IDLE_TIMEOUT("idle_timeout", "Tunnels closed after moving no byte for the idle timeout"),
+	LIFETIME_TIMEOUT("lifetime_timeout", "Connections closed at the end of their lifetime");
+
+	final String label;
+	final String help;
+	private final LongAdder count = new LongAdder();
+
+	CloseReason(String label, String help) {
+		this.label = label;
+		this.help = help;
+	}
+
+	void count() {
+		count.increment();
+	}
+
+	long value() {
+		return count.sum();
+	}
+
+	/**
+	 * @return one line with the closures of each reason
+	 */
+	static String report() {
+		StringBuilder text = new StringBuilder("closed by");
+		for (CloseReason reason : values()) {
+			text.append(reason == CLIENT ? " " : ", ").append(reason.label.replace('_', ' ')).append(' ')
+					.append(reason.value());
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,179 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip coding of cached bodies.
+ *
+ * Text bodies the origin sent uncompressed are compressed once, when their
+ * fill completes, and stored that way. A hit is sent as stored to a client
+ * accepting gzip, straight from the page cache, and decompressed on the fly
+ * for the others. Bodies already coded by the origin, or not shrinking
+ * enough, are stored as received.
+ */
+public final class Compression {
+	// Content types compressed, a +json or +xml suffix counts as its base type
+	private static final String[] TYPES = ProxyConfig.CACHE_COMPRESS_TYPES.toLowerCase(Locale.ROOT).split("\\s*,\\s*");
+
+	// A compressed body larger than this share of the original is not worth decompressing
+	private static final double MAX_RATIO = 0.9;
+
+	private Compression() {
+	}
+
+	/**
+	 * @param headers end to end headers of a response
+	 * @param length  length of its body
+	 * @return true if the body should be stored compressed
+	 */
+	static boolean isCompressible(HttpHeaders headers, long length) {
+		if (!ProxyConfig.CACHE_COMPRESS || length < ProxyConfig.CACHE_COMPRESS_MIN_SIZE) {
+			return false;
+		}
+		String encoding = headers.get("Content-Encoding");
+		if (encoding != null && !encoding.trim().equalsIgnoreCase("identity")) {
+			return false;
+		}
+		String type = headers.get("Content-Type");
+		if (type == null) {
+			return false;
+		}
+		type = type.toLowerCase(Locale.ROOT);
+		int end = type.indexOf(';');
+		type = (end < 0 ? type : type.substring(0, end)).trim();
+		if (type.endsWith("+json") || type.endsWith("+xml")) {
+			return true;
+		}
+		for (String compressible : TYPES) {
+			if (type.equals(compressible)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param headers end to end headers of a cached response
+	 * @return true if its body is stored gzip coded
+	 */
+	static boolean isGzip(HttpHeaders headers) {
+		String encoding = headers.get("Content-Encoding");
+		if (encoding == null) {
+			return false;
+		}
+		encoding = encoding.trim();
+		return encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip");
+	}
+
+	/**
+	 * Check the Accept-Encoding of a request allows gzip: listed, or covered by
+	 * *, with a q-value above 0
+	 *
+	 * @param request headers of the client request
+	 * @return true if a gzip coded body can be sent
+	 */
+	static boolean acceptsGzip(HttpHeaders request) {
+		String accept = request.get("Accept-Encoding");
+		if (accept == null) {
+			return false;
+		}
+		double gzip = -1;
+		double any = -1;
+		for (String part : accept.split(",")) {
+			String[] params = part.split(";");
+			String coding = params[0].trim().toLowerCase(Locale.ROOT);
+			double q = 1;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=") || param.startsWith("Q=")) {
+					try {
+						q = Double.parseDouble(param.substring(2).trim());
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			if (coding.equals("gzip") || coding.equals("x-gzip")) {
+				gzip = q;
+			} else if (coding.equals("*")) {
+				any = q;
+			}
+		}
+		return gzip >= 0 ? gzip > 0 : any > 0;
+	}
+
+	/**
+	 * Compress the start of a file into another one
+	 *
+	 * @param source channel of the body
+	 * @param length bytes of the body
+	 * @param target file receiving the gzip member
+	 * @return true if the compressed body is small enough to be kept
+	 * @throws IOException if either file fails
+	 */
+	static boolean gzip(FileChannel source, long length, File target) throws IOException {
+		try (OutputStream out = new LevelGZIPOutputStream(new BufferedOutputStream(new FileOutputStream(target),
+				64 * 1024))) {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			long position = 0;
+			while (position < length) {
+				buffer.clear();
+				if (buffer.remaining() > length - position) {
+					buffer.limit((int) (length - position));
+				}
+				int read = source.read(buffer, position);
+				if (read < 0) {
+					throw new IOException("Body shorter than " + length + " bytes");
+				}
+				out.write(buffer.array(), 0, read);
+				position += read;
+			}
+		}
+		return target.length() <= length * MAX_RATIO;
+	}
+
+	/**
+	 * @param body gzip coded body in the store
+	 * @return stream of the decompressed body
+	 * @throws IOException if the body is not gzip
+	 */
+	static InputStream gunzip(SegmentStore.Body body) throws IOException {
+		InputStream stored = new InputStream() {
+			private long position;
+
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = body.read(ByteBuffer.wrap(b, off, len), position);
+				if (read > 0) {
+					position += read;
+				}
+				return read;
+			}
+		};
+		return new GZIPInputStream(stored, 16 * 1024);
+	}
+
+	/**
+	 * GZIPOutputStream at the level set by proxy.cache.compressLevel
+	 */
+	private static final class LevelGZIPOutputStream extends GZIPOutputStream {
+		LevelGZIPOutputStream(OutputStream out) throws IOException {
+			super(out, 64 * 1024);
+			def.setLevel(ProxyConfig.CACHE_COMPRESS_LEVEL);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps track of the client connections currently open and bounds their
+ * number.
+ * A connection is registered when it is accepted and unregistered when it is
+ * closed, either by its RequestHandler or by the TunnelEngine, so the registry
+ * only ever holds live sockets.
+ */
+public class ConnectionRegistry {
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private final Semaphore slots;
+	private final boolean blockWhenFull;
+
+	/**
+	 * @param maxConnections maximum number of connections open at once
+	 * @param acceptPolicy   "block" to wait for a free slot, "reject" to refuse
+	 *                       the connection
+	 */
+	public ConnectionRegistry(int maxConnections, String acceptPolicy) {
+		this.slots = new Semaphore(maxConnections);
+		this.blockWhenFull = !acceptPolicy.equalsIgnoreCase("reject");
+	}
+
+	/**
+	 * Register a newly accepted connection.
+	 * With the block policy this waits until a slot is free, which stops the
+	 * listener from accepting and leaves new clients in the accept queue.
+	 *
+	 * @param socket accepted client socket
+	 * @return true if registered, false if the connection must be refused
+	 * @throws InterruptedException if interrupted while waiting for a slot
+	 */
+	public boolean register(Socket socket) throws InterruptedException {
+		if (blockWhenFull) {
+			slots.acquire();
+		} else if (!slots.tryAcquire()) {
+			return false;
+		}
+		connections.add(socket);
+		return true;
+	}
+
+	/**
+	 * Remove a closed connection and free its slot. Safe to call more than once.
+	 *
+	 * @param socket client socket
+	 */
+	public void unregister(Socket socket) {
+		if (connections.remove(socket)) {
+			slots.release();
+		}
+	}
+
+	/**
+	 * @return number of connections currently open
+	 */
+	public int size() {
+		return connections.size();
+	}
+
+	/**
+	 * Close every registered connection, which unblocks the handlers serving
+	 * them
+	 */
+	public void closeAll() {
+		for (Socket socket : connections) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			unregister(socket);
+		}
+	}
+}
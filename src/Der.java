@@ -0,0 +1,146 @@
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Minimal DER encoder, just enough to build X.509 certificates.
+ * Every method returns the complete encoding (tag, length and content) of
+ * one ASN.1 value so values can be nested by plain concatenation.
+ */
+public final class Der {
+	static final int INTEGER = 0x02;
+	static final int BIT_STRING = 0x03;
+	static final int OCTET_STRING = 0x04;
+	static final int NULL = 0x05;
+	static final int OID = 0x06;
+	static final int UTF8_STRING = 0x0c;
+	static final int UTC_TIME = 0x17;
+	static final int GENERALIZED_TIME = 0x18;
+	static final int SEQUENCE = 0x30;
+	static final int SET = 0x31;
+	static final int BOOLEAN = 0x01;
+
+	private Der() {
+	}
+
+	/**
+	 * Encode a value from its tag and content
+	 *
+	 * @param tag      ASN.1 tag byte
+	 * @param contents already encoded contents
+	 * @return byte[]
+	 */
+	public static byte[] tlv(int tag, byte[]... contents) {
+		int length = 0;
+		for (byte[] content : contents) {
+			length += content.length;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+		out.write(tag);
+		if (length < 0x80) {
+			out.write(length);
+		} else {
+			int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+			out.write(0x80 | bytes);
+			for (int i = bytes - 1; i >= 0; i--) {
+				out.write(length >>> (8 * i));
+			}
+		}
+		for (byte[] content : contents) {
+			out.write(content, 0, content.length);
+		}
+		return out.toByteArray();
+	}
+
+	public static byte[] sequence(byte[]... values) {
+		return tlv(SEQUENCE, values);
+	}
+
+	public static byte[] set(byte[]... values) {
+		return tlv(SET, values);
+	}
+
+	public static byte[] integer(BigInteger value) {
+		return tlv(INTEGER, value.toByteArray());
+	}
+
+	public static byte[] integer(long value) {
+		return integer(BigInteger.valueOf(value));
+	}
+
+	public static byte[] bool(boolean value) {
+		return tlv(BOOLEAN, new byte[] { (byte) (value ? 0xff : 0) });
+	}
+
+	public static byte[] nullValue() {
+		return tlv(NULL);
+	}
+
+	public static byte[] octetString(byte[] value) {
+		return tlv(OCTET_STRING, value);
+	}
+
+	/**
+	 * @param value bits, no unused bit in the last byte
+	 * @return byte[]
+	 */
+	public static byte[] bitString(byte[] value) {
+		return tlv(BIT_STRING, new byte[] { 0 }, value);
+	}
+
+	public static byte[] utf8String(String value) {
+		return tlv(UTF8_STRING, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Context specific tag, constructed (explicit) or primitive (implicit)
+	 *
+	 * @param number      tag number
+	 * @param constructed true for an explicit tag wrapping other values
+	 * @param contents    content of the tagged value
+	 * @return byte[]
+	 */
+	public static byte[] tagged(int number, boolean constructed, byte[]... contents) {
+		return tlv(0x80 | (constructed ? 0x20 : 0) | number, contents);
+	}
+
+	/**
+	 * @param dotted object identifier such as "2.5.29.17"
+	 * @return byte[]
+	 */
+	public static byte[] oid(String dotted) {
+		String[] arcs = dotted.split("\\.");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		base128(out, Long.parseLong(arcs[0]) * 40 + Long.parseLong(arcs[1]));
+		for (int i = 2; i < arcs.length; i++) {
+			base128(out, Long.parseLong(arcs[i]));
+		}
+		return tlv(OID, out.toByteArray());
+	}
+
+	private static void base128(ByteArrayOutputStream out, long value) {
+		int groups = Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 6) / 7);
+		for (int i = groups - 1; i >= 0; i--) {
+			int group = (int) (value >>> (7 * i)) & 0x7f;
+			out.write(i > 0 ? group | 0x80 : group);
+		}
+	}
+
+	/**
+	 * X.509 time: UTCTime until 2049, GeneralizedTime afterwards
+	 *
+	 * @param date instant to encode
+	 * @return byte[]
+	 */
+	public static byte[] time(Date date) {
+		SimpleDateFormat year = new SimpleDateFormat("yyyy");
+		year.setTimeZone(TimeZone.getTimeZone("UTC"));
+		boolean utc = Integer.parseInt(year.format(date)) < 2050;
+		SimpleDateFormat format = new SimpleDateFormat(utc ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return tlv(utc ? UTC_TIME : GENERALIZED_TIME, format.format(date).getBytes(StandardCharsets.US_ASCII));
+	}
+}
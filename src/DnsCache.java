@@ -0,0 +1,258 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of host name resolutions in front of a pluggable Resolver.
+ *
+ * Answers are kept for their TTL and failures for a shorter negative TTL, so
+ * a dead name does not cost a resolver timeout on every request. Concurrent
+ * lookups of a name share one resolution. Names used since their last
+ * resolution are resolved again in the background shortly before they
+ * expire, so hot names never wait on the resolver. The cache is bounded,
+ * expired entries go first, then the least recently used.
+ */
+public class DnsCache {
+	private static DnsCache cache;
+
+	// Share of the TTL left when a used name is refreshed
+	private static final double REFRESH_AHEAD = 0.2;
+
+	/**
+	 * Source of the addresses of a name, the system resolver by default
+	 */
+	public interface Resolver {
+		/**
+		 * @param host host name or address literal
+		 * @return addresses, never empty
+		 * @throws UnknownHostException if the name does not resolve
+		 */
+		InetAddress[] resolve(String host) throws UnknownHostException;
+
+		/**
+		 * @param host      host name
+		 * @param addresses addresses it resolved to
+		 * @return milliseconds the answer may be cached, -1 for the default TTL
+		 */
+		default long ttlMillis(String host, InetAddress[] addresses) {
+			return -1;
+		}
+	}
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder negativeHits = new LongAdder();
+	final LongAdder failures = new LongAdder();
+	final LongAdder refreshes = new LongAdder();
+
+	private final Resolver resolver;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	private final int maxEntries;
+	private final long timeoutMillis;
+	private final ExecutorService lookups = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "dns-lookup");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "dns-refresher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Return the shared cache, configured from ProxyConfig
+	 *
+	 * @return DnsCache
+	 */
+	public static synchronized DnsCache get() {
+		if (cache == null) {
+			cache = new DnsCache(newResolver(ProxyConfig.DNS_RESOLVER), ProxyConfig.DNS_TTL,
+					ProxyConfig.DNS_NEGATIVE_TTL, ProxyConfig.DNS_MAX_ENTRIES, ProxyConfig.UPSTREAM_CONNECT_TIMEOUT);
+		}
+		return cache;
+	}
+
+	/**
+	 * @param resolver          source of the addresses
+	 * @param ttlMillis         lifetime of an answer the resolver gives no TTL for
+	 * @param negativeTtlMillis lifetime of a failure
+	 * @param maxEntries        names kept at most
+	 * @param timeoutMillis     longest wait for the resolver
+	 */
+	public DnsCache(Resolver resolver, long ttlMillis, long negativeTtlMillis, int maxEntries, long timeoutMillis) {
+		this.resolver = resolver;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.maxEntries = maxEntries;
+		this.timeoutMillis = timeoutMillis;
+		long period = Math.max(100, Math.min(1000, (long) (ttlMillis * REFRESH_AHEAD / 2)));
+		refresher.scheduleWithFixedDelay(this::refresh, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Instantiate the Resolver class named by proxy.dns.resolver
+	 */
+	private static Resolver newResolver(String className) {
+		if (className.isEmpty()) {
+			return InetAddress::getAllByName;
+		}
+		try {
+			return (Resolver) Class.forName(className).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IllegalArgumentException("Cannot use " + className + " as resolver", e);
+		}
+	}
+
+	/**
+	 * Addresses of a host, from the cache while they are fresh
+	 *
+	 * @param host host name or address literal
+	 * @return addresses in the order of the resolver
+	 * @throws UnknownHostException if the name does not resolve, or did not
+	 *                              recently
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(host);
+		if (entry == null || entry.expires <= now) {
+			Entry fresh = new Entry();
+			if (entry == null ? entries.putIfAbsent(host, fresh) == null : entries.replace(host, entry, fresh)) {
+				misses.increment();
+				evictIfFull();
+				lookups.execute(() -> complete(host, fresh));
+			}
+			entry = entries.getOrDefault(host, fresh);
+		} else if (entry.result.isDone()) {
+			(entry.result.join() == null ? negativeHits : hits).increment();
+		}
+		entry.used = true;
+		entry.lastUsed = now;
+		return await(host, entry);
+	}
+
+	private InetAddress[] await(String host, Entry entry) throws UnknownHostException {
+		InetAddress[] addresses;
+		try {
+			addresses = entry.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new UnknownHostException(host + ": resolver timed out");
+		} catch (ExecutionException e) {
+			throw new UnknownHostException(host + ": " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UnknownHostException(host + ": interrupted");
+		}
+		if (addresses == null) {
+			throw new UnknownHostException(host);
+		}
+		return addresses;
+	}
+
+	/**
+	 * Resolve a name into an entry and set how long it lives
+	 */
+	private void complete(String host, Entry entry) {
+		try {
+			InetAddress[] addresses = resolver.resolve(host);
+			long ttl = resolver.ttlMillis(host, addresses);
+			entry.expires = System.currentTimeMillis() + (ttl < 0 ? ttlMillis : ttl);
+			entry.result.complete(addresses);
+		} catch (UnknownHostException e) {
+			failures.increment();
+			entry.expires = System.currentTimeMillis() + negativeTtlMillis;
+			entry.result.complete(null);
+		} catch (RuntimeException e) {
+			failures.increment();
+			entry.expires = System.currentTimeMillis() + negativeTtlMillis;
+			entry.result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Resolve again, in the background, the answers about to expire that were
+	 * used since they were resolved. The old answer is served until the new
+	 * one replaces it.
+	 */
+	private void refresh() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Entry> mapping : entries.entrySet()) {
+			Entry entry = mapping.getValue();
+			if (!entry.used || !entry.result.isDone() || entry.result.join() == null || entry.refreshing) {
+				continue;
+			}
+			long ttl = entry.expires - entry.resolved;
+			if (entry.expires - now < ttl * REFRESH_AHEAD) {
+				entry.refreshing = true;
+				refreshes.increment();
+				String host = mapping.getKey();
+				Entry fresh = new Entry();
+				lookups.execute(() -> {
+					complete(host, fresh);
+					// A failed refresh leaves the old answer to expire
+					if (fresh.result.join() != null) {
+						entries.replace(host, entry, fresh);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Drop expired entries once full, then the least recently used
+	 */
+	private void evictIfFull() {
+		if (entries.size() <= maxEntries) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		entries.values().removeIf(entry -> entry.result.isDone() && entry.expires <= now);
+		while (entries.size() > maxEntries) {
+			Map.Entry<String, Entry> oldest = null;
+			for (Map.Entry<String, Entry> mapping : entries.entrySet()) {
+				if (oldest == null || mapping.getValue().lastUsed < oldest.getValue().lastUsed) {
+					oldest = mapping;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			entries.remove(oldest.getKey(), oldest.getValue());
+		}
+	}
+
+	/**
+	 * @return one line summary of the cache counters
+	 */
+	public String report() {
+		long hitCount = hits.sum() + negativeHits.sum();
+		long total = hitCount + misses.sum();
+		return String.format("dns %d names, hits %d (%d negative) of %d (%.1f%%), failures %d, refreshes %d",
+				entries.size(), hitCount, negativeHits.sum(), total, total == 0 ? 0.0 : 100.0 * hitCount / total,
+				failures.sum(), refreshes.sum());
+	}
+
+	/**
+	 * Answer for one name, null addresses for a failure
+	 */
+	private static class Entry {
+		final CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+		final long resolved = System.currentTimeMillis();
+		// Far in the future until resolved, so lookups wait on the result
+		volatile long expires = Long.MAX_VALUE;
+		volatile long lastUsed = resolved;
+		volatile boolean used;
+		volatile boolean refreshing;
+	}
+}
@@ -0,0 +1,201 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Immutable set of lower case ASCII domain names packed for large lists.
+ *
+ * The names are concatenated in one byte array with an array of their
+ * offsets and an open addressing table of their indexes, about the length of
+ * the name plus 12 bytes per entry where a HashMap of Strings takes well over
+ * 100. A blocked Bloom filter of 10 bits per name, its probes all in one
+ * word, answers most misses with a single memory access. Lookups read a
+ * region of the URL in place and ignore ASCII case, they do not allocate.
+ */
+public final class DomainSet {
+	// Bits set per name in its Bloom filter word
+	private static final int PROBES = 6;
+	private static final int BITS_PER_NAME = 10;
+
+	static final DomainSet EMPTY = new Builder().build();
+
+	private final byte[] names;
+	// Name i spans offsets[i] to offsets[i + 1]
+	private final int[] offsets;
+	// Index + 1 of the name hashed to each slot, 0 for a free slot
+	private final int[] table;
+	private final long[] bloom;
+
+	private DomainSet(byte[] names, int[] offsets, int[] table, long[] bloom) {
+		this.names = names;
+		this.offsets = offsets;
+		this.table = table;
+		this.bloom = bloom;
+	}
+
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * @return bytes taken by the arrays of the set
+	 */
+	public long memoryBytes() {
+		return names.length + offsets.length * 4L + table.length * 4L + bloom.length * 8L;
+	}
+
+	/**
+	 * @param index position in the set, from 0 to size() - 1
+	 * @return name at that position
+	 */
+	public String get(int index) {
+		return new String(names, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @param s    string holding the name, such as a URL
+	 * @param from start of the name in s
+	 * @param to   end of the name in s
+	 * @return true if the name is in the set, ignoring ASCII case
+	 */
+	public boolean contains(String s, int from, int to) {
+		long hash = hash(s, from, to);
+		long word = bloom[bloomWord(hash, bloom.length)];
+		long bits = bloomBits(hash);
+		if ((word & bits) != bits) {
+			return false;
+		}
+		int mask = table.length - 1;
+		for (int slot = (int) hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+			if (matches(s, from, to, table[slot] - 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matches(String s, int from, int to, int index) {
+		int start = offsets[index];
+		if (offsets[index + 1] - start != to - from) {
+			return false;
+		}
+		for (int i = from; i < to; i++) {
+			if (lower(s.charAt(i)) != (names[start++] & 0xff)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int lower(char c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	private static int bloomWord(long hash, int words) {
+		return (int) (hash >>> 32) & (words - 1);
+	}
+
+	private static long bloomBits(long hash) {
+		long mixed = hash * 0x9e3779b97f4a7c15L;
+		long bits = 0;
+		for (int i = 0; i < PROBES; i++) {
+			bits |= 1L << ((mixed >>> (58 - 6 * i)) & 63);
+		}
+		return bits;
+	}
+
+	/**
+	 * 64 bit FNV-1a of the lower case name
+	 */
+	private static long hash(String s, int from, int to) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = from; i < to; i++) {
+			hash ^= lower(s.charAt(i));
+			hash *= 0x100000001b3L;
+		}
+		return hash ^ (hash >>> 29);
+	}
+
+	/**
+	 * Same hash over a packed name
+	 */
+	private static long hash(byte[] bytes, int from, int to) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = from; i < to; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash ^ (hash >>> 29);
+	}
+
+	/**
+	 * Collects names into growing arrays, then packs and indexes them once.
+	 * Holds about twice the final size while building.
+	 */
+	public static final class Builder {
+		private byte[] bytes = new byte[1 << 16];
+		private int used;
+		private int[] starts = new int[1024];
+		private int count;
+
+		/**
+		 * @param name lower case ASCII domain name
+		 */
+		public void add(String name) {
+			if (used + name.length() > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, used + name.length()));
+			}
+			if (count + 1 >= starts.length) {
+				starts = Arrays.copyOf(starts, starts.length * 2);
+			}
+			for (int i = 0; i < name.length(); i++) {
+				bytes[used++] = (byte) name.charAt(i);
+			}
+			starts[count++] = used - name.length();
+			starts[count] = used;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		public DomainSet build() {
+			// At most three quarters full
+			int[] table = new int[Integer.highestOneBit(Math.max(1, count + count / 3)) << 1];
+			int mask = table.length - 1;
+			byte[] names = new byte[used];
+			int[] offsets = new int[count + 1];
+			long[] hashes = new long[count];
+			int size = 0;
+			int packed = 0;
+			for (int i = 0; i < count; i++) {
+				int start = starts[i];
+				int end = starts[i + 1];
+				long hash = hash(bytes, start, end);
+				int slot = (int) hash & mask;
+				boolean duplicate = false;
+				for (; table[slot] != 0; slot = (slot + 1) & mask) {
+					int other = table[slot] - 1;
+					if (Arrays.equals(bytes, start, end, names, offsets[other], offsets[other + 1])) {
+						duplicate = true;
+						break;
+					}
+				}
+				if (duplicate) {
+					continue;
+				}
+				System.arraycopy(bytes, start, names, packed, end - start);
+				offsets[size] = packed;
+				packed += end - start;
+				offsets[size + 1] = packed;
+				hashes[size] = hash;
+				table[slot] = ++size;
+			}
+
+			long[] bloom = new long[Integer.highestOneBit(Math.max(1, size * BITS_PER_NAME / 64 * 2 - 1))];
+			for (int i = 0; i < size; i++) {
+				bloom[bloomWord(hashes[i], bloom.length)] |= bloomBits(hashes[i]);
+			}
+			return new DomainSet(Arrays.copyOf(names, packed), Arrays.copyOf(offsets, size + 1), table, bloom);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory of the executors able to run RequestHandlers.
+ */
+public final class HandlerExecutors {
+
+	private HandlerExecutors() {
+	}
+
+	/**
+	 * Create the executor for the given mode
+	 *
+	 * @param mode "platform" or "virtual"
+	 * @return ExecutorService
+	 */
+	public static ExecutorService create(String mode) {
+		if (mode.equalsIgnoreCase("virtual")) {
+			ExecutorService virtual = virtualThreadPerTask();
+			if (virtual != null) {
+				return virtual;
+			}
+			System.out.println("Virtual threads need Java 21, using platform threads");
+		}
+		return platformThreads();
+	}
+
+	/**
+	 * Platform threads reused between connections, idle ones exit after a minute.
+	 * The pool itself is unbounded: the ConnectionRegistry bounds the number of
+	 * handlers in flight.
+	 *
+	 * @return ExecutorService
+	 */
+	public static ExecutorService platformThreads() {
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = runnable -> {
+			Thread thread = new Thread(runnable, "handler-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), factory);
+	}
+
+	/**
+	 * One virtual thread per handler.
+	 * Looked up reflectively so the proxy still builds and runs on older JDKs.
+	 *
+	 * @return ExecutorService, null if the running JDK has no virtual threads
+	 */
+	public static ExecutorService virtualThreadPerTask() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connects to a host by racing its addresses, after RFC 8305.
+ *
+ * Addresses come from the DnsCache and are tried alternating IPv6 and IPv4,
+ * in the order of the resolver within each family. A new attempt starts each
+ * time the previous one fails or has not succeeded after the attempt delay,
+ * while the earlier ones keep going. The first connection established wins
+ * and the others are closed, so a dead address or a broken IPv6 route costs
+ * the attempt delay instead of a whole connect timeout.
+ */
+public final class HappyEyeballs {
+	static final LongAdder connects = new LongAdder();
+	// Connections won by another address than the first one
+	static final LongAdder fallbacks = new LongAdder();
+	static final LongAdder failures = new LongAdder();
+
+	private HappyEyeballs() {
+	}
+
+	/**
+	 * Open a connection to the first address of a host that answers
+	 *
+	 * @param host          host name or address literal
+	 * @param port          port
+	 * @param timeoutMillis longest time for the whole race
+	 * @return SocketChannel connected, in blocking mode
+	 * @throws IOException if the name does not resolve or no address answers in
+	 *                     time
+	 */
+	public static SocketChannel connect(String host, int port, int timeoutMillis) throws IOException {
+		long start = System.nanoTime();
+		SocketChannel channel = race(host, port, timeoutMillis);
+		Metrics.UPSTREAM_CONNECT.record(System.nanoTime() - start);
+		return channel;
+	}
+
+	private static SocketChannel race(String host, int port, int timeoutMillis) throws IOException {
+		List<InetAddress> addresses = interleave(DnsCache.get().resolve(host));
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		List<SocketChannel> attempts = new ArrayList<>();
+		IOException failure = null;
+		int next = 0;
+		long nextAttempt = 0;
+
+		try (Selector selector = Selector.open()) {
+			while (true) {
+				long now = System.currentTimeMillis();
+				// Start the next attempt when it is due, or at once if none is running
+				if (next < addresses.size() && (now >= nextAttempt || selector.keys().isEmpty())) {
+					InetAddress address = addresses.get(next++);
+					SocketChannel channel = SocketChannel.open();
+					attempts.add(channel);
+					try {
+						channel.configureBlocking(false);
+						if (channel.connect(new InetSocketAddress(address, port))) {
+							return won(channel, attempts, next - 1);
+						}
+						channel.register(selector, SelectionKey.OP_CONNECT, next - 1);
+					} catch (IOException e) {
+						failure = e;
+						channel.close();
+						continue;
+					}
+					nextAttempt = now + ProxyConfig.CONNECT_ATTEMPT_DELAY;
+				}
+				if (selector.keys().isEmpty() && next >= addresses.size()) {
+					break;
+				}
+				long wait = deadline - now;
+				if (next < addresses.size()) {
+					wait = Math.min(wait, nextAttempt - now);
+				}
+				if (now >= deadline) {
+					failure = new SocketTimeoutException("Connect to " + host + ":" + port + " timed out");
+					break;
+				}
+				selector.select(Math.max(1, wait));
+				for (SelectionKey key : selector.selectedKeys()) {
+					SocketChannel channel = (SocketChannel) key.channel();
+					try {
+						if (channel.finishConnect()) {
+							key.cancel();
+							selector.selectNow();
+							return won(channel, attempts, (Integer) key.attachment());
+						}
+					} catch (IOException e) {
+						// This address failed, the next one starts at once
+						failure = e;
+						key.cancel();
+						channel.close();
+						nextAttempt = 0;
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		for (SocketChannel attempt : attempts) {
+			closeQuietly(attempt);
+		}
+		failures.increment();
+		if (failure instanceof SocketTimeoutException) {
+			throw failure;
+		}
+		ConnectException exception = new ConnectException("Cannot connect to " + host + ":" + port);
+		if (failure != null) {
+			exception.initCause(failure);
+		}
+		throw exception;
+	}
+
+	private static SocketChannel won(SocketChannel winner, List<SocketChannel> attempts, int index)
+			throws IOException {
+		for (SocketChannel attempt : attempts) {
+			if (attempt != winner) {
+				closeQuietly(attempt);
+			}
+		}
+		// Its key was cancelled and flushed by a select, so it may block again
+		winner.configureBlocking(true);
+		connects.increment();
+		if (index > 0) {
+			fallbacks.increment();
+		}
+		return winner;
+	}
+
+	/**
+	 * Order addresses IPv6 first, then alternating families
+	 */
+	static List<InetAddress> interleave(InetAddress[] addresses) {
+		List<InetAddress> v6 = new ArrayList<>();
+		List<InetAddress> v4 = new ArrayList<>();
+		for (InetAddress address : addresses) {
+			(address instanceof Inet6Address ? v6 : v4).add(address);
+		}
+		List<InetAddress> ordered = new ArrayList<>(addresses.length);
+		for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+			if (i < v6.size()) {
+				ordered.add(v6.get(i));
+			}
+			if (i < v4.size()) {
+				ordered.add(v4.get(i));
+			}
+		}
+		return ordered;
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	/**
+	 * @return one line summary of the connection races
+	 */
+	public static String report() {
+		return String.format("connects %d, won by a later address %d, failed %d", connects.sum(), fallbacks.sum(),
+				failures.sum());
+	}
+}
@@ -0,0 +1,365 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541).
+ *
+ * The Decoder keeps the dynamic table the client fills as it sends its
+ * requests. Encoding never adds to a dynamic table: a field of the static
+ * table is sent by its index, a field whose name is there refers to it, and
+ * the rest goes as literals, Huffman coded when that makes them shorter. A
+ * response costs a few bytes more than with indexing, but encoding holds no
+ * state, so each stream worker encodes its own headers without taking turns
+ * on a shared table.
+ */
+public final class Hpack {
+	private static final String[][] STATIC_TABLE = {
+			{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+			{ ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+			{ ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+			{ ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+			{ "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+			{ "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+			{ "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+			{ "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+			{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+			{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+			{ "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+			{ "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+			{ "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+			{ "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+			{ "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" },
+			{ "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+	// Index of each static entry with a value, by name and value
+	private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+	// Index of the first static entry of each name
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+	// Huffman code of each octet, then of EOS, right aligned on LENGTHS bits
+	private static final int[] CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+			0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+			0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+			0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+			0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+			0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+			0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+			0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+			0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+			0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+			0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+			0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+			0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+			0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+			0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+			0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+			0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+			0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+			0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+			0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+			0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+			0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+			0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+			0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+			0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+			0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+			0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+			0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+			0x3fffffff
+	};
+	private static final byte[] LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+			28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+			5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+			6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+			24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+			19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+			26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30
+	};
+	private static final int EOS = 256;
+
+	// Decoding tree of the Huffman code: node n has its children at 2n and 2n+1,
+	// a positive entry is the next node, a negative one the symbol -entry - 1
+	private static final int[] TREE = new int[2 * EOS];
+
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+			if (!STATIC_TABLE[i][1].isEmpty()) {
+				STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+			}
+		}
+		int nodes = 1;
+		for (int symbol = 0; symbol <= EOS; symbol++) {
+			int node = 0;
+			for (int bit = LENGTHS[symbol] - 1; bit > 0; bit--) {
+				int branch = 2 * node + ((CODES[symbol] >>> bit) & 1);
+				if (TREE[branch] == 0) {
+					TREE[branch] = nodes++;
+				}
+				node = TREE[branch];
+			}
+			TREE[2 * node + (CODES[symbol] & 1)] = -symbol - 1;
+		}
+	}
+
+	private Hpack() {
+	}
+
+	/**
+	 * Append one field to a header block, without adding it to a table
+	 *
+	 * @param name  field name, in lower case
+	 * @param value field value
+	 * @param out   header block
+	 */
+	static void encode(String name, String value, ByteArrayOutputStream out) {
+		Integer index = STATIC_FIELDS.get(name + '\0' + value);
+		if (index != null) {
+			writeInt(out, 0x80, 7, index);
+			return;
+		}
+		// Literal without indexing, never indexed for the fields carrying credentials
+		int flags = name.equals("set-cookie") || name.equals("authorization") ? 0x10 : 0;
+		index = STATIC_NAMES.get(name);
+		if (index != null) {
+			writeInt(out, flags, 4, index);
+		} else {
+			out.write(flags);
+			writeString(out, name);
+		}
+		writeString(out, value);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+		int max = (1 << prefixBits) - 1;
+		if (value < max) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String text) {
+		long bits = 0;
+		for (int i = 0; i < text.length(); i++) {
+			bits += LENGTHS[text.charAt(i) & 0xff];
+		}
+		int huffmanLength = (int) ((bits + 7) / 8);
+		if (huffmanLength >= text.length()) {
+			writeInt(out, 0, 7, text.length());
+			byte[] raw = text.getBytes(StandardCharsets.ISO_8859_1);
+			out.write(raw, 0, raw.length);
+			return;
+		}
+		writeInt(out, 0x80, 7, huffmanLength);
+		long pending = 0;
+		int pendingBits = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int symbol = text.charAt(i) & 0xff;
+			pending = (pending << LENGTHS[symbol]) | CODES[symbol];
+			pendingBits += LENGTHS[symbol];
+			while (pendingBits >= 8) {
+				pendingBits -= 8;
+				out.write((int) (pending >>> pendingBits));
+			}
+			pending &= (1L << pendingBits) - 1;
+		}
+		if (pendingBits > 0) {
+			// Padded with the first bits of EOS, all ones
+			out.write((int) (pending << (8 - pendingBits)) | (0xff >>> pendingBits));
+		}
+	}
+
+	private static int readInt(ByteBuffer in, int first, int prefixBits) throws IOException {
+		int max = (1 << prefixBits) - 1;
+		int value = first & max;
+		if (value < max) {
+			return value;
+		}
+		for (int shift = 0; shift <= 21; shift += 7) {
+			int next = in.get() & 0xff;
+			value += (next & 0x7f) << shift;
+			if ((next & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("HPACK integer too large");
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		int first = in.get() & 0xff;
+		int length = readInt(in, first, 7);
+		if (length > in.remaining()) {
+			throw new IOException("HPACK string longer than its header block");
+		}
+		if ((first & 0x80) != 0) {
+			return huffmanDecode(in, length);
+		}
+		byte[] raw = new byte[length];
+		in.get(raw);
+		return new String(raw, StandardCharsets.ISO_8859_1);
+	}
+
+	private static String huffmanDecode(ByteBuffer in, int length) throws IOException {
+		StringBuilder text = new StringBuilder(length * 8 / 5);
+		int node = 0;
+		int depth = 0;
+		boolean ones = true;
+		for (int i = 0; i < length; i++) {
+			int octet = in.get() & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int one = (octet >>> bit) & 1;
+				int next = TREE[2 * node + one];
+				depth++;
+				ones &= one == 1;
+				if (next < 0) {
+					if (-next - 1 == EOS) {
+						throw new IOException("HPACK string holding EOS");
+					}
+					text.append((char) (-next - 1));
+					node = 0;
+					depth = 0;
+					ones = true;
+				} else {
+					node = next;
+				}
+			}
+		}
+		// The padding is the start of EOS and shorter than an octet
+		if (depth > 7 || !ones) {
+			throw new IOException("Invalid HPACK string padding");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Header blocks of one connection, decoded in the order they were sent
+	 */
+	public static final class Decoder {
+		// Newest entry last, numbered from 62 down from the end
+		private final List<String[]> dynamic = new ArrayList<>();
+		// Largest table the peer may ask for, the SETTINGS_HEADER_TABLE_SIZE sent to it
+		private final int maxTableSize;
+		private int tableLimit;
+		private int tableSize;
+
+		/**
+		 * @param maxTableSize table size announced to the peer
+		 */
+		public Decoder(int maxTableSize) {
+			this.maxTableSize = maxTableSize;
+			this.tableLimit = maxTableSize;
+		}
+
+		/**
+		 * Decode a whole header block
+		 *
+		 * @param block fragments of the HEADERS and CONTINUATION frames joined
+		 * @return name/value pairs in order
+		 * @throws IOException if the block is malformed, the table of the
+		 *                     connection is then lost
+		 */
+		public List<String[]> decode(ByteBuffer block) throws IOException {
+			List<String[]> fields = new ArrayList<>();
+			try {
+				while (block.hasRemaining()) {
+					int first = block.get() & 0xff;
+					if ((first & 0x80) != 0) {
+						fields.add(entry(readInt(block, first, 7)));
+					} else if ((first & 0x40) != 0) {
+						String[] field = literal(block, first, 6);
+						add(field);
+						fields.add(field);
+					} else if ((first & 0x20) != 0) {
+						if (!fields.isEmpty()) {
+							throw new IOException("HPACK table size update after a field");
+						}
+						int size = readInt(block, first, 5);
+						if (size > maxTableSize) {
+							throw new IOException("HPACK table size " + size + " above " + maxTableSize);
+						}
+						tableLimit = size;
+						evict(0);
+					} else {
+						// Without indexing or never indexed, the same to an endpoint
+						fields.add(literal(block, first, 4));
+					}
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("HPACK header block truncated");
+			}
+			return fields;
+		}
+
+		private String[] literal(ByteBuffer block, int first, int prefixBits) throws IOException {
+			int index = readInt(block, first, prefixBits);
+			String name = index == 0 ? readString(block) : entry(index)[0];
+			return new String[] { name, readString(block) };
+		}
+
+		private String[] entry(int index) throws IOException {
+			if (index > 0 && index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1].clone();
+			}
+			int position = dynamic.size() - 1 - (index - STATIC_TABLE.length - 1);
+			if (index == 0 || position < 0) {
+				throw new IOException("HPACK index " + index + " out of the tables");
+			}
+			return dynamic.get(position).clone();
+		}
+
+		private void add(String[] field) {
+			int size = size(field);
+			if (size > tableLimit) {
+				// Too large for the table, which is emptied by it
+				evict(tableLimit);
+				return;
+			}
+			evict(size);
+			dynamic.add(field.clone());
+			tableSize += size;
+		}
+
+		/**
+		 * Drop the oldest entries until room is left for an entry of this size
+		 */
+		private void evict(int room) {
+			while (tableSize + room > tableLimit && !dynamic.isEmpty()) {
+				tableSize -= size(dynamic.remove(0));
+			}
+		}
+
+		private static int size(String[] field) {
+			return field[0].length() + field[1].length() + 32;
+		}
+	}
+}
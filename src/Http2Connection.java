@@ -0,0 +1,906 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/2 server side of an intercepted client connection, chosen by the
+ * client with ALPN once its TLS is terminated by the TlsInterceptor.
+ *
+ * The thread of the connection owns its TlsEndpoint: it reads the frames,
+ * keeps the HPACK table of the requests and writes every frame queued for the
+ * client. Each request is a Stream answered by a RequestHandler on a worker of
+ * its own, through the same cache and fetch code as the requests of a HTTP/1
+ * connection, so a slow response holds no other stream back. Workers queue
+ * their HEADERS and DATA frames and wake the selector of the connection.
+ *
+ * Flow control only ever blocks a worker: a DATA frame is queued once the
+ * windows of its stream and of the connection have room, otherwise the worker
+ * waits for a WINDOW_UPDATE of the client. Request bodies are taken in whole
+ * before the stream is served, their window given back as they arrive.
+ */
+public class Http2Connection {
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final int FRAME_HEADER = 9;
+
+	// Frame types
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	// Frame flags
+	private static final int END_STREAM = 0x1;
+	private static final int ACK = 0x1;
+	private static final int END_HEADERS = 0x4;
+	private static final int PADDED = 0x8;
+	private static final int PRIORITY_FLAG = 0x20;
+
+	// Error codes
+	private static final int NO_ERROR = 0x0;
+	private static final int PROTOCOL_ERROR = 0x1;
+	private static final int INTERNAL_ERROR = 0x2;
+	private static final int FLOW_CONTROL_ERROR = 0x3;
+	private static final int STREAM_CLOSED = 0x5;
+	private static final int FRAME_SIZE_ERROR = 0x6;
+	private static final int REFUSED_STREAM = 0x7;
+	private static final int COMPRESSION_ERROR = 0x9;
+	private static final int ENHANCE_YOUR_CALM = 0xb;
+
+	// Settings
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	private static final int DEFAULT_WINDOW = 65535;
+	// Largest frame sent or accepted, the default no peer has to be told of
+	private static final int MAX_FRAME_SIZE = 16384;
+	private static final int HEADER_TABLE_SIZE = 4096;
+	// Receive window of the connection and of each stream, given back as bytes arrive
+	private static final int RECEIVE_WINDOW = 1 << 20;
+
+	private static final AtomicInteger openConnections = new AtomicInteger();
+	private static final AtomicInteger openStreams = new AtomicInteger();
+	private static ExecutorService workers;
+
+	private final TlsEndpoint client;
+	private final Selector selector;
+	private final SelectionKey key;
+	private final TimerWheel.Timeout timeout;
+	// Host and port of the CONNECT, for a request without :authority
+	private final String authority;
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+	private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+	private Thread thread;
+
+	// Owned by the connection thread
+	private final Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+	private final ByteBuffer in;
+	// Frames gathered into one write, so small ones share a TLS record
+	private final ByteBuffer staged = ByteBuffer.allocate(2 * (FRAME_HEADER + MAX_FRAME_SIZE));
+	// Buffer being written: staged, or a header block too large for it
+	private ByteBuffer sending = staged;
+	private boolean prefaceRead;
+	private boolean settingsRead;
+	private int lastStreamId;
+	private boolean goingAway;
+	// Header block continued by CONTINUATION frames, on stream continued if not 0
+	private int continued;
+	private int blockFlags;
+	private ByteArrayOutputStream block;
+
+	// Guarded by this
+	private int sendWindow = DEFAULT_WINDOW;
+	private int initialWindow = DEFAULT_WINDOW;
+	private volatile boolean closed;
+
+	/**
+	 * @param client    client leg, its handshake done with h2 chosen
+	 * @param selector  selector the client channel is registered with
+	 * @param key       key of the client channel
+	 * @param timeout   timeout of the connection, in its idle phase
+	 * @param authority host and port of the CONNECT
+	 */
+	public Http2Connection(TlsEndpoint client, Selector selector, SelectionKey key, TimerWheel.Timeout timeout,
+			String authority) {
+		this.client = client;
+		this.selector = selector;
+		this.key = key;
+		this.timeout = timeout;
+		this.authority = authority;
+		in = ByteBuffer.allocate(client.applicationBufferSize() + FRAME_HEADER + MAX_FRAME_SIZE);
+		staged.flip();
+	}
+
+	private static synchronized ExecutorService workers() {
+		if (workers == null) {
+			workers = HandlerExecutors.create(ProxyConfig.HANDLER_EXECUTOR);
+		}
+		return workers;
+	}
+
+	/**
+	 * Serve the streams of the client until it closes the connection, or
+	 * until its last stream is answered once it sent a GOAWAY
+	 *
+	 * @return CLIENT
+	 * @throws IOException on a TLS or socket error, or a protocol error of the
+	 *                     client after telling it with a GOAWAY
+	 */
+	public CloseReason run() throws IOException {
+		thread = Thread.currentThread();
+		Metrics.HTTP2_CONNECTIONS.increment();
+		openConnections.incrementAndGet();
+		ByteBuffer settings = ByteBuffer.allocate(18);
+		settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(ProxyConfig.HTTP2_MAX_STREAMS);
+		settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(RECEIVE_WINDOW);
+		settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(ProxyConfig.CLIENT_MAX_HEAD_SIZE);
+		enqueue(frame(SETTINGS, 0, 0, settings.array(), 0, settings.capacity()));
+		enqueue(windowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW));
+		try {
+			while (client.channel.isOpen()) {
+				boolean moved = write();
+				int read;
+				while ((read = client.read(in)) > 0) {
+					moved = true;
+					in.flip();
+					frames();
+					in.compact();
+				}
+				if (moved) {
+					timeout.touch();
+				}
+				if (read < 0 || (goingAway && streams.isEmpty() && outbound.isEmpty() && !client.wantsWrite())) {
+					return CloseReason.CLIENT;
+				}
+				key.interestOps(SelectionKey.OP_READ | (client.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+				selector.select(1000);
+				selector.selectedKeys().clear();
+			}
+			// Closed under the connection, by a timeout
+			return CloseReason.CLIENT;
+		} catch (ConnectionError e) {
+			enqueue(goAway(e.code));
+			write();
+			throw e;
+		} catch (IOException e) {
+			if (goingAway) {
+				// A client may reset the connection right behind its GOAWAY
+				return CloseReason.CLIENT;
+			}
+			throw e;
+		} finally {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			openConnections.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Send the queued frames as far as the channel takes them. A header block
+	 * larger than the staging buffer is written from its own buffer.
+	 *
+	 * @return true if any byte was sent
+	 */
+	private boolean write() throws IOException {
+		boolean moved = false;
+		client.flush();
+		while (!client.wantsWrite()) {
+			if (!sending.hasRemaining()) {
+				ByteBuffer frame = outbound.peek();
+				if (frame != null && frame.remaining() > staged.capacity()) {
+					sending = outbound.poll();
+				} else {
+					staged.clear();
+					while ((frame = outbound.peek()) != null && frame.remaining() <= staged.remaining()) {
+						staged.put(outbound.poll());
+					}
+					staged.flip();
+					sending = staged;
+					if (!staged.hasRemaining()) {
+						break;
+					}
+				}
+			}
+			client.write(sending);
+			moved = true;
+		}
+		return moved;
+	}
+
+	/**
+	 * Handle every whole frame of the input buffer, leaving a partial one
+	 */
+	private void frames() throws IOException {
+		if (!prefaceRead) {
+			if (in.remaining() < PREFACE.length) {
+				return;
+			}
+			for (byte expected : PREFACE) {
+				if (in.get() != expected) {
+					throw new ConnectionError(PROTOCOL_ERROR, "Invalid HTTP/2 client preface");
+				}
+			}
+			prefaceRead = true;
+		}
+		while (in.remaining() >= FRAME_HEADER) {
+			int start = in.position();
+			int length = ((in.get(start) & 0xff) << 16) | ((in.get(start + 1) & 0xff) << 8) | (in.get(start + 2) & 0xff);
+			if (length > MAX_FRAME_SIZE) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+			}
+			if (in.remaining() < FRAME_HEADER + length) {
+				return;
+			}
+			int type = in.get(start + 3) & 0xff;
+			int flags = in.get(start + 4) & 0xff;
+			int streamId = in.getInt(start + 5) & 0x7fffffff;
+			in.position(start + FRAME_HEADER);
+			ByteBuffer payload = in.slice();
+			payload.limit(length);
+			in.position(start + FRAME_HEADER + length);
+			try {
+				frame(type, flags, streamId, payload);
+			} catch (BufferUnderflowException e) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of type " + type + " too short");
+			}
+		}
+	}
+
+	private void frame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+		if (!settingsRead && type != SETTINGS) {
+			throw new ConnectionError(PROTOCOL_ERROR, "Client preface without SETTINGS");
+		}
+		if (continued != 0 && (type != CONTINUATION || streamId != continued)) {
+			throw new ConnectionError(PROTOCOL_ERROR, "Header block of stream " + continued + " interrupted");
+		}
+		switch (type) {
+		case DATA:
+			data(flags, streamId, payload);
+			break;
+		case HEADERS:
+			headers(flags, streamId, payload);
+			break;
+		case CONTINUATION:
+			if (continued == 0) {
+				throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without a header block");
+			}
+			append(payload);
+			if ((flags & END_HEADERS) != 0) {
+				continued = 0;
+				headerBlock(streamId);
+			}
+			break;
+		case PRIORITY:
+			if (streamId == 0) {
+				throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+			}
+			// Streams are served as they come, their weights are not used
+			break;
+		case RST_STREAM:
+			if (streamId == 0 || streamId > lastStreamId) {
+				throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+			}
+			if (payload.remaining() != 4) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + payload.remaining() + " bytes");
+			}
+			closeStream(streamId);
+			break;
+		case SETTINGS:
+			settings(flags, streamId, payload);
+			break;
+		case PUSH_PROMISE:
+			throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE sent by a client");
+		case PING:
+			if (streamId != 0 || payload.remaining() != 8) {
+				throw new ConnectionError(PROTOCOL_ERROR, "Malformed PING");
+			}
+			if ((flags & ACK) == 0) {
+				byte[] data = new byte[8];
+				payload.get(data);
+				enqueue(frame(PING, ACK, 0, data, 0, data.length));
+			}
+			break;
+		case GOAWAY:
+			// No new stream comes, the open ones are answered
+			goingAway = true;
+			break;
+		case WINDOW_UPDATE:
+			windowUpdate(streamId, payload);
+			break;
+		default:
+			// Unknown frame types are ignored
+			break;
+		}
+	}
+
+	private void settings(int flags, int streamId, ByteBuffer payload) throws IOException {
+		if (streamId != 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+		}
+		if ((flags & ACK) != 0) {
+			if (payload.hasRemaining()) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+			}
+			return;
+		}
+		if (payload.remaining() % 6 != 0) {
+			throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + payload.remaining() + " bytes");
+		}
+		settingsRead = true;
+		while (payload.hasRemaining()) {
+			int setting = payload.getShort() & 0xffff;
+			int value = payload.getInt();
+			switch (setting) {
+			case SETTINGS_ENABLE_PUSH:
+				if (value != 0 && value != 1) {
+					throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH of " + value);
+				}
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if (value < 0) {
+					throw new ConnectionError(FLOW_CONTROL_ERROR, "Initial window above 2^31-1");
+				}
+				initialWindow(value);
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+					throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value);
+				}
+				// Frames are sent no larger than the default anyway
+				break;
+			case SETTINGS_HEADER_TABLE_SIZE:
+				// The encoding uses no dynamic table
+			default:
+				break;
+			}
+		}
+		enqueue(frame(SETTINGS, ACK, 0, null, 0, 0));
+	}
+
+	/**
+	 * Move the send window of every open stream by the change of the initial
+	 * window
+	 */
+	private synchronized void initialWindow(int value) throws ConnectionError {
+		int delta = value - initialWindow;
+		initialWindow = value;
+		for (Stream stream : streams.values()) {
+			if ((long) stream.sendWindow + delta > Integer.MAX_VALUE) {
+				throw new ConnectionError(FLOW_CONTROL_ERROR, "Window of stream " + stream.id + " above 2^31-1");
+			}
+			stream.sendWindow += delta;
+		}
+		notifyAll();
+	}
+
+	private void windowUpdate(int streamId, ByteBuffer payload) throws IOException {
+		if (payload.remaining() != 4) {
+			throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + payload.remaining() + " bytes");
+		}
+		int increment = payload.getInt() & 0x7fffffff;
+		synchronized (this) {
+			if (streamId == 0) {
+				if (increment == 0 || (long) sendWindow + increment > Integer.MAX_VALUE) {
+					throw new ConnectionError(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR,
+							"Invalid connection WINDOW_UPDATE of " + increment);
+				}
+				sendWindow += increment;
+			} else {
+				Stream stream = streams.get(streamId);
+				if (stream == null) {
+					// Ended already, the update crossed its last frames
+					return;
+				}
+				if (increment == 0 || (long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+					resetStream(streamId, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+					return;
+				}
+				stream.sendWindow += increment;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Start a header block, completed by CONTINUATION frames unless it ends
+	 * with this one
+	 */
+	private void headers(int flags, int streamId, ByteBuffer payload) throws IOException {
+		if (streamId == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+		}
+		int padding = (flags & PADDED) != 0 ? payload.get() & 0xff : 0;
+		if ((flags & PRIORITY_FLAG) != 0) {
+			if (payload.remaining() < 5) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "HEADERS too short for its priority");
+			}
+			payload.position(payload.position() + 5);
+		}
+		if (padding > payload.remaining()) {
+			throw new ConnectionError(PROTOCOL_ERROR, "HEADERS padding longer than the frame");
+		}
+		payload.limit(payload.limit() - padding);
+		block = new ByteArrayOutputStream(payload.remaining());
+		blockFlags = flags;
+		append(payload);
+		if ((flags & END_HEADERS) != 0) {
+			headerBlock(streamId);
+		} else {
+			continued = streamId;
+		}
+	}
+
+	private void append(ByteBuffer fragment) throws ConnectionError {
+		if (block.size() + fragment.remaining() > 2 * ProxyConfig.CLIENT_MAX_HEAD_SIZE) {
+			throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block above " + 2 * ProxyConfig.CLIENT_MAX_HEAD_SIZE
+					+ " bytes");
+		}
+		block.write(fragment.array(), fragment.arrayOffset() + fragment.position(), fragment.remaining());
+	}
+
+	/**
+	 * Decode a whole header block: it opens a stream, or ends the request body
+	 * of an open one as trailers, which are not relayed
+	 */
+	private void headerBlock(int streamId) throws IOException {
+		List<String[]> fields;
+		try {
+			fields = decoder.decode(ByteBuffer.wrap(block.toByteArray()));
+		} catch (IOException e) {
+			throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+		}
+		block = null;
+		boolean endStream = (blockFlags & END_STREAM) != 0;
+
+		Stream stream = streams.get(streamId);
+		if (stream != null) {
+			if (stream.remoteClosed || !endStream) {
+				resetStream(streamId, stream.remoteClosed ? STREAM_CLOSED : PROTOCOL_ERROR);
+			} else {
+				dispatch(stream);
+			}
+			return;
+		}
+		if (streamId <= lastStreamId || (streamId & 1) == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + streamId + " not opened by the client");
+		}
+		lastStreamId = streamId;
+		if (goingAway) {
+			return;
+		}
+		if (streams.size() >= ProxyConfig.HTTP2_MAX_STREAMS) {
+			resetStream(streamId, REFUSED_STREAM);
+			return;
+		}
+		stream = new Stream(streamId);
+		if (!stream.request(fields)) {
+			resetStream(streamId, PROTOCOL_ERROR);
+			return;
+		}
+		synchronized (this) {
+			stream.sendWindow = initialWindow;
+		}
+		streams.put(streamId, stream);
+		openStreams.incrementAndGet();
+		Metrics.HTTP2_STREAMS.increment();
+		if (endStream) {
+			dispatch(stream);
+		}
+	}
+
+	/**
+	 * Take the body bytes of a request, giving their window back at once
+	 */
+	private void data(int flags, int streamId, ByteBuffer payload) throws IOException {
+		if (streamId == 0 || streamId > lastStreamId) {
+			throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+		}
+		// Padding included, every byte of the frame counts against the windows
+		int length = payload.remaining();
+		int padding = (flags & PADDED) != 0 ? payload.get() & 0xff : 0;
+		if (padding > payload.remaining()) {
+			throw new ConnectionError(PROTOCOL_ERROR, "DATA padding longer than the frame");
+		}
+		payload.limit(payload.limit() - padding);
+		if (length > 0) {
+			enqueue(windowUpdate(0, length));
+		}
+
+		Stream stream = streams.get(streamId);
+		if (stream == null || stream.remoteClosed) {
+			// Reset by either side, the bytes already sent are dropped
+			return;
+		}
+		if (stream.body.size() + payload.remaining() > ProxyConfig.HTTP2_MAX_REQUEST_BODY) {
+			stream.reject("413 Content Too Large");
+			return;
+		}
+		stream.body.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+		if ((flags & END_STREAM) != 0) {
+			dispatch(stream);
+		} else if (length > 0) {
+			enqueue(windowUpdate(streamId, length));
+		}
+	}
+
+	/**
+	 * Hand a stream whose request was received in whole to a worker
+	 */
+	private void dispatch(Stream stream) {
+		stream.remoteClosed = true;
+		try {
+			workers().execute(() -> new RequestHandler(stream).serveStream());
+		} catch (RejectedExecutionException e) {
+			resetStream(stream.id, REFUSED_STREAM);
+		}
+	}
+
+	/**
+	 * Tell the client a stream is abandoned, its worker fails on its next write
+	 */
+	private void resetStream(int streamId, int code) {
+		ByteBuffer payload = ByteBuffer.allocate(4).putInt(code);
+		enqueue(frame(RST_STREAM, 0, streamId, payload.array(), 0, 4));
+		closeStream(streamId);
+	}
+
+	private void closeStream(int streamId) {
+		Stream stream = streams.remove(streamId);
+		if (stream != null) {
+			openStreams.decrementAndGet();
+			Metrics.HTTP2_RESETS.increment();
+			synchronized (this) {
+				stream.reset = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private ByteBuffer goAway(int code) {
+		ByteBuffer payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(code);
+		return frame(GOAWAY, 0, 0, payload.array(), 0, 8);
+	}
+
+	private static ByteBuffer windowUpdate(int streamId, int increment) {
+		ByteBuffer payload = ByteBuffer.allocate(4).putInt(increment);
+		return frame(WINDOW_UPDATE, 0, streamId, payload.array(), 0, 4);
+	}
+
+	private static ByteBuffer frame(int type, int flags, int streamId, byte[] payload, int offset, int length) {
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + length);
+		header(frame, length, type, flags, streamId);
+		if (length > 0) {
+			frame.put(payload, offset, length);
+		}
+		frame.flip();
+		return frame;
+	}
+
+	private static void header(ByteBuffer frame, int length, int type, int flags, int streamId) {
+		frame.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+		frame.put((byte) type).put((byte) flags).putInt(streamId);
+	}
+
+	/**
+	 * Queue a frame for the connection thread, waking it from another thread
+	 */
+	private void enqueue(ByteBuffer frame) {
+		outbound.add(frame);
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Queue DATA frames as the windows of the stream and of the connection
+	 * allow, waiting for the client to open them
+	 */
+	private void sendData(Stream stream, byte[] b, int off, int len, boolean endStream) throws IOException {
+		do {
+			int length = 0;
+			synchronized (this) {
+				while (len > 0 && !closed && !stream.reset && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for a WINDOW_UPDATE");
+					}
+				}
+				stream.check();
+				if (len > 0) {
+					length = Math.min(len, Math.min(MAX_FRAME_SIZE, Math.min(sendWindow, stream.sendWindow)));
+					sendWindow -= length;
+					stream.sendWindow -= length;
+				}
+			}
+			boolean last = endStream && length == len;
+			enqueue(frame(DATA, last ? END_STREAM : 0, stream.id, b, off, length));
+			off += length;
+			len -= length;
+			stream.ended = last;
+		} while (len > 0);
+	}
+
+	/**
+	 * Fields that only describe a HTTP/1 connection, never sent on a stream
+	 */
+	private static boolean isConnectionSpecific(String name) {
+		switch (name) {
+		case "connection":
+		case "keep-alive":
+		case "proxy-connection":
+		case "transfer-encoding":
+		case "upgrade":
+		case "te":
+		case "proxy-agent":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return one line of HTTP/2 counters
+	 */
+	static String report() {
+		return String.format("http2 %d connections, %d open, %d streams, %d open, %d reset",
+				Metrics.HTTP2_CONNECTIONS.value(), openConnections.get(), Metrics.HTTP2_STREAMS.value(),
+				openStreams.get(), Metrics.HTTP2_RESETS.value());
+	}
+
+	/**
+	 * Error of the client ending the whole connection with a GOAWAY
+	 */
+	static final class ConnectionError extends IOException {
+		private static final long serialVersionUID = 1L;
+		final int code;
+
+		ConnectionError(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+
+	/**
+	 * One request and its response. The connection thread receives the
+	 * request, then a worker answers it with sendHeaders and by writing the
+	 * body to the stream, sent in DATA frames.
+	 */
+	final class Stream extends OutputStream {
+		final int id;
+		// Request as a HTTP/1.1 head, the form RequestHandler parses
+		byte[] head;
+		// Request body, whole once the stream is dispatched
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		// A HEAD response has its fields but no body
+		private boolean headOnly;
+		// Owned by the connection thread, set once the request is whole
+		private boolean remoteClosed;
+		// Guarded by the connection
+		private int sendWindow;
+		private volatile boolean reset;
+		// Owned by the worker
+		private boolean headersSent;
+		private boolean ended;
+
+		private Stream(int id) {
+			this.id = id;
+		}
+
+		/**
+		 * Make the HTTP/1.1 head of the request from its decoded fields, the
+		 * cookies joined in one field again
+		 *
+		 * @return false if the request is malformed
+		 */
+		private boolean request(List<String[]> fields) {
+			String method = null;
+			String scheme = null;
+			String host = null;
+			String path = null;
+			StringBuilder lines = new StringBuilder();
+			StringBuilder cookie = null;
+			boolean regular = false;
+			for (String[] field : fields) {
+				String name = field[0];
+				String value = field[1];
+				// Either would end a line of the head
+				if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\0') >= 0) {
+					return false;
+				}
+				if (name.startsWith(":")) {
+					if (regular || !isVisible(value)) {
+						return false;
+					}
+					switch (name) {
+					case ":method":
+						method = value;
+						break;
+					case ":scheme":
+						scheme = value;
+						break;
+					case ":authority":
+						host = value;
+						break;
+					case ":path":
+						path = value;
+						break;
+					default:
+						return false;
+					}
+					continue;
+				}
+				regular = true;
+				if (!isVisible(name) || name.indexOf(':') >= 0 || !name.equals(name.toLowerCase(Locale.ROOT))) {
+					return false;
+				}
+				if (name.equals("cookie")) {
+					cookie = cookie == null ? new StringBuilder(value) : cookie.append("; ").append(value);
+				} else if (name.equals("host")) {
+					if (host == null) {
+						host = value;
+					}
+				} else if (!isConnectionSpecific(name)) {
+					lines.append(name).append(": ").append(value).append("\r\n");
+				}
+			}
+			if (method == null || path == null || !path.startsWith("/")
+					|| !("https".equals(scheme) || "http".equals(scheme))) {
+				return false;
+			}
+			if (host == null) {
+				host = authority;
+			}
+			headOnly = method.equals("HEAD");
+			if (cookie != null) {
+				lines.append("cookie: ").append(cookie).append("\r\n");
+			}
+			head = (method + " " + scheme + "://" + host + path + " HTTP/1.1\r\nHost: " + host + "\r\n" + lines + "\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1);
+			return true;
+		}
+
+		/**
+		 * @return true if text is printable ASCII without spaces, as a name or a
+		 *         part of the request line must be
+		 */
+		private boolean isVisible(String text) {
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (c <= ' ' || c >= 0x7f) {
+					return false;
+				}
+			}
+			return !text.isEmpty();
+		}
+
+		/**
+		 * @throws IOException if the stream or the connection ended
+		 */
+		private void check() throws IOException {
+			if (reset) {
+				throw new IOException("HTTP/2 stream " + id + " reset");
+			}
+			if (closed) {
+				throw new IOException("HTTP/2 connection closed");
+			}
+		}
+
+		/**
+		 * Send the status and fields of the response in a HEADERS frame,
+		 * followed by CONTINUATION frames if they do not fit
+		 *
+		 * @param status    status code and reason phrase, e.g. "200 OK"
+		 * @param headers   fields of the response, those of a HTTP/1 connection
+		 *                  are left out
+		 * @param endStream true if the response has no body
+		 * @throws IOException if the stream or the connection ended
+		 */
+		void sendHeaders(String status, HttpHeaders headers, boolean endStream) throws IOException {
+			check();
+			ByteArrayOutputStream fields = new ByteArrayOutputStream();
+			Hpack.encode(":status", status.substring(0, 3), fields);
+			for (String[] field : headers.fields()) {
+				String name = field[0].toLowerCase(Locale.ROOT);
+				if (!isConnectionSpecific(name)) {
+					Hpack.encode(name, field[1], fields);
+				}
+			}
+			byte[] bytes = fields.toByteArray();
+			// One buffer for the whole block, no other frame may come in between
+			int frames = Math.max(1, (bytes.length + MAX_FRAME_SIZE - 1) / MAX_FRAME_SIZE);
+			ByteBuffer out = ByteBuffer.allocate(bytes.length + frames * FRAME_HEADER);
+			for (int i = 0, offset = 0; i < frames; i++) {
+				int length = Math.min(MAX_FRAME_SIZE, bytes.length - offset);
+				int flags = (i == frames - 1 ? END_HEADERS : 0) | (i == 0 && endStream ? END_STREAM : 0);
+				header(out, length, i == 0 ? HEADERS : CONTINUATION, flags, id);
+				out.put(bytes, offset, length);
+				offset += length;
+			}
+			out.flip();
+			headersSent = true;
+			ended = endStream;
+			enqueue(out);
+		}
+
+		/**
+		 * Answer a request refused before being served, such as one whose body
+		 * is too large, and reset its stream. Runs on the connection thread.
+		 */
+		private void reject(String status) throws IOException {
+			HttpHeaders headers = new HttpHeaders();
+			headers.add("content-length", "0");
+			sendHeaders(status, headers, true);
+			resetStream(id, NO_ERROR);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!headOnly && len > 0) {
+				sendData(this, b, off, len, false);
+			}
+		}
+
+		/**
+		 * End the response once the worker is done with it
+		 *
+		 * @param complete false if the worker failed: a response already
+		 *                 started is reset, otherwise a 502 is sent
+		 */
+		void end(boolean complete) {
+			try {
+				if (!headersSent) {
+					HttpHeaders headers = new HttpHeaders();
+					headers.add("content-length", "0");
+					sendHeaders("502 Bad Gateway", headers, true);
+				} else if (!ended) {
+					if (complete) {
+						sendData(this, null, 0, 0, true);
+					} else {
+						resetStream(id, INTERNAL_ERROR);
+					}
+				}
+			} catch (IOException e) {
+				// Reset by the client or connection closed, nothing left to tell
+			} finally {
+				if (streams.remove(id, this)) {
+					openStreams.decrementAndGet();
+				}
+				// The connection may have been waiting for its last stream
+				selector.wakeup();
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered list of HTTP header fields.
+ * Names keep the case they were received with but are matched ignoring it.
+ */
+public class HttpHeaders implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// Longest header line accepted from a peer
+	private static final int MAX_LINE = 64 * 1024;
+
+	private final List<String[]> fields = new ArrayList<>();
+
+	/**
+	 * Value of the first field with this name
+	 *
+	 * @param name header name
+	 * @return value, null if absent
+	 */
+	public String get(String name) {
+		for (String[] field : fields) {
+			if (field[0].equalsIgnoreCase(name)) {
+				return field[1];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param name  header name
+	 * @param token token looked for, such as "close" in Connection
+	 * @return true if one of the comma separated values of the header is token
+	 */
+	public boolean hasToken(String name, String token) {
+		for (String[] field : fields) {
+			if (field[0].equalsIgnoreCase(name)) {
+				for (String value : field[1].split(",")) {
+					if (value.trim().equalsIgnoreCase(token)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	public void add(String name, String value) {
+		fields.add(new String[] { name, value });
+	}
+
+	/**
+	 * Replace every field with this name by one field
+	 *
+	 * @param name  header name
+	 * @param value new value
+	 */
+	public void set(String name, String value) {
+		remove(name);
+		add(name, value);
+	}
+
+	public void remove(String name) {
+		fields.removeIf(field -> field[0].equalsIgnoreCase(name));
+	}
+
+	/**
+	 * Copy without the hop by hop fields, which describe one connection, nor the
+	 * fields listed in the Connection header
+	 *
+	 * @return HttpHeaders
+	 */
+	public HttpHeaders endToEnd() {
+		HttpHeaders copy = new HttpHeaders();
+		for (String[] field : fields) {
+			if (!isHopByHop(field[0])) {
+				copy.add(field[0], field[1]);
+			}
+		}
+		return copy;
+	}
+
+	private boolean isHopByHop(String name) {
+		switch (name.toLowerCase()) {
+		case "connection":
+		case "keep-alive":
+		case "proxy-connection":
+		case "transfer-encoding":
+		case "te":
+		case "trailer":
+		case "upgrade":
+		case "proxy-authenticate":
+		case "proxy-authorization":
+			return true;
+		default:
+			return hasToken("Connection", name);
+		}
+	}
+
+	/**
+	 * @return name/value pairs in order
+	 */
+	public List<String[]> fields() {
+		return fields;
+	}
+
+	/**
+	 * Write the fields followed by the empty line ending the head
+	 *
+	 * @param out destination
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		StringBuilder head = new StringBuilder();
+		for (String[] field : fields) {
+			head.append(field[0]).append(": ").append(field[1]).append("\r\n");
+		}
+		head.append("\r\n");
+		out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Read header lines up to and including the empty line ending the head
+	 *
+	 * @param in source, positioned after the start line
+	 * @return HttpHeaders
+	 * @throws IOException if the stream ends before the head does
+	 */
+	public static HttpHeaders read(InputStream in) throws IOException {
+		HttpHeaders headers = new HttpHeaders();
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			headers.addLine(line);
+		}
+		return headers;
+	}
+
+	/**
+	 * Add the field of a "Name: value" header line, lines without a name are
+	 * ignored
+	 *
+	 * @param line header line without its terminator
+	 */
+	public void addLine(String line) {
+		int colon = line.indexOf(':');
+		if (colon > 0) {
+			add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+		}
+	}
+
+	/**
+	 * Read one line ending with CRLF or LF, without the terminator
+	 *
+	 * @param in source
+	 * @return String
+	 * @throws IOException if the stream ends before the line does
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new IOException("Connection closed inside an HTTP head");
+			}
+			if (line.length() >= MAX_LINE) {
+				throw new IOException("HTTP header line too long");
+			}
+			line.append((char) c);
+		}
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r') {
+			line.setLength(length - 1);
+		}
+		return line.toString();
+	}
+}
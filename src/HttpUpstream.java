@@ -0,0 +1,304 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP/1.1 client sending requests over pooled keep-alive
+ * connections.
+ * The response body is exposed as a stream honouring the message framing, so
+ * the connection can go back to the pool as soon as the body has been read.
+ */
+public class HttpUpstream {
+	// Unread body bytes drained on close to save the connection, beyond that it is closed
+	private static final int MAX_DRAIN = 256 * 1024;
+
+	private HttpUpstream() {
+	}
+
+	/**
+	 * Send a GET request to an origin
+	 *
+	 * @param url             absolute http or https URL
+	 * @param headers         extra request headers, may be null
+	 * @param followRedirects follow up to five same scheme redirects
+	 * @return Response to close once its body has been read
+	 * @throws IOException if the request fails
+	 */
+	public static Response get(URL url, HttpHeaders headers, boolean followRedirects) throws IOException {
+		for (int redirects = 0;; redirects++) {
+			Response response = send("GET", url, headers);
+			String location = response.headers.get("Location");
+			if (!followRedirects || redirects == 5 || location == null || response.status < 300
+					|| response.status > 308 || response.status == 304) {
+				return response;
+			}
+			URL next = new URL(url, location);
+			if (!next.getProtocol().equals(url.getProtocol())) {
+				return response;
+			}
+			response.close();
+			url = next;
+		}
+	}
+
+	/**
+	 * Send one request and read the head of its response
+	 *
+	 * @param method  request method
+	 * @param url     absolute http or https URL
+	 * @param headers extra request headers, may be null
+	 * @return Response
+	 * @throws IOException if the request fails
+	 */
+	public static Response send(String method, URL url, HttpHeaders headers) throws IOException {
+		return send(method, url, headers, null);
+	}
+
+	/**
+	 * Send one request with a body and read the head of its response
+	 *
+	 * @param method  request method
+	 * @param url     absolute http or https URL
+	 * @param headers extra request headers, may be null
+	 * @param body    whole request body, sent with its length, null for none
+	 * @return Response
+	 * @throws IOException if the request fails
+	 */
+	public static Response send(String method, URL url, HttpHeaders headers, byte[] body) throws IOException {
+		boolean secure = url.getProtocol().equals("https");
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		String path = url.getFile().isEmpty() ? "/" : url.getFile();
+
+		UpstreamPool pool = UpstreamPool.get();
+		UpstreamPool.UpstreamConnection connection = pool.acquire(secure, url.getHost(), port);
+		try {
+			StringBuilder head = new StringBuilder();
+			head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(url.getHost());
+			if (url.getPort() != -1) {
+				head.append(':').append(port);
+			}
+			head.append("\r\n");
+			connection.out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+			HttpHeaders requestHeaders = headers != null ? headers : new HttpHeaders();
+			requestHeaders.remove("Host");
+			requestHeaders.set("Connection", "keep-alive");
+			if (body != null) {
+				requestHeaders.set("Content-Length", Integer.toString(body.length));
+			}
+			requestHeaders.writeTo(connection.out);
+			if (body != null) {
+				connection.out.write(body);
+			}
+			connection.out.flush();
+
+			// Skip interim 1xx responses
+			String statusLine;
+			HttpHeaders responseHeaders;
+			int status;
+			do {
+				statusLine = HttpHeaders.readLine(connection.in);
+				responseHeaders = HttpHeaders.read(connection.in);
+				status = parseStatus(statusLine);
+			} while (status >= 100 && status < 200);
+
+			return new Response(pool, connection, method, status, statusLine, responseHeaders);
+		} catch (IOException | RuntimeException e) {
+			pool.release(connection, false);
+			throw e;
+		}
+	}
+
+	private static int parseStatus(String statusLine) throws IOException {
+		String[] parts = statusLine.split(" ", 3);
+		if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+		try {
+			return Integer.parseInt(parts[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+	}
+
+	/**
+	 * Response of an origin. Closing it returns the connection to the pool.
+	 */
+	public static class Response implements Closeable {
+		final int status;
+		final String statusLine;
+		final HttpHeaders headers;
+		final BodyInputStream body;
+		private final UpstreamPool pool;
+		private final UpstreamPool.UpstreamConnection connection;
+		private final boolean keepAlive;
+		private boolean closed;
+
+		Response(UpstreamPool pool, UpstreamPool.UpstreamConnection connection, String method, int status,
+				String statusLine, HttpHeaders headers) throws IOException {
+			this.pool = pool;
+			this.connection = connection;
+			this.status = status;
+			this.statusLine = statusLine;
+			this.headers = headers;
+
+			String contentLength = headers.get("Content-Length");
+			if (method.equals("HEAD") || status == 204 || status == 304) {
+				body = new BodyInputStream(connection.in, 0);
+			} else if (headers.hasToken("Transfer-Encoding", "chunked")) {
+				body = new ChunkedInputStream(connection.in);
+			} else if (contentLength != null) {
+				try {
+					body = new BodyInputStream(connection.in, Long.parseLong(contentLength.trim()));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid Content-Length: " + contentLength);
+				}
+			} else {
+				// Delimited by the end of the connection
+				body = new BodyInputStream(connection.in, -1);
+			}
+			keepAlive = !headers.hasToken("Connection", "close") && !statusLine.startsWith("HTTP/1.0")
+					&& body.length != -1;
+		}
+
+		/**
+		 * @return stream of the body, ends where the response ends
+		 */
+		public InputStream body() {
+			return body;
+		}
+
+		/**
+		 * Return the connection to the pool if the whole body was read, draining a
+		 * small leftover first, otherwise close it
+		 */
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			boolean reusable = keepAlive;
+			if (reusable && !body.isComplete()) {
+				try {
+					reusable = body.skip(MAX_DRAIN) >= 0 && body.isComplete();
+				} catch (IOException e) {
+					reusable = false;
+				}
+			}
+			pool.release(connection, reusable);
+		}
+	}
+
+	/**
+	 * Body of a given length, or until the end of the connection when the
+	 * length is -1
+	 */
+	static class BodyInputStream extends InputStream {
+		final InputStream in;
+		final long length;
+		long remaining;
+		boolean eof;
+
+		BodyInputStream(InputStream in, long length) {
+			this.in = in;
+			this.length = length;
+			this.remaining = length;
+			this.eof = length == 0;
+		}
+
+		boolean isComplete() {
+			return eof;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (eof) {
+				return -1;
+			}
+			if (length >= 0) {
+				len = (int) Math.min(len, remaining);
+			}
+			int read = in.read(b, off, len);
+			if (read < 0) {
+				if (length >= 0) {
+					throw new IOException("Connection closed before the end of the body");
+				}
+				eof = true;
+				return -1;
+			}
+			if (length >= 0) {
+				remaining -= read;
+				eof = remaining == 0;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buffer = new byte[8192];
+			long skipped = 0;
+			int read;
+			while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0) {
+				skipped += read;
+			}
+			return skipped;
+		}
+
+		@Override
+		public void close() {
+			// The connection is released by Response.close
+		}
+	}
+
+	/**
+	 * Body in chunked transfer coding, decoded
+	 */
+	static class ChunkedInputStream extends BodyInputStream {
+		ChunkedInputStream(InputStream in) {
+			super(in, -2);
+			remaining = 0;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (eof) {
+				return -1;
+			}
+			if (remaining == 0) {
+				String size = HttpHeaders.readLine(in);
+				int extension = size.indexOf(';');
+				try {
+					remaining = Long.parseLong((extension >= 0 ? size.substring(0, extension) : size).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid chunk size: " + size);
+				}
+				if (remaining == 0) {
+					// Last chunk, skip the trailers
+					HttpHeaders.read(in);
+					eof = true;
+					return -1;
+				}
+			}
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+			if (read < 0) {
+				throw new IOException("Connection closed inside a chunk");
+			}
+			remaining -= read;
+			if (remaining == 0) {
+				// CRLF ending the chunk data
+				HttpHeaders.readLine(in);
+			}
+			return read;
+		}
+	}
+}
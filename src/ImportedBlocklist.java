@@ -0,0 +1,247 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Domains blocked by lists imported in bulk, such as hosts files and Adblock
+ * filter lists of a million entries.
+ *
+ * A hosts file line "0.0.0.0 ads.example.com" blocks that host only. An
+ * Adblock rule "||example.com^" and a line holding only a domain block the
+ * domain and its subdomains. Other Adblock rules are conditional or cosmetic
+ * and are skipped. The domains are kept in two DomainSets, the lists are read
+ * again and the sets rebuilt on a background thread whenever a list is added.
+ */
+public final class ImportedBlocklist {
+	static final ImportedBlocklist EMPTY = new ImportedBlocklist(DomainSet.EMPTY, DomainSet.EMPTY, 0, 0, 0);
+
+	// Hosts file entries naming the local machine
+	private static final List<String> LOCAL_HOSTS = List.of("localhost", "localhost.localdomain", "local",
+			"broadcasthost", "ip6-localhost", "ip6-loopback");
+
+	private final DomainSet domains;
+	private final DomainSet hosts;
+	private final int files;
+	private final int skipped;
+	private final long buildMillis;
+	private double lookupNanos;
+
+	private ImportedBlocklist(DomainSet domains, DomainSet hosts, int files, int skipped, long buildMillis) {
+		this.domains = domains;
+		this.hosts = hosts;
+		this.files = files;
+		this.skipped = skipped;
+		this.buildMillis = buildMillis;
+	}
+
+	/**
+	 * Read lists into a new ImportedBlocklist, a list that cannot be read is
+	 * left out
+	 *
+	 * @param lists hosts files and Adblock filter lists
+	 * @return ImportedBlocklist
+	 */
+	public static ImportedBlocklist load(List<File> lists) {
+		long start = System.currentTimeMillis();
+		DomainSet.Builder domains = new DomainSet.Builder();
+		DomainSet.Builder hosts = new DomainSet.Builder();
+		int skipped = 0;
+		int files = 0;
+		for (File list : lists) {
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(list), StandardCharsets.UTF_8), 64 * 1024)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!parse(line.trim(), domains, hosts)) {
+						skipped++;
+					}
+				}
+				files++;
+			} catch (IOException e) {
+				System.out.println("Error reading blocklist " + list);
+				e.printStackTrace();
+			}
+		}
+		ImportedBlocklist blocklist = new ImportedBlocklist(domains.build(), hosts.build(), files, skipped,
+				System.currentTimeMillis() - start);
+		blocklist.measure();
+		return blocklist;
+	}
+
+	/**
+	 * Add the domains of one line
+	 *
+	 * @return false if the line is not a comment and was not understood
+	 */
+	private static boolean parse(String line, DomainSet.Builder domains, DomainSet.Builder hosts) {
+		if (line.isEmpty() || line.startsWith("#") || line.startsWith("!") || line.startsWith("[")) {
+			return true;
+		}
+		if (line.startsWith("||")) {
+			// Adblock, only whole domain rules without options
+			int end = line.indexOf('^');
+			String domain = end < 0 ? line.substring(2) : line.substring(2, end);
+			if (end >= 0 && end < line.length() - 1) {
+				return false;
+			}
+			return add(domain, domains);
+		}
+		if (line.startsWith("@@") || line.contains("##") || line.contains("#@#") || line.contains("#?#")) {
+			return false;
+		}
+
+		int comment = line.indexOf('#');
+		if (comment >= 0) {
+			line = line.substring(0, comment).trim();
+		}
+		String[] fields = line.split("\\s+");
+		if (fields.length == 1) {
+			// Domain list
+			return !isAddress(fields[0]) && add(fields[0], domains);
+		}
+		if (!isAddress(fields[0])) {
+			return false;
+		}
+		boolean added = true;
+		for (int i = 1; i < fields.length; i++) {
+			if (!LOCAL_HOSTS.contains(fields[i].toLowerCase(Locale.ROOT)) && !isAddress(fields[i])) {
+				added &= add(fields[i], hosts);
+			}
+		}
+		return added;
+	}
+
+	private static boolean add(String domain, DomainSet.Builder set) {
+		if (domain.startsWith("*.")) {
+			domain = domain.substring(2);
+		}
+		while (domain.endsWith(".")) {
+			domain = domain.substring(0, domain.length() - 1);
+		}
+		if (!isAscii(domain)) {
+			try {
+				domain = IDN.toASCII(domain, IDN.ALLOW_UNASSIGNED);
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+		}
+		domain = domain.toLowerCase(Locale.ROOT);
+		if (domain.isEmpty() || domain.indexOf('.') < 0) {
+			return false;
+		}
+		for (int i = 0; i < domain.length(); i++) {
+			char c = domain.charAt(i);
+			if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '.' || c == '-' || c == '_')) {
+				return false;
+			}
+		}
+		set.add(domain);
+		return true;
+	}
+
+	private static boolean isAscii(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true for an IPv4 address or anything with a colon, an IPv6 one
+	 */
+	private static boolean isAddress(String field) {
+		if (field.indexOf(':') >= 0) {
+			return true;
+		}
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (!(c >= '0' && c <= '9' || c == '.')) {
+				return false;
+			}
+		}
+		return !field.isEmpty();
+	}
+
+	/**
+	 * Check the host of a URL, and each of its parent domains, against the
+	 * imported domains
+	 *
+	 * @param url absolute URL, or scheme://host:port for a CONNECT
+	 * @return true if a list blocks it
+	 */
+	public boolean isBlocked(String url) {
+		int hostStart = Blocklist.hostStart(url);
+		int hostEnd = Blocklist.hostEnd(url, hostStart);
+		while (hostEnd > hostStart && url.charAt(hostEnd - 1) == '.') {
+			hostEnd--;
+		}
+		if (hostEnd == hostStart) {
+			return false;
+		}
+		if (hosts.contains(url, hostStart, hostEnd)) {
+			return true;
+		}
+		for (int from = hostStart; from < hostEnd;) {
+			if (domains.contains(url, from, hostEnd)) {
+				return true;
+			}
+			int dot = url.indexOf('.', from);
+			if (dot < 0 || dot >= hostEnd) {
+				break;
+			}
+			from = dot + 1;
+		}
+		return false;
+	}
+
+	public int size() {
+		return domains.size() + hosts.size();
+	}
+
+	/**
+	 * Time lookups of listed and unlisted hosts, for the report
+	 */
+	private void measure() {
+		int samples = Math.min(5000, size());
+		if (samples == 0) {
+			return;
+		}
+		String[] urls = new String[samples * 2];
+		for (int i = 0; i < samples; i++) {
+			DomainSet set = i % 2 == 0 && hosts.size() > 0 || domains.size() == 0 ? hosts : domains;
+			String domain = set.get((int) ((long) i * set.size() / samples));
+			urls[2 * i] = (set == hosts ? "http://" : "http://www.") + domain + "/";
+			urls[2 * i + 1] = "http://" + domain + ".unlisted-" + i + ".test/";
+		}
+		// First rounds warm up the JIT
+		int rounds = 20;
+		long start = 0;
+		for (int round = -rounds; round < rounds; round++) {
+			if (round == 0) {
+				start = System.nanoTime();
+			}
+			for (String url : urls) {
+				isBlocked(url);
+			}
+		}
+		lookupNanos = (double) (System.nanoTime() - start) / (rounds * urls.length);
+	}
+
+	/**
+	 * @return one line summary of the lists, their memory and lookup time
+	 */
+	public String report() {
+		return String.format(
+				"imported %d domains and %d hosts from %d lists in %d ms, %d lines skipped, %.1f MB, %.0f ns per lookup",
+				domains.size(), hosts.size(), files, buildMillis, skipped,
+				(domains.memoryBytes() + hosts.memoryBytes()) / (1024.0 * 1024.0), lookupNanos);
+	}
+}
@@ -0,0 +1,412 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Crash safe persistence of a map keyed by String.
+ *
+ * Every change is appended to the current journal file as it is made, so a
+ * crash of the proxy loses nothing and a crash of the machine loses at most
+ * the last sync interval. A checkpoint starts a new journal, writes the whole
+ * map to the index file and deletes the journals the index covers. Loading
+ * replays the index then the journals written after it, and stops reading a
+ * file at the first torn record.
+ *
+ * Files are binary: a magic number, the last journal covered for the index or
+ * the generation for a journal, then records made of their length, CRC32 and
+ * payload. The payload is the operation, the key and the encoded value.
+ *
+ * @param <V> type of the values
+ */
+public class Journal<V> {
+	private static final int MAGIC = 0x4A524E31;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	// Larger records are taken for corruption
+	private static final int MAX_RECORD = 1 << 24;
+
+	private static final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "journal-sync");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Binary form of the values
+	 */
+	public interface Codec<V> {
+		void write(DataOutput out, V value) throws IOException;
+
+		V read(DataInput in) throws IOException;
+	}
+
+	private final File directory;
+	private final String name;
+	private final Codec<V> codec;
+	private final Supplier<? extends Map<String, V>> snapshot;
+	private final long checkpointBytes;
+	private final Object checkpointLock = new Object();
+
+	// Journals present when opened, read by replay
+	private final List<Long> pending;
+	private volatile boolean loaded;
+	private final ScheduledFuture<?> syncTask;
+
+	// Guarded by this
+	private long generation;
+	private FileChannel channel;
+	private long written;
+	private boolean dirty;
+	private boolean closed;
+
+	/**
+	 * Start a new journal, the existing files are only read by replay
+	 *
+	 * @param directory       directory of the files
+	 * @param name            prefix of the file names
+	 * @param codec           binary form of the values
+	 * @param snapshot        copy of the whole map, written by checkpoints
+	 * @param syncIntervalMs  milliseconds between two syncs to disk
+	 * @param checkpointBytes journal size from which a checkpoint is written
+	 * @throws IOException if the journal cannot be created
+	 */
+	public Journal(File directory, String name, Codec<V> codec, Supplier<? extends Map<String, V>> snapshot,
+			long syncIntervalMs, long checkpointBytes) throws IOException {
+		this.directory = directory;
+		this.name = name;
+		this.codec = codec;
+		this.snapshot = snapshot;
+		this.checkpointBytes = checkpointBytes;
+		directory.mkdirs();
+
+		pending = journals();
+		long last = pending.isEmpty() ? 0 : pending.get(pending.size() - 1);
+		generation = Math.max(last, covered()) + 1;
+		channel = create(generation);
+		syncTask = syncer.scheduleWithFixedDelay(this::sync, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Read the index and the journals it does not cover, in the order the
+	 * changes were made
+	 *
+	 * @param put    called for each value stored
+	 * @param remove called for each key removed
+	 * @return number of records read
+	 * @throws IOException if a file cannot be read
+	 */
+	public int replay(BiConsumer<String, V> put, Consumer<String> remove) throws IOException {
+		int records = 0;
+		File index = new File(directory, name + ".index");
+		long covered = 0;
+		if (index.exists()) {
+			try (DataInputStream in = open(index)) {
+				covered = in.readLong();
+				records += replay(in, index, put, remove);
+			}
+		}
+		for (long journal : pending) {
+			if (journal > covered) {
+				File file = journalFile(journal);
+				try (DataInputStream in = open(file)) {
+					in.readLong();
+					records += replay(in, file, put, remove);
+				} catch (IOException e) {
+					// Created just before a crash, before its header was written
+					System.out.println("Skipping journal " + file + ": " + e.getMessage());
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Allow checkpoints, once the replayed values are in the map
+	 */
+	public void loaded() {
+		loaded = true;
+	}
+
+	/**
+	 * Record that a key now holds a value
+	 *
+	 * @param key   key
+	 * @param value value
+	 */
+	public void put(String key, V value) {
+		append(PUT, key, value);
+	}
+
+	/**
+	 * Record that a key was removed
+	 *
+	 * @param key key
+	 */
+	public void remove(String key) {
+		append(REMOVE, key, null);
+	}
+
+	/**
+	 * Write the whole map to the index and drop the journals it covers.
+	 * Does nothing before loaded, the map would miss what was not loaded yet.
+	 *
+	 * @return true if the index was written
+	 */
+	public boolean checkpoint() {
+		if (!loaded) {
+			return false;
+		}
+		synchronized (checkpointLock) {
+			long covered;
+			synchronized (this) {
+				if (closed) {
+					return false;
+				}
+				// Changes made from now on go to the new journal
+				covered = generation;
+				try {
+					FileChannel next = create(generation + 1);
+					channel.force(false);
+					channel.close();
+					channel = next;
+					generation++;
+					written = 0;
+				} catch (IOException e) {
+					System.out.println("Error starting journal " + name);
+					e.printStackTrace();
+					return false;
+				}
+			}
+
+			File temporary = new File(directory, name + ".index.tmp");
+			try (FileOutputStream file = new FileOutputStream(temporary);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+				out.writeInt(MAGIC);
+				out.writeLong(covered);
+				for (Map.Entry<String, V> entry : snapshot.get().entrySet()) {
+					out.write(record(PUT, entry.getKey(), entry.getValue()));
+				}
+				out.flush();
+				file.getFD().sync();
+			} catch (IOException e) {
+				System.out.println("Error writing index " + name);
+				e.printStackTrace();
+				temporary.delete();
+				return false;
+			}
+			try {
+				Files.move(temporary.toPath(), new File(directory, name + ".index").toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				System.out.println("Error replacing index " + name);
+				e.printStackTrace();
+				return false;
+			}
+			for (long journal : journals()) {
+				if (journal <= covered) {
+					journalFile(journal).delete();
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Write a last checkpoint and close the journal
+	 */
+	public void close() {
+		syncTask.cancel(false);
+		checkpoint();
+		synchronized (this) {
+			closed = true;
+			try {
+				channel.force(false);
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private synchronized void append(byte operation, String key, V value) {
+		if (closed) {
+			return;
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(record(operation, key, value));
+			while (buffer.hasRemaining()) {
+				written += channel.write(buffer);
+			}
+			dirty = true;
+		} catch (IOException e) {
+			System.out.println("Error writing journal " + name);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sync the journal to disk, and checkpoint once it grew large
+	 */
+	private void sync() {
+		boolean full;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			if (dirty) {
+				try {
+					channel.force(false);
+					dirty = false;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			full = written >= checkpointBytes;
+		}
+		if (full) {
+			checkpoint();
+		}
+	}
+
+	private byte[] record(byte operation, String key, V value) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeByte(operation);
+		out.writeUTF(key);
+		if (operation == PUT) {
+			codec.write(out, value);
+		}
+		byte[] record = payload.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(record, 8, record.length - 8);
+		ByteBuffer.wrap(record).putInt(record.length - 8).putInt((int) crc.getValue());
+		return record;
+	}
+
+	private int replay(DataInputStream in, File file, BiConsumer<String, V> put, Consumer<String> remove)
+			throws IOException {
+		int records = 0;
+		CRC32 crc = new CRC32();
+		while (true) {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return records;
+			}
+			try {
+				int checksum = in.readInt();
+				if (length <= 0 || length > MAX_RECORD) {
+					throw new IOException("bad record length " + length);
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum) {
+					throw new IOException("bad checksum");
+				}
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				byte operation = record.readByte();
+				String key = record.readUTF();
+				if (operation == PUT) {
+					put.accept(key, codec.read(record));
+				} else {
+					remove.accept(key);
+				}
+				records++;
+			} catch (IOException e) {
+				// Written when the proxy stopped, the rest of the file is lost
+				System.out.println("Torn record in " + file + " after " + records + " records: " + e);
+				return records;
+			}
+		}
+	}
+
+	private DataInputStream open(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		if (in.readInt() != MAGIC) {
+			in.close();
+			throw new IOException(file + " is not a journal file");
+		}
+		return in;
+	}
+
+	private FileChannel create(long journal) throws IOException {
+		FileChannel created = FileChannel.open(journalFile(journal).toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(12).putInt(MAGIC).putLong(journal);
+		header.flip();
+		while (header.hasRemaining()) {
+			created.write(header);
+		}
+		return created;
+	}
+
+	/**
+	 * @return last journal covered by the index, 0 without index
+	 */
+	private long covered() throws IOException {
+		File index = new File(directory, name + ".index");
+		if (!index.exists()) {
+			return 0;
+		}
+		try (DataInputStream in = open(index)) {
+			return in.readLong();
+		}
+	}
+
+	/**
+	 * @return generations of the journal files on disk, oldest first
+	 */
+	private List<Long> journals() {
+		List<Long> journals = new ArrayList<>();
+		String[] files = directory.list();
+		if (files != null) {
+			for (String file : files) {
+				if (file.startsWith(name + "-") && file.endsWith(".journal")) {
+					try {
+						journals.add(Long.parseLong(file.substring(name.length() + 1, file.length() - 8)));
+					} catch (NumberFormatException e) {
+						// Not one of ours
+					}
+				}
+			}
+		}
+		Collections.sort(journals);
+		return journals;
+	}
+
+	private File journalFile(long journal) {
+		return new File(directory, String.format("%s-%08d.journal", name, journal));
+	}
+}
@@ -0,0 +1,492 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry of the proxy metrics, read from JMX, the console and Prometheus.
+ *
+ * Counters are LongAdders, striped so that handler threads do not contend on
+ * them. Latencies go to fixed size histograms of 8 log-linear buckets per
+ * power of two, about 6% precision from a nanosecond to 18 minutes in 2.4 KB,
+ * read as p50, p99 and p999. Gauges read a value owned by another part of the
+ * proxy when asked. Recording costs an add or two, reading is only done by the
+ * exporters.
+ */
+public final class Metrics implements DynamicMBean {
+	private static final Metrics registry = new Metrics();
+
+	// Requests
+	static final Counter ACCEPTED = counter("proxy_accepted_total", "Client connections accepted");
+	static final Counter REQUESTS = counter("proxy_requests_total", "Requests received from clients");
+	static final Counter CONNECTS = counter("proxy_connect_requests_total", "CONNECT requests received");
+	static final Counter BLOCKED = counter("proxy_blocked_requests_total", "Requests refused by the blocklists");
+	static final Counter REQUEST_ERRORS = counter("proxy_request_errors_total",
+			"Requests that failed before their response ended");
+	static final Histogram REQUEST_LATENCY = histogram("proxy_request_seconds",
+			"Time from a request head to the end of its response, CONNECT excluded");
+
+	// Cache
+	static final Counter CACHE_HITS = counter("proxy_cache_hits_total", "Requests served fresh from the cache");
+	static final Counter CACHE_SHARED = counter("proxy_cache_shared_fills_total",
+			"Requests served from the fill of another request");
+	static final Counter CACHE_REVALIDATED = counter("proxy_cache_revalidations_total",
+			"Stale copies the origin confirmed unchanged");
+	static final Counter CACHE_MISSES = counter("proxy_cache_misses_total", "Requests sent to the origin");
+	static final Counter CACHE_COMPRESSED = counter("proxy_cache_compressed_total",
+			"Bodies stored gzip compressed by the proxy");
+	static final Counter CACHE_COMPRESSION_SAVED = counter("proxy_cache_compression_saved_bytes_total",
+			"Bytes of store saved by compressing bodies");
+	static final Counter CACHE_DECOMPRESSED = counter("proxy_cache_decompressed_total",
+			"Gzip stored hits decompressed for clients not accepting gzip");
+
+	// Upstream
+	static final Histogram UPSTREAM_CONNECT = histogram("proxy_upstream_connect_seconds",
+			"Time to resolve and connect to an origin");
+	static final Histogram UPSTREAM_RESPONSE = histogram("proxy_upstream_response_seconds",
+			"Time from sending a request to an origin to the end of its response head");
+
+	// Tunnels and certificates
+	static final Histogram TUNNEL_SETUP = histogram("proxy_tunnel_setup_seconds",
+			"Time from a CONNECT request to its tunnel established");
+	static final Counter CERTS_MINTED = counter("proxy_certs_minted_total", "Host certificates minted");
+	static final Counter CERT_ERRORS = counter("proxy_cert_errors_total", "Host certificates that could not be made");
+	static final Histogram CERT_LOOKUP = histogram("proxy_cert_lookup_seconds",
+			"Time to get the certificate of a host, cached ones included");
+	static final Histogram CERT_MINT = histogram("proxy_cert_mint_seconds", "Time to mint a host certificate");
+
+	// HTTP/2 on intercepted connections
+	static final Counter HTTP2_CONNECTIONS = counter("proxy_http2_connections_total",
+			"Intercepted connections which chose HTTP/2");
+	static final Counter HTTP2_STREAMS = counter("proxy_http2_streams_total", "HTTP/2 streams opened by clients");
+	static final Counter HTTP2_RESETS = counter("proxy_http2_stream_resets_total",
+			"HTTP/2 streams reset by the client or the proxy");
+
+	static {
+		gauge("proxy_active_connections", "Client connections open", "gauge",
+				() -> Proxy.connections == null ? 0 : Proxy.connections.size());
+		gauge("proxy_open_tunnels", "CONNECT tunnels open", "gauge", TunnelStats.open::get);
+		gauge("proxy_tunnel_bytes_total", "Bytes relayed by the tunnels", "counter", TunnelStats.bytes::sum);
+		gauge("proxy_cache_entries", "Responses in the cache", "gauge",
+				() -> Proxy.cache == null ? 0 : Proxy.cache.size());
+		gauge("proxy_timeouts_waiting", "Connection timeouts waiting on the timer wheel", "gauge",
+				TimerWheel::pending);
+		for (CloseReason reason : CloseReason.values()) {
+			gauge("proxy_closed_" + reason.label + "_total", reason.help, "counter", reason::value);
+		}
+	}
+
+	private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+	// Counter values at the previous console report, for its rates
+	private final Map<String, Long> lastValues = new HashMap<>();
+	private long lastReport = System.nanoTime();
+	private HttpServer server;
+
+	private Metrics() {
+	}
+
+	static Counter counter(String name, String help) {
+		return registry.add(new Counter(name, help));
+	}
+
+	static Histogram histogram(String name, String help) {
+		return registry.add(new Histogram(name, help));
+	}
+
+	/**
+	 * Register a value read from elsewhere
+	 *
+	 * @param type Prometheus type, "gauge" or "counter"
+	 */
+	static void gauge(String name, String help, String type, LongSupplier value) {
+		registry.add(new Gauge(name, help, type, value));
+	}
+
+	private <M extends Metric> M add(M metric) {
+		metrics.put(metric.name, metric);
+		return metric;
+	}
+
+	/**
+	 * Register the metrics as the MBean InterceptionTLSProxy:type=Metrics
+	 */
+	static void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(registry,
+					new ObjectName("InterceptionTLSProxy:type=Metrics"));
+		} catch (JMException e) {
+			System.out.println("Could not register the metrics MBean");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Serve the metrics in the Prometheus text format on the loopback address
+	 *
+	 * @param port port to listen on
+	 */
+	static synchronized void startHttp(int port) {
+		try {
+			HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			server.createContext("/metrics", exchange -> {
+				byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "metrics-http");
+				thread.setDaemon(true);
+				return thread;
+			}));
+			server.start();
+			registry.server = server;
+			System.out.println("Metrics on http://" + server.getAddress().getHostString() + ":"
+					+ server.getAddress().getPort() + "/metrics");
+		} catch (IOException e) {
+			System.out.println("Could not serve the metrics on port " + port);
+			e.printStackTrace();
+		}
+	}
+
+	static synchronized void stopHttp() {
+		if (registry.server != null) {
+			registry.server.stop(0);
+			registry.server = null;
+		}
+	}
+
+	/**
+	 * @return every metric in the Prometheus text exposition format
+	 */
+	static String prometheus() {
+		StringBuilder text = new StringBuilder();
+		for (Metric metric : registry.metrics.values()) {
+			text.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+			text.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+			metric.appendPrometheus(text);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * One line per metric, with the rate of the counters since the previous
+	 * report and the hit ratio of the cache
+	 *
+	 * @return String
+	 */
+	static String report() {
+		synchronized (registry) {
+			long now = System.nanoTime();
+			double seconds = Math.max(1e-9, (now - registry.lastReport) / 1e9);
+			registry.lastReport = now;
+			StringBuilder text = new StringBuilder();
+			for (Metric metric : registry.metrics.values()) {
+				text.append(String.format("%-36s ", metric.name));
+				if (metric instanceof Histogram) {
+					text.append(metric).append('\n');
+					continue;
+				}
+				long value = metric.value();
+				text.append(value);
+				if (metric.type().equals("counter")) {
+					Long last = registry.lastValues.put(metric.name, value);
+					text.append(String.format(Locale.ROOT, " (%.1f/s)", (value - (last == null ? 0 : last)) / seconds));
+				}
+				text.append('\n');
+			}
+			long hits = CACHE_HITS.value() + CACHE_SHARED.value() + CACHE_REVALIDATED.value();
+			long lookups = hits + CACHE_MISSES.value();
+			text.append(String.format(Locale.ROOT, "cache hit ratio %.1f%%",
+					lookups == 0 ? 0.0 : 100.0 * hits / lookups));
+			return text.toString();
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		int split = attribute.lastIndexOf('_');
+		Metric metric = metrics.get(attribute);
+		if (metric != null && !(metric instanceof Histogram)) {
+			return metric.value();
+		}
+		metric = split < 0 ? null : metrics.get(attribute.substring(0, split));
+		if (metric instanceof Histogram) {
+			Histogram histogram = (Histogram) metric;
+			switch (attribute.substring(split + 1)) {
+			case "count":
+				return histogram.count();
+			case "p50":
+				return histogram.quantile(0.5) / 1e9;
+			case "p99":
+				return histogram.quantile(0.99) / 1e9;
+			case "p999":
+				return histogram.quantile(0.999) / 1e9;
+			case "max":
+				return histogram.max() / 1e9;
+			default:
+				break;
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// Left out, as the interface asks
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (Metric metric : metrics.values()) {
+			if (metric instanceof Histogram) {
+				attributes.add(new MBeanAttributeInfo(metric.name + "_count", "long", metric.help, true, false, false));
+				for (String quantile : new String[] { "p50", "p99", "p999", "max" }) {
+					attributes.add(new MBeanAttributeInfo(metric.name + "_" + quantile, "double",
+							quantile + " of " + metric.help + ", in seconds", true, false, false));
+				}
+			} else {
+				attributes.add(new MBeanAttributeInfo(metric.name, "long", metric.help, true, false, false));
+			}
+		}
+		return new MBeanInfo(Metrics.class.getName(), "Counters and latencies of the proxy",
+				attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+
+	/**
+	 * Named value of the registry
+	 */
+	abstract static class Metric {
+		final String name;
+		final String help;
+
+		Metric(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		abstract String type();
+
+		abstract long value();
+
+		void appendPrometheus(StringBuilder text) {
+			text.append(name).append(' ').append(value()).append('\n');
+		}
+	}
+
+	/**
+	 * Count of events, only going up
+	 */
+	static final class Counter extends Metric {
+		private final LongAdder adder = new LongAdder();
+
+		Counter(String name, String help) {
+			super(name, help);
+		}
+
+		void increment() {
+			adder.increment();
+		}
+
+		void add(long count) {
+			adder.add(count);
+		}
+
+		@Override
+		String type() {
+			return "counter";
+		}
+
+		@Override
+		long value() {
+			return adder.sum();
+		}
+	}
+
+	/**
+	 * Value owned by another part of the proxy
+	 */
+	static final class Gauge extends Metric {
+		private final String type;
+		private final LongSupplier supplier;
+
+		Gauge(String name, String help, String type, LongSupplier supplier) {
+			super(name, help);
+			this.type = type;
+			this.supplier = supplier;
+		}
+
+		@Override
+		String type() {
+			return type;
+		}
+
+		@Override
+		long value() {
+			return supplier.getAsLong();
+		}
+	}
+
+	/**
+	 * Distribution of durations in nanoseconds. Values below 8 have a bucket
+	 * each, above each power of two is split in 8 buckets.
+	 */
+	static final class Histogram extends Metric {
+		// Longest value told apart, about 18 minutes
+		private static final int MAX_SHIFT = 40;
+		private static final int SUB_BUCKETS = 8;
+
+		private final AtomicLongArray buckets = new AtomicLongArray((MAX_SHIFT - 2) * SUB_BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram(String name, String help) {
+			super(name, help);
+		}
+
+		/**
+		 * @param nanos duration, negative ones are counted as 0
+		 */
+		void record(long nanos) {
+			long value = Math.max(0, nanos);
+			buckets.incrementAndGet(bucket(Math.min(value, (1L << MAX_SHIFT) - 1)));
+			count.increment();
+			sum.add(value);
+			if (value > max.get()) {
+				max.accumulateAndGet(value, Math::max);
+			}
+		}
+
+		private static int bucket(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (shift - 3)) & (SUB_BUCKETS - 1);
+			return (shift - 2) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * @return middle of the values falling in a bucket
+		 */
+		private static long midpoint(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = bucket / SUB_BUCKETS + 2;
+			long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (shift - 3);
+			return low + (1L << (shift - 3)) / 2;
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		/**
+		 * @param q quantile between 0 and 1
+		 * @return value in nanoseconds below which that share of the values falls,
+		 *         0 if empty
+		 */
+		long quantile(double q) {
+			long[] counts = new long[buckets.length()];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(q * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(midpoint(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		@Override
+		String type() {
+			return "summary";
+		}
+
+		@Override
+		long value() {
+			return count();
+		}
+
+		@Override
+		void appendPrometheus(StringBuilder text) {
+			for (String quantile : new String[] { "0.5", "0.99", "0.999" }) {
+				text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+						.append(quantile(Double.parseDouble(quantile)) / 1e9).append('\n');
+			}
+			text.append(name).append("_sum ").append(sum.sum() / 1e9).append('\n');
+			text.append(name).append("_count ").append(count()).append('\n');
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "count %d, p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms", count(),
+					quantile(0.5) / 1e6, quantile(0.99) / 1e6, quantile(0.999) / 1e6, max() / 1e6);
+		}
+	}
+}
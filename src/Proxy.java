@@ -1,16 +1,27 @@
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Le proxy crée un serveur socket qui attendra les connexions sur le port
@@ -32,11 +43,12 @@ import java.util.Scanner;
  * demandé par le client, ce qui inclut les balises HTML, les images, les
  * fichiers css et js associés à chaque page Web.
  * 
- * A la fermeture du serveur mandataire, les HashMaps qui contiennent les
- * éléments en cache et les sites bloqués sont sérialisés et mis à jour.
- * les sites bloqués sont sérialisés et écrits dans un fichier. Ils sont
- * rechargées lorsque le proxy est redémarré, ce qui signifie que les sites mis
- * en cache et bloqués sont maintenus.
+ * Chaque modification des éléments en cache et des sites bloqués est écrite
+ * dans un journal binaire au moment où elle a lieu, et un point de contrôle
+ * réécrit régulièrement l'index complet. Ils sont rechargés lorsque le proxy
+ * est redémarré, même après un arrêt brutal, ce qui signifie que les sites mis
+ * en cache et bloqués sont maintenus. L'index du cache est rechargé en
+ * arrière-plan pendant que le proxy accepte déjà les connexions.
  *
  */
 
@@ -51,31 +63,86 @@ public class Proxy implements Runnable {
 	public static void main(String[] args) throws Exception {
 		ch = new CertHandler();
 		ch.mkCert();
-		Proxy myProxy = new Proxy(9090);
+		Proxy myProxy = new Proxy(ProxyConfig.PORT);
 		myProxy.listen();
 	}
 
-	private ServerSocket serverSocket;
+	// Listening sockets, one per accepting thread
+	private Acceptor[] acceptors = new Acceptor[0];
 
 	// Semaphore for Proxy and Console Management System.
 	private volatile boolean running = true;
 
 	/**
-	 * Data structure for constant order lookup of cache items.
-	 * Key: URL of page/image requested.
-	 * Value: File in storage associated with this key.
+	 * Relay used for CONNECT tunnels.
+	 * BLOCKING: one handler thread plus one transmit thread per tunnel.
+	 * NIO: the tunnel is handed to the TunnelEngine event loops.
 	 */
-	static HashMap<String, File> cache;
+	public enum TunnelMode {
+		BLOCKING, NIO
+	}
+
+	static volatile TunnelMode tunnelMode = TunnelMode.valueOf(ProxyConfig.TUNNEL_MODE.toUpperCase());
+
+	// Terminate the TLS of CONNECT requests instead of relaying it untouched
+	static volatile boolean interceptTls = ProxyConfig.INTERCEPT;
 
 	/**
-	 * Data structure for constant order lookup of blocked sites.
+	 * Concurrent index of cache items, bounded in bytes.
 	 * Key: URL of page/image requested.
-	 * Value: URL of page/image requested.
+	 * Value: Response stored for this key, its body is in the store.
 	 */
-	static HashMap<String, String> blockedSites;
+	static CacheIndex cache;
+
+	// Segment files holding the bodies of the cache items
+	static SegmentStore store;
+
+	/**
+	 * Blocking rules as entered, persisted by the journal.
+	 * Key: rule, a host, *.host or host/path prefix.
+	 * Value: rule.
+	 */
+	static Map<String, String> blockedSites;
+
+	// Compiled rules read by the handlers, replaced whenever blockedSites changes
+	static volatile Blocklist blocklist = Blocklist.of(Collections.emptyList());
+
+	// Hosts files and Adblock lists imported in bulk, and the domains read from them
+	static final List<File> importedLists = new CopyOnWriteArrayList<>();
+	static volatile ImportedBlocklist importedSites = ImportedBlocklist.EMPTY;
+
+	// Rebuilds importedSites off the request path
+	private static final ExecutorService blocklistLoader = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "blocklist-loader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Record every change of the cached and blocked sites as it is made
+	static Journal<CachedResponse> cacheJournal;
+	static Journal<String> blockedJournal;
+
+	// Binary form of a blocked site in its journal
+	private static final Journal.Codec<String> SITE_CODEC = new Journal.Codec<String>() {
+		@Override
+		public void write(DataOutput out, String site) throws IOException {
+			out.writeUTF(site);
+		}
+
+		@Override
+		public String read(DataInput in) throws IOException {
+			return in.readUTF();
+		}
+	};
+
+	// Replays the cache journal while connections are already accepted
+	private Thread cacheLoader;
 
-	// Running threads
-	static ArrayList<Thread> servicingThreads;
+	// Client connections currently open
+	static ConnectionRegistry connections;
+
+	// Runs the RequestHandler of each accepted connection
+	private ExecutorService handlerExecutor;
 
 	/**	
 	 * Create the Proxy Server
@@ -83,65 +150,70 @@ public class Proxy implements Runnable {
 	 * @param port Port number to run proxy server from.
 	 */
 	public Proxy(int port) {
-		// Load previously cached sites and blocked Sites
-		cache = new HashMap<>();
-		blockedSites = new HashMap<>();
+		// Open the cache store and the journals of cached and blocked sites
+		try {
+			store = new SegmentStore(new File(ProxyConfig.STORE_DIR), ProxyConfig.STORE_SEGMENT_SIZE,
+					ProxyConfig.STORE_COMPACT_RATIO, ProxyConfig.STORE_COMPACT_INTERVAL);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot open the cache store", e);
+		}
+		cache = new CacheIndex(ProxyConfig.CACHE_MAX_BYTES, (url, response) -> {
+			store.release(response.hash);
+			// A replaced page is journaled by the put replacing it
+			if (!cache.containsKey(url)) {
+				cacheJournal.remove(url);
+			}
+		});
+		blockedSites = new ConcurrentHashMap<>();
+		try {
+			cacheJournal = new Journal<>(new File(ProxyConfig.STORE_DIR), "cache", CachedResponse.CODEC,
+					cache::snapshot, ProxyConfig.JOURNAL_SYNC_INTERVAL, ProxyConfig.JOURNAL_CHECKPOINT_BYTES);
+			blockedJournal = new Journal<>(new File("."), "blockedSites", SITE_CODEC,
+					() -> new HashMap<>(blockedSites), ProxyConfig.JOURNAL_SYNC_INTERVAL,
+					ProxyConfig.JOURNAL_CHECKPOINT_BYTES);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot open the journals", e);
+		}
 
-		// Create array list to hold servicing threads
-		servicingThreads = new ArrayList<>();
+		// Metrics for JMX clients and Prometheus
+		if (ProxyConfig.METRICS_JMX) {
+			Metrics.registerMBean();
+		}
+		if (ProxyConfig.METRICS_PORT > 0) {
+			Metrics.startHttp(ProxyConfig.METRICS_PORT);
+		}
+
+		// Create the registry of live connections and the executor serving them
+		connections = new ConnectionRegistry(ProxyConfig.MAX_CONNECTIONS, ProxyConfig.ACCEPT_POLICY);
+		handlerExecutor = HandlerExecutors.create(ProxyConfig.HANDLER_EXECUTOR);
 
 		// Start dynamic manager on a separate thread.
 		new Thread(this).start(); // Starts overriden run() method at bottom
 
-		try {
-			// Load in cached sites from file
-			File cachedSites = new File("cachedSites.txt");
-			if (!cachedSites.exists()) {
-				System.out.println("No cached sites found - creating new file");
-				cachedSites.createNewFile();
-			} else {
-				try (FileInputStream fileInputStream = new FileInputStream(cachedSites);
-						ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);) {
-					cache = (HashMap<String, File>) objectInputStream.readObject();
-					fileInputStream.close();
-					objectInputStream.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-					cache = new HashMap<>();
-				}
-			}
-
-			// Load in blocked sites from file
-			File blockedSitesTxtFile = new File("blockedSites.txt");
-			if (!blockedSitesTxtFile.exists()) {
-				System.out.println("No blocked sites found - creating new file");
-				blockedSitesTxtFile.createNewFile();
-			} else {
-				try (FileInputStream fileInputStream = new FileInputStream(blockedSitesTxtFile);
-						ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);) {
-					blockedSites = (HashMap<String, String>) objectInputStream.readObject();
-					fileInputStream.close();
-					objectInputStream.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-					blockedSites = new HashMap<>();
-				}
+		// Blocked sites must be known before the first request is served
+		loadBlockedSites();
+		blocklist = Blocklist.of(blockedSites.keySet());
+		for (String list : ProxyConfig.BLOCKLIST_FILES.split(",")) {
+			if (!list.trim().isEmpty()) {
+				importedLists.add(new File(list.trim()));
 			}
-		} catch (IOException e) {
-			System.out.println("Error loading previously cached sites file");
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			System.out.println("Class not found loading in previously cached sites file");
-			e.printStackTrace();
 		}
+		if (!importedLists.isEmpty()) {
+			importBlocklists();
+		}
+
+		// Cached sites load in the background, requests miss until they are in
+		cacheLoader = new Thread(Proxy::loadCachedSites, "cache-loader");
+		cacheLoader.start();
 
 		try {
-			// Create the Server Socket for the Proxy
-			serverSocket = new ServerSocket(port);
+			// Create the Server Sockets for the Proxy
+			acceptors = Acceptor.open(ProxyConfig.BIND_ADDRESS.isEmpty() ? new InetSocketAddress(port)
+					: new InetSocketAddress(ProxyConfig.BIND_ADDRESS, port), ProxyConfig.ACCEPT_BACKLOG,
+					ProxyConfig.ACCEPTORS, ProxyConfig.ACCEPT_MODE.equalsIgnoreCase("reuseport"));
 
-			// Set timeout for debug
-			serverSocket.setSoTimeout(100000);
-			System.out.println("Waiting for client on port " + serverSocket.getLocalPort() + "..");
+			System.out.println("Waiting for client on port " + acceptors[0].socket.getLocalPort() + ".."
+					+ (acceptors.length > 1 ? " with " + acceptors.length + " acceptors" : ""));
 			running = true;
 		}
 
@@ -157,25 +229,52 @@ public class Proxy implements Runnable {
 	}
 
 	/**
-	 * Listens to port and accepts new socket connections
-	 * Creates a new thread to handle the request and passes it to the socket
-	 * connection and continues listening
+	 * Listens to port and accepts new socket connections, on this thread and
+	 * one more thread per extra acceptor
 	 */
 	public void listen() {
+		for (int i = 1; i < acceptors.length; i++) {
+			Acceptor acceptor = acceptors[i];
+			Thread thread = new Thread(() -> accept(acceptor), "acceptor-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		if (acceptors.length > 0) {
+			accept(acceptors[0]);
+		}
+	}
+
+	/**
+	 * Registers each connection of an acceptor and hands its RequestHandler to
+	 * the handler executor, then continues listening
+	 *
+	 * @param acceptor listening socket of this thread
+	 */
+	private void accept(Acceptor acceptor) {
 		while (running) {
 			try {
 				// Blocks until a connection is made
-				Socket socket = serverSocket.accept();
+				Socket socket = acceptor.socket.accept();
+				acceptor.accepted.increment();
+				Metrics.ACCEPTED.increment();
 
-				// Create new Thread and pass it Runnable RequestHandler
-				Thread thread = new Thread(new RequestHandler(socket, ch));
-
-				// Key a reference to each thread so they can be joined later if necessary
-				servicingThreads.add(thread);
+				// Blocks while the connection limit is reached, unless the policy rejects
+				if (!connections.register(socket)) {
+					rejectConnection(socket);
+					continue;
+				}
 
-				thread.start();
+				try {
+					handlerExecutor.execute(new RequestHandler(socket, ch, acceptor.index));
+				} catch (RejectedExecutionException e) {
+					socket.close();
+					connections.unregister(socket);
+				}
 			} catch (SocketException e) {
 				System.out.println("Server closed");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -183,95 +282,264 @@ public class Proxy implements Runnable {
 	}
 
 	/**
-	 * Saves the blocked and cached sites to a file so they can be re loaded
-	 * Join all of the RequestHandler threads currently servicing requests.
+	 * Answers a connection refused because the connection limit is reached
+	 *
+	 * @param socket refused client socket
+	 */
+	private void rejectConnection(Socket socket) {
+		try {
+			socket.getOutputStream().write(("HTTP/1.0 503 Service Unavailable\r\n" +
+					"Proxy-agent: ProxyServer/1.0\r\n" +
+					"\r\n").getBytes());
+			socket.close();
+		} catch (IOException e) {
+			System.out.println("Error refusing connection");
+		}
+	}
+
+	/**
+	 * Closes every live connection and waits for their handlers to finish,
+	 * then checkpoints the blocked and cached sites so they are quickly re
+	 * loaded. The journals and the store stay open until no handler can use
+	 * them.
 	 */
 	private void closeServer() {
 		System.out.println("\nClosing Server..");
 		running = false;
-		try {
-			FileOutputStream fileOutputStream = new FileOutputStream("cachedSites.txt");
-			ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
-
-			objectOutputStream.writeObject(cache);
-			objectOutputStream.close();
-			fileOutputStream.close();
-			System.out.println("Cached Sites written");
-
-			FileOutputStream fileOutputStream2 = new FileOutputStream("blockedSites.txt");
-			ObjectOutputStream objectOutputStream2 = new ObjectOutputStream(fileOutputStream2);
-			objectOutputStream2.writeObject(blockedSites);
-			objectOutputStream2.close();
-			fileOutputStream2.close();
-			System.out.println("Blocked Site list saved");
+
+		// Close Server Sockets so no new connection is accepted
+		System.out.println("Terminating Connection");
+		for (Acceptor acceptor : acceptors) {
 			try {
-				// Close all servicing threads
-				for (Thread thread : servicingThreads) {
-					if (thread.isAlive()) {
-						System.out.print("Waiting on " + thread.getId() + " to close..");
-						thread.join();
-						System.out.println(" closed");
-					}
-				}
-			} catch (InterruptedException e) {
+				acceptor.socket.close();
+			} catch (Exception e) {
+				System.out.println("Exception closing proxy's server socket");
 				e.printStackTrace();
 			}
+		}
+
+		// Close all live connections, which unblocks their handlers
+		System.out.print("Closing " + connections.size() + " connections..");
+		handlerExecutor.shutdown();
+		connections.closeAll();
+		TunnelEngine.shutdown();
+		Metrics.stopHttp();
+		try {
+			if (handlerExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+				System.out.println(" closed");
+			} else {
+				System.out.println(" timed out");
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		try {
+			// The index is only complete once loaded
+			cacheLoader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		cacheJournal.close();
+		System.out.println("Cached Sites written");
+		blockedJournal.close();
+		System.out.println("Blocked Site list saved");
+		if (ch != null) {
+			ch.saveCerts();
+		}
+		store.close();
+	}
+
+	/**
+	 * Replays the journal of blocked sites, importing the list saved by older
+	 * versions
+	 */
+	private static void loadBlockedSites() {
+		File legacy = new File("blockedSites.txt");
+		boolean imported = true;
+		try {
+			blockedJournal.replay(blockedSites::put, blockedSites::remove);
+			if (legacy.length() > 0) {
+				try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(legacy))) {
+					blockedSites.putAll((HashMap<String, String>) objectInputStream.readObject());
+				} catch (IOException | ClassNotFoundException e) {
+					System.out.println("Error loading previously blocked sites file");
+					e.printStackTrace();
+					imported = false;
+				}
+			}
 		} catch (IOException e) {
-			System.out.println("Error saving cache/blocked sites");
+			System.out.println("Error loading blocked sites journal");
 			e.printStackTrace();
+			return;
+		}
+		blockedJournal.loaded();
+		if (blockedJournal.checkpoint() && imported) {
+			legacy.delete();
+		}
+	}
+
+	/**
+	 * Replays the journal of cached sites into the cache, importing the index
+	 * saved by older versions, then checkpoints it
+	 */
+	private static void loadCachedSites() {
+		long start = System.currentTimeMillis();
+		HashMap<String, CachedResponse> pages = new HashMap<>();
+		try {
+			cacheJournal.replay(pages::put, pages::remove);
+		} catch (IOException e) {
+			// Kept for the next start, this run caches from scratch
+			System.out.println("Error loading cache journal");
+			e.printStackTrace();
+			return;
+		}
+		for (Map.Entry<String, CachedResponse> page : pages.entrySet()) {
+			addLoadedPage(page.getKey(), page.getValue());
+		}
+
+		File legacy = new File("cachedSites.txt");
+		boolean imported = true;
+		if (legacy.length() > 0) {
+			try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(legacy))) {
+				HashMap<String, Object> cachedPages = (HashMap<String, Object>) objectInputStream.readObject();
+				for (Map.Entry<String, Object> page : cachedPages.entrySet()) {
+					if (page.getValue() instanceof File) {
+						importCachedFile(page.getKey(), (File) page.getValue());
+					} else {
+						addLoadedPage(page.getKey(), (CachedResponse) page.getValue());
+					}
+				}
+			} catch (IOException | ClassNotFoundException e) {
+				System.out.println("Error loading previously cached sites file");
+				e.printStackTrace();
+				imported = false;
+			}
 		}
 
-		// Close Server Socket
+		// Bodies of pages no longer cached become space to compact
+		store.releaseUnreferenced();
+		cacheJournal.loaded();
+		if (cacheJournal.checkpoint() && imported) {
+			legacy.delete();
+		}
+		System.out.println("Loaded " + cache.size() + " cached sites in " + (System.currentTimeMillis() - start)
+				+ " ms");
+	}
+
+	/**
+	 * Adds a page read from disk unless it was cached again meanwhile.
+	 * Bodies missing from the store are dropped.
+	 * 
+	 * @param urlString URL of the cached webpage
+	 * @param response  Response read from disk
+	 */
+	private static void addLoadedPage(String urlString, CachedResponse response) {
+		if (store.retain(response.hash) && !cache.putIfAbsent(urlString, response)) {
+			store.release(response.hash);
+		}
+	}
+
+	/**
+	 * Moves a page cached in its own file by an older version into the store.
+	 * Its headers are unknown so it is stale at once.
+	 * 
+	 * @param urlString URL of the cached webpage
+	 * @param file      File holding its body
+	 */
+	private static void importCachedFile(String urlString, File file) {
+		if (!file.isFile()) {
+			return;
+		}
 		try {
-			System.out.println("Terminating Connection");
-			serverSocket.close();
-		} catch (Exception e) {
-			System.out.println("Exception closing proxy's server socket");
+			HttpHeaders headers = new HttpHeaders();
+			String contentType = URLConnection.guessContentTypeFromName(file.getName());
+			if (contentType != null) {
+				headers.add("Content-Type", contentType);
+			}
+			cache.put(urlString, new CachedResponse(store.put(file), file.length(), headers, 0, 0));
+			file.delete();
+		} catch (IOException e) {
+			System.out.println("Could not import cached file " + file);
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Look for File in cache
+	 * Look for a response in cache
 	 * 
 	 * @param url of requested file
-	 * @return File if file is cached, null otherwise
+	 * @return CachedResponse if file is cached, null otherwise
 	 */
-	public static File getCachedPage(String url) {
+	public static CachedResponse getCachedPage(String url) {
 		return cache.get(url);
 	}
 
 	/**
 	 * Adds a new page to the cache
 	 * 
-	 * @param urlString   URL of webpage to cache
-	 * @param fileToCache File Object pointing to File put in cache
+	 * @param urlString URL of webpage to cache
+	 * @param response  Response stored, its body already in the store
 	 */
-	public static void addCachedPage(String urlString, File fileToCache) {
-		cache.put(urlString, fileToCache);
+	public static void addCachedPage(String urlString, CachedResponse response) {
+		cacheJournal.put(urlString, response);
+		cache.put(urlString, response);
 	}
 
 	/**
-	 * Check if a URL is blocked by the proxy
+	 * Refreshes the metadata of a cached page after the origin revalidated it
+	 * 
+	 * @param urlString URL of the cached webpage
+	 * @param response  Response on the same body
+	 */
+	public static void updateCachedPage(String urlString, CachedResponse response) {
+		if (cache.update(urlString, response)) {
+			cacheJournal.put(urlString, response);
+		}
+	}
+
+	/**
+	 * Check if a URL is blocked by the proxy, by host suffix and path prefix
 	 * 
 	 * @param url URL to check
 	 * @return true if URL is blocked, false otherwise
 	 */
 	public static boolean isBlocked(String url) {
-		if (blockedSites.get(url) != null) {
-			return true;
-		} else {
-			return false;
-		}
+		return blocklist.isBlocked(url) || importedSites.isBlocked(url);
+	}
+
+	/**
+	 * Reads every imported list into new domain sets on a background thread.
+	 * The previous sets serve lookups until the new ones replace them.
+	 */
+	private static void importBlocklists() {
+		blocklistLoader.execute(() -> {
+			importedSites = ImportedBlocklist.load(importedLists);
+			System.out.println("\n" + importedSites.report() + "\n");
+		});
 	}
 
 	/**
 	 * Creates a management interface which can dynamically update the proxy
 	 * configurations
 	 * blocked : Lists currently blocked sites
-	 * cached : Lists currently cached sites
+	 * cached : Lists currently cached sites, with the cache occupancy and hit ratio
+	 * tunnel [blocking|nio] : Shows or switches the CONNECT relay, with its counters
+	 * intercept [on|off] : Shows or switches TLS interception
+	 * tls : Shows the handshake and resumption counters of intercepted connections
+	 * pool : Shows the upstream connection pool counters
+	 * dns : Shows the DNS cache and connection race counters
+	 * stats : Shows the request, cache, tunnel and certificate metrics
+	 * timeouts : Shows the timer wheel and the connections closed by each reason
+	 * acceptors : Shows the connections taken by each acceptor and the tunnels of
+	 * each event loop
+	 * http2 : Shows the HTTP/2 connections and streams of intercepted clients
+	 * unblock * : Removes * from the list of blocked sites
+	 * import * : Blocks the domains of the hosts file or Adblock list *, until
+	 * restarted, see proxy.blocklist.files to keep it
+	 * blocklist : Shows the size, memory and lookup time of the blocklists
 	 * close : Closes the proxy server
-	 * * : Adds * to the list of blocked sites
+	 * * : Adds * to the list of blocked sites, see Blocklist for the rules
 	 */
 	@Override
 	public void run() {
@@ -290,15 +558,69 @@ public class Proxy implements Runnable {
 				System.out.println();
 			} else if (command.toLowerCase().equals("cached")) {
 				System.out.println("\nCurrently Cached Sites");
-				for (String key : cache.keySet()) {
-					System.out.println(key);
+				for (CacheIndex.Entry entry : cache.entries()) {
+					System.out.println(entry.key + " (" + entry.size + " bytes, last access "
+							+ new Date(entry.lastAccess) + ")");
 				}
-				System.out.println();
+				System.out.println("\n" + cache.report());
+				System.out.println(store.report() + "\n");
+			} else if (command.toLowerCase().startsWith("tunnel")) {
+				String mode = command.substring("tunnel".length()).trim();
+				if (!mode.isEmpty()) {
+					try {
+						tunnelMode = TunnelMode.valueOf(mode.toUpperCase());
+					} catch (IllegalArgumentException e) {
+						System.out.println("Unknown tunnel mode " + mode);
+					}
+				}
+				System.out.println("\nTunnel mode : " + tunnelMode + "\n" + TunnelStats.report() + "\n");
+			} else if (command.toLowerCase().startsWith("intercept")) {
+				String mode = command.substring("intercept".length()).trim().toLowerCase();
+				if (mode.equals("on") || mode.equals("off")) {
+					interceptTls = mode.equals("on");
+				}
+				System.out.println("\nTLS interception : " + (interceptTls ? "on" : "off") + "\n");
+			} else if (command.toLowerCase().equals("tls")) {
+				System.out.println("\n" + TlsStats.report() + "\n");
+			} else if (command.toLowerCase().equals("pool")) {
+				System.out.println("\n" + UpstreamPool.get().report() + "\n");
+			} else if (command.toLowerCase().equals("acceptors")) {
+				System.out.println("\n" + Acceptor.report(acceptors) + "\n" + TunnelEngine.loopReport() + "\n");
+			} else if (command.toLowerCase().equals("timeouts")) {
+				System.out.println("\n" + TimerWheel.get().report() + "\n" + CloseReason.report() + "\n");
+			} else if (command.toLowerCase().equals("http2")) {
+				System.out.println("\n" + Http2Connection.report() + "\n");
+			} else if (command.toLowerCase().equals("stats")) {
+				System.out.println("\n" + Metrics.report() + "\n");
+			} else if (command.toLowerCase().equals("dns")) {
+				System.out.println("\n" + DnsCache.get().report() + "\n" + HappyEyeballs.report() + "\n");
+			} else if (command.toLowerCase().startsWith("unblock ")) {
+				String site = command.substring("unblock ".length()).trim();
+				if (blockedSites.remove(site) != null) {
+					blockedJournal.remove(site);
+					blocklist = Blocklist.of(blockedSites.keySet());
+					System.out.println("\n" + site + " unblocked successfully \n");
+				} else {
+					System.out.println("\n" + site + " is not blocked \n");
+				}
+			} else if (command.toLowerCase().startsWith("import ")) {
+				File list = new File(command.substring("import ".length()).trim());
+				if (list.isFile()) {
+					importedLists.add(list);
+					importBlocklists();
+					System.out.println("\nImporting " + list + "\n");
+				} else {
+					System.out.println("\nNo such file " + list + "\n");
+				}
+			} else if (command.toLowerCase().equals("blocklist")) {
+				System.out.println("\nblocklist " + blocklist.size() + " rules, " + importedSites.report() + "\n");
 			} else if (command.equals("close") || command.equals("q") || command.equals("Q")) {
 				running = false;
 				closeServer();
 			} else {
 				blockedSites.put(command, command);
+				blockedJournal.put(command, command);
+				blocklist = Blocklist.of(blockedSites.keySet());
 				System.out.println("\n" + command + " blocked successfully \n");
 			}
 		}
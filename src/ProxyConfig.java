@@ -0,0 +1,226 @@
+/**
+ * Runtime tunables of the proxy.
+ * Every value is read once from a system property so a deployment can be
+ * tuned from the command line, e.g. java -Dproxy.tunnel=nio Proxy
+ */
+public final class ProxyConfig {
+
+	// Port the proxy listens on
+	static final int PORT = Integer.getInteger("proxy.port", 9090);
+
+	// Address the proxy listens on, every interface when empty
+	static final String BIND_ADDRESS = System.getProperty("proxy.bindAddress", "");
+
+	// Threads accepting connections, 0 for one per core
+	static final int ACCEPTORS = orCores(Integer.getInteger("proxy.acceptors", 1));
+
+	/**
+	 * How several acceptors listen: "reuseport" binds one socket each with
+	 * SO_REUSEPORT so the kernel spreads the connections over them, "shared"
+	 * has them take turns on one socket.
+	 */
+	static final String ACCEPT_MODE = System.getProperty("proxy.acceptMode", "reuseport");
+
+	/**
+	 * Relay used once a CONNECT tunnel is established: "blocking" keeps the two
+	 * threads per tunnel, "nio" hands the tunnel to the TunnelEngine.
+	 */
+	static final String TUNNEL_MODE = System.getProperty("proxy.tunnel", "blocking");
+
+	// Number of selector threads shared by all nio tunnels, one per acceptor when there are several
+	static final int TUNNEL_LOOPS = Integer.getInteger("proxy.tunnel.loops",
+			ACCEPTORS > 1 ? ACCEPTORS : Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	// Size of the first relay buffer of each direction of a tunnel
+	static final int TUNNEL_BUFFER_SIZE = Integer.getInteger("proxy.tunnel.bufferSize", 16 * 1024);
+
+	// Smallest and largest relay buffers, a tunnel moves between them with its throughput
+	static final int TUNNEL_BUFFER_MIN = Integer.getInteger("proxy.tunnel.bufferMin", 4 * 1024);
+	static final int TUNNEL_BUFFER_MAX = Integer.getInteger("proxy.tunnel.bufferMax", 256 * 1024);
+
+	// Bytes of released relay buffers kept for reuse, per pool
+	static final long BUFFER_POOL_MAX_BYTES = Long.getLong("proxy.bufferPool.maxBytes", 64L << 20);
+
+	/**
+	 * Executor running the RequestHandlers: "platform" reuses pooled platform
+	 * threads, "virtual" runs each handler on a virtual thread (Java 21+).
+	 */
+	static final String HANDLER_EXECUTOR = System.getProperty("proxy.executor", "platform");
+
+	// Maximum number of client connections open at the same time
+	static final int MAX_CONNECTIONS = Integer.getInteger("proxy.maxConnections", 10000);
+
+	/**
+	 * What the listener does once MAX_CONNECTIONS is reached: "block" stops
+	 * accepting so new clients wait in the kernel accept queue, "reject"
+	 * answers them with a 503.
+	 */
+	static final String ACCEPT_POLICY = System.getProperty("proxy.acceptPolicy", "block");
+
+	// Length of the kernel accept queue of the listening socket
+	static final int ACCEPT_BACKLOG = Integer.getInteger("proxy.acceptBacklog", 1024);
+
+	/**
+	 * How leaf certificates are minted: "inprocess" signs them with the
+	 * CertificateAuthority, "mkcert" forks the mkcert binary for each host.
+	 */
+	static final String CERT_MINT = System.getProperty("proxy.certMint", "inprocess");
+
+	// mkcert binary used by the "mkcert" mint mode
+	static final String MKCERT_PATH = System.getProperty("proxy.mkcert",
+			"/home/ltchr/Documents/proxy_tls/java-proxy-server/mkcertLinux");
+
+	// Maximum number of per host SSLContexts kept in memory
+	static final int CERT_CACHE_SIZE = Integer.getInteger("proxy.certCache.size", 4096);
+
+	// PKCS12 store holding every certificate minted so far
+	static final String CERT_STORE = System.getProperty("proxy.certStore", "certs.p12");
+
+	static final String CERT_STORE_PASSWORD = System.getProperty("proxy.certStore.password", "changeit");
+
+	/**
+	 * When true CONNECT requests are intercepted: the client TLS is terminated
+	 * with the minted certificate of the host and a new TLS connection is opened
+	 * to the host. When false the tunnel relays the encrypted bytes untouched.
+	 */
+	static final boolean INTERCEPT = Boolean.getBoolean("proxy.intercept");
+
+	// Number of TLS sessions kept for resumption, per host on the client side
+	static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("proxy.tls.sessionCacheSize", 10000);
+
+	// Lifetime in seconds of a TLS session kept for resumption
+	static final int TLS_SESSION_TIMEOUT = Integer.getInteger("proxy.tls.sessionTimeout", 24 * 3600);
+
+	// Offer HTTP/2 with ALPN to intercepted clients, their streams are served through the cache
+	static final boolean HTTP2 = Boolean.parseBoolean(System.getProperty("proxy.http2", "true"));
+
+	// Streams a HTTP/2 client may have open at once on one connection
+	static final int HTTP2_MAX_STREAMS = Integer.getInteger("proxy.http2.maxStreams", 100);
+
+	// Largest request body taken on a HTTP/2 stream, in bytes
+	static final int HTTP2_MAX_REQUEST_BODY = Integer.getInteger("proxy.http2.maxRequestBody", 8 << 20);
+
+	// Idle upstream connections kept per origin
+	static final int POOL_MAX_IDLE_PER_HOST = Integer.getInteger("proxy.pool.maxIdlePerHost", 8);
+
+	// Upstream connections open at once per origin, idle ones included
+	static final int POOL_MAX_PER_HOST = Integer.getInteger("proxy.pool.maxPerHost", 32);
+
+	// Milliseconds an upstream connection may stay idle in the pool
+	static final int POOL_IDLE_TIMEOUT = Integer.getInteger("proxy.pool.idleTimeout", 30000);
+
+	// Milliseconds allowed to open an upstream connection, or to wait for a free one
+	static final int UPSTREAM_CONNECT_TIMEOUT = Integer.getInteger("proxy.upstream.connectTimeout", 5000);
+
+	// Milliseconds an upstream read may block
+	static final int UPSTREAM_READ_TIMEOUT = Integer.getInteger("proxy.upstream.readTimeout", 10000);
+
+	// Milliseconds a resolved host name is cached, the system resolver gives no TTL
+	static final long DNS_TTL = Long.getLong("proxy.dns.ttl", 60000);
+
+	// Milliseconds a host name that failed to resolve is not asked again
+	static final long DNS_NEGATIVE_TTL = Long.getLong("proxy.dns.negativeTtl", 10000);
+
+	// Host names kept in the DNS cache
+	static final int DNS_MAX_ENTRIES = Integer.getInteger("proxy.dns.maxEntries", 10000);
+
+	// Class implementing DnsCache.Resolver used instead of the system resolver
+	static final String DNS_RESOLVER = System.getProperty("proxy.dns.resolver", "");
+
+	// Milliseconds before the next address of a host is tried while connecting
+	static final int CONNECT_ATTEMPT_DELAY = Integer.getInteger("proxy.connect.attemptDelay", 250);
+
+	// Disk space the cached pages may take, in bytes
+	static final long CACHE_MAX_BYTES = Long.getLong("proxy.cache.maxBytes", 1L << 30);
+
+	// Directory of the segment files holding the cached bodies
+	static final String STORE_DIR = System.getProperty("proxy.store.dir", "cached");
+
+	// Size at which a new segment file is started
+	static final long STORE_SEGMENT_SIZE = Long.getLong("proxy.store.segmentSize", 64L << 20);
+
+	// Share of dead bytes from which a segment is compacted
+	static final double STORE_COMPACT_RATIO = Double.parseDouble(System.getProperty("proxy.store.compactRatio", "0.5"));
+
+	// Milliseconds between two compaction passes
+	static final long STORE_COMPACT_INTERVAL = Long.getLong("proxy.store.compactInterval", 30000);
+
+	// Store text bodies gzip compressed, served as is to clients accepting gzip
+	static final boolean CACHE_COMPRESS = Boolean.parseBoolean(System.getProperty("proxy.cache.compress", "true"));
+
+	// Deflate level of the stored bodies, 1 is the fastest, 9 the smallest
+	static final int CACHE_COMPRESS_LEVEL = Integer.getInteger("proxy.cache.compressLevel", 6);
+
+	// Bodies shorter than this many bytes are stored as received
+	static final long CACHE_COMPRESS_MIN_SIZE = Long.getLong("proxy.cache.compressMinSize", 1024);
+
+	// Comma separated content types compressed, types ending in +json or +xml are too
+	static final String CACHE_COMPRESS_TYPES = System.getProperty("proxy.cache.compressTypes",
+			"text/html,text/css,text/plain,text/xml,text/javascript,application/javascript,application/json,"
+					+ "application/xml,image/svg+xml");
+
+	// Milliseconds the misses of a URL whose response could not be cached go to the origin without coalescing
+	static final long CACHE_UNCACHEABLE_TTL = Long.getLong("proxy.cache.uncacheableTtl", 10000);
+
+	// Comma separated hosts files and Adblock lists blocked at startup
+	static final String BLOCKLIST_FILES = System.getProperty("proxy.blocklist.files", "");
+
+	// Milliseconds between two syncs of the cache and blocked sites journals to disk
+	static final long JOURNAL_SYNC_INTERVAL = Long.getLong("proxy.journal.syncInterval", 1000);
+
+	// Journal size in bytes from which the whole index is checkpointed
+	static final long JOURNAL_CHECKPOINT_BYTES = Long.getLong("proxy.journal.checkpointBytes", 8L << 20);
+
+	// Milliseconds a keep-alive client connection may stay idle between requests
+	static final int CLIENT_KEEP_ALIVE_TIMEOUT = Integer.getInteger("proxy.client.keepAliveTimeout", 5000);
+
+	// Requests served on one client connection before it is closed
+	static final int CLIENT_MAX_REQUESTS = Integer.getInteger("proxy.client.maxRequests", 1000);
+
+	// Longest request head accepted from a client, request line and fields included
+	static final int CLIENT_MAX_HEAD_SIZE = Integer.getInteger("proxy.client.maxHeadSize", 64 * 1024);
+
+	// Largest request body relayed from a HTTP/1 client, in bytes
+	static final int CLIENT_MAX_REQUEST_BODY = Integer.getInteger("proxy.client.maxRequestBody", 8 << 20);
+
+	// Milliseconds a client may take to send a request head, from the accept or its first byte
+	static final int TIMEOUT_HEADER = Integer.getInteger("proxy.timeout.header", 10000);
+
+	// Milliseconds allowed from a CONNECT request to its tunnel established
+	static final int TIMEOUT_CONNECT = Integer.getInteger("proxy.timeout.connect", 15000);
+
+	// Milliseconds the two TLS handshakes of an intercepted tunnel may take
+	static final int TIMEOUT_HANDSHAKE = Integer.getInteger("proxy.timeout.handshake", 10000);
+
+	// Milliseconds a tunnel may move no byte in either direction, 0 for no limit
+	static final int TIMEOUT_IDLE = Integer.getInteger("proxy.timeout.idle", 300000);
+
+	// Milliseconds a client connection may stay open whatever it does, 0 for no limit
+	static final long TIMEOUT_LIFETIME = Long.getLong("proxy.timeout.lifetime", 0);
+
+	// Milliseconds between two ticks of the TimerWheel, the precision of every timeout
+	static final int TIMER_TICK = Integer.getInteger("proxy.timer.tick", 10);
+
+	// Loopback port serving the metrics in the Prometheus format, 0 to disable
+	static final int METRICS_PORT = Integer.getInteger("proxy.metrics.port", 0);
+
+	// Register the metrics as an MBean of the platform MBean server
+	static final boolean METRICS_JMX = Boolean.parseBoolean(System.getProperty("proxy.metrics.jmx", "true"));
+
+	static {
+		// Stateless resumption with session tickets on both legs, unless set otherwise
+		if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		}
+		if (System.getProperty("jdk.tls.client.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+		}
+	}
+
+	private ProxyConfig() {
+	}
+
+	private static int orCores(int count) {
+		return count > 0 ? count : Runtime.getRuntime().availableProcessors();
+	}
+}
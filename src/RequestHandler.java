@@ -1,35 +1,38 @@
-import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 
-import javax.imageio.ImageIO;
+import javax.net.ssl.SSLContext;
 
 
 public class RequestHandler implements Runnable {
 	// Socket connected to client passed by Proxy server
 	Socket clientSocket;
-	// Read data client sends to proxy
-	BufferedReader proxyToClientBr;
+	// Read data client sends to proxy, buffered by the request head
+	InputStream proxyToClientIs;
 	// Send data from proxy to client
+	BufferedOutputStream proxyToClientOs;
 	BufferedWriter proxyToClientBw;
 	// Handler certificate reference
 	private CertHandler ch;
+	// Head of the request being served, its buffer is kept for the connection
+	private final RequestHead head = new RequestHead(ProxyConfig.CLIENT_MAX_HEAD_SIZE);
 
 	/**
 	 * Thread that is used to transmit data read from client to server when using
@@ -38,119 +41,677 @@ public class RequestHandler implements Runnable {
 	 */
 	private Thread httpsClientToServer;
 
+	// True once the client connection belongs to the TunnelEngine
+	private boolean handedOff;
+	// Acceptor which took the connection, its tunnel goes to the event loop of the same index
+	private final int loop;
+
+	// True if the request being served is HTTP/1.1, so chunked responses can be sent
+	private boolean clientHttp11;
+
+	// Deadline of the current phase of the connection, restarted for each phase
+	private final TimerWheel.Timeout phase;
+	// Deadline of the whole connection, null if unlimited
+	private final TimerWheel.Timeout lifetime;
+	// Upstream of a tunnel, closed with the client when a timeout fires
+	private volatile Closeable upstream;
+	// Why the connection ends, unless a timeout fired
+	private CloseReason closedBy = CloseReason.CLIENT;
+	// Set once the client ended its side of a blocking tunnel
+	private volatile boolean clientEnded;
+	// HTTP/2 stream whose request is served, null on a HTTP/1 connection
+	private final Http2Connection.Stream stream;
+
 	/**
 	 * Creates a RequestHandler object capable of servicing HTTP(S) GET requests
 	 * 
 	 * @param clientSocket socket connected to the client
+	 * @param loop         index of the acceptor which took the connection
 	 */
-	public RequestHandler(Socket clientSocket, CertHandler ch) {
+	public RequestHandler(Socket clientSocket, CertHandler ch, int loop) {
 		this.ch = ch;
+		this.loop = loop;
 		this.clientSocket = clientSocket;
+		stream = null;
+		// The first request head is timed from the accept
+		phase = TimerWheel.get().schedule(CloseReason.HEADER_TIMEOUT, ProxyConfig.TIMEOUT_HEADER, this::expire);
+		lifetime = ProxyConfig.TIMEOUT_LIFETIME > 0
+				? TimerWheel.get().schedule(CloseReason.LIFETIME_TIMEOUT, ProxyConfig.TIMEOUT_LIFETIME, this::expire)
+				: null;
 		try {
-			this.clientSocket.setSoTimeout(2000);
-			proxyToClientBr = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			proxyToClientBw = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
+			proxyToClientIs = clientSocket.getInputStream();
+			proxyToClientOs = new BufferedOutputStream(clientSocket.getOutputStream(), 16 * 1024);
+			proxyToClientBw = new BufferedWriter(new OutputStreamWriter(proxyToClientOs, StandardCharsets.ISO_8859_1));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Reads and examines the requestString and calls the appropriate method based
-	 * on the request type.
+	 * Creates a RequestHandler serving the request of one HTTP/2 stream. The
+	 * connection and its timeouts belong to the Http2Connection.
+	 * 
+	 * @param stream stream whose request was received in whole
+	 */
+	RequestHandler(Http2Connection.Stream stream) {
+		this.stream = stream;
+		loop = -1;
+		phase = null;
+		lifetime = null;
+		proxyToClientOs = new BufferedOutputStream(stream, 16 * 1024);
+		proxyToClientBw = new BufferedWriter(new OutputStreamWriter(proxyToClientOs, StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Serves the requests of the client until it closes the connection, leaves it
+	 * idle or a response cannot be followed by another one.
 	 */
 	@Override
 	public void run() {
 		try {
-			// Get Request from client
-			String requestString;
+			int served = 1;
+			while (handleRequest(served == 1, served < ProxyConfig.CLIENT_MAX_REQUESTS)) {
+				served++;
+			}
+		} finally {
+			// Release the connection unless the tunnel engine now owns it
+			if (!handedOff) {
+				try {
+					clientSocket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				closeUpstream();
+				Proxy.connections.unregister(clientSocket);
+				closeReason().count();
+				phase.cancel();
+				if (lifetime != null) {
+					lifetime.cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close the connection when one of its timeouts fires, which ends any
+	 * blocking read of its handler. Runs on the timer wheel thread.
+	 */
+	private void expire() {
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+		}
+		closeUpstream();
+	}
+
+	private void closeUpstream() {
+		Closeable server = upstream;
+		if (server != null) {
 			try {
-				requestString = proxyToClientBr.readLine();
+				server.close();
 			} catch (IOException e) {
-				e.printStackTrace();
-				System.out.println("Error reading request from client");
-				return;
 			}
+		}
+	}
 
-			// Parse out URL
-			System.out.println("Request Received " + requestString);
-			// Get the Request type
-			String request = requestString.substring(0, requestString.indexOf(' '));
+	/**
+	 * @return true if a timeout of the connection fired, the failure it causes
+	 *         is then expected
+	 */
+	private boolean timedOut() {
+		return phase.isExpired() || (lifetime != null && lifetime.isExpired());
+	}
 
-			// remove request type and space
-			String urlString = requestString.substring(requestString.indexOf(' ') + 1);
+	private CloseReason closeReason() {
+		if (phase.isExpired()) {
+			return phase.reason();
+		}
+		if (lifetime != null && lifetime.isExpired()) {
+			return CloseReason.LIFETIME_TIMEOUT;
+		}
+		return closedBy;
+	}
 
-			// Remove everything past next space
-			urlString = urlString.substring(0, urlString.indexOf(' '));
+	/**
+	 * Count a request which failed, the connection closes because of it
+	 */
+	private void requestFailed() {
+		Metrics.REQUEST_ERRORS.increment();
+		closedBy = CloseReason.ERROR;
+	}
 
-			System.out.println("URL String:" + urlString);
+	/**
+	 * Reads and examines one request and calls the appropriate method based on
+	 * the request type.
+	 * 
+	 * @param first        true for the first request of the connection
+	 * @param mayKeepAlive false if the connection must close after this request
+	 * @return true if the connection can carry another request
+	 */
+	private boolean handleRequest(boolean first, boolean mayKeepAlive) {
+		// Get Request from client
+		try {
+			if (!readRequest(first)) {
+				// Client closed or left its idle connection
+				return false;
+			}
+		} catch (RequestHead.TooLarge e) {
+			requestFailed();
+			System.out.println(e.getMessage());
+			rejectRequest("431 Request Header Fields Too Large");
+			return false;
+		} catch (IOException e) {
+			requestFailed();
+			e.printStackTrace();
+			System.out.println("Error reading request from client");
+			return false;
+		}
+		long start = System.nanoTime();
+		Metrics.REQUESTS.increment();
+
+		System.out.println("Request Received " + head);
+		if (head.host() == null) {
+			// Origin form without Host field, nowhere to send it
+			requestFailed();
+			System.out.println("No host in request : " + head);
+			rejectRequest("400 Bad Request");
+			return false;
+		}
+		String urlString = head.url();
+		System.out.println("URL String:" + urlString);
+
+		// The connection stays open for a HTTP/1.1 client unless it asked otherwise.
+		// The body of a GET or HEAD is not read, so one carrying a body ends the connection.
+		boolean connect = head.isMethod("CONNECT");
+		boolean get = head.isMethod("GET") || head.isMethod("HEAD");
+		clientHttp11 = head.isHttp11();
+		boolean keepAlive = mayKeepAlive && clientHttp11 && !connect
+				&& !head.hasToken("Connection", "close")
+				&& !head.hasToken("Proxy-Connection", "close")
+				&& !(get && (head.has("Content-Length") || head.has("Transfer-Encoding")));
+
+		// Check if site is blocked
+		if (Proxy.isBlocked(urlString)) {
+			Metrics.BLOCKED.increment();
+			System.out.println("Blocked site requested : " + urlString);
+			return blockedSiteRequested(keepAlive);
+		}
 
-			// Keep url without port and http
-			String urlString2 = urlString; 
-			urlString2 = urlString2.substring(0, urlString.length() - 4);
+		// Check request type
+		if (connect) {
+			Metrics.CONNECTS.increment();
+			System.out.println("HTTPS Request for : " + urlString + "\n");
+			handleHTTPSRequest(urlString, start);
+			return false;
+		}
 
-			// Pre apppend http:// if necessary to create correct URL
-			if (!urlString.substring(0, 4).equals("http")) {
-				String temp = "http://";
-				urlString = temp + urlString;
-			}
+		try {
+			// Only GET and HEAD go through the cache, the other methods are relayed with their body
+			return get ? serveGet(urlString, keepAlive) : relayRequest(urlString, keepAlive);
+		} finally {
+			Metrics.REQUEST_LATENCY.record(System.nanoTime() - start);
+		}
+	}
 
-			// Check if site is blocked
+	/**
+	 * Serve the request of a HTTP/2 stream, given as a HTTP/1.1 head. GET and
+	 * HEAD go through serveGet like on a HTTP/1 connection, the other methods
+	 * are relayed to the origin with their body.
+	 */
+	void serveStream() {
+		long start = System.nanoTime();
+		boolean served = false;
+		try {
+			InputStream in = new ByteArrayInputStream(stream.head);
+			while (!head.parse()) {
+				if (head.read(in) < 0) {
+					throw new EOFException("HTTP/2 request head cut short");
+				}
+			}
+		} catch (IOException e) {
+			requestFailed();
+			System.out.println("Malformed HTTP/2 request on stream " + stream.id + " : " + e.getMessage());
+			try {
+				served = sendResponse("400 Bad Request", null, new byte[0], true);
+			} catch (IOException ioe) {
+				// Reset by the client meanwhile
+			}
+			stream.end(served);
+			return;
+		}
+		Metrics.REQUESTS.increment();
+		System.out.println("Request Received " + head + " on HTTP/2 stream " + stream.id);
+		String urlString = head.url();
+		clientHttp11 = true;
+		try {
 			if (Proxy.isBlocked(urlString)) {
+				Metrics.BLOCKED.increment();
 				System.out.println("Blocked site requested : " + urlString);
-				blockedSiteRequested();
-				return;
+				served = blockedSiteRequested(true);
+			} else if (head.isMethod("GET") || head.isMethod("HEAD")) {
+				served = serveGet(urlString, true);
+			} else {
+				served = relayRequest(urlString, true);
 			}
+		} finally {
+			Metrics.REQUEST_LATENCY.record(System.nanoTime() - start);
+			stream.end(served);
+		}
+	}
 
-			// // Read content in clear text with http and without port format
-			// URL url = null;
-			// URLConnection urlCon = null;
-			// BufferedReader src = null;
-			// String srst;
-			// try {
-			// 	url = new URL(urlString.substring(0, urlString.length() - 4));
-			// 	urlCon = url.openConnection();
-			// 	src = new BufferedReader(new InputStreamReader(urlCon.getInputStream()));
-			// 	while ((srst = src.readLine()) != null) {
-			// 		System.out.println(srst);
-			// 	}
-			// } catch (MalformedURLException e1) {
-			// 	e1.printStackTrace();
-			// } catch (IOException e) {
-			// 	e.printStackTrace();
-			// }
-
-			// Dynamically generate a certificate for a site
-			ch.genCert(urlString2);
-
-			// Check request type
-			if (request.equals("CONNECT")) {
-				System.out.println("HTTPS Request for : " + urlString + "\n");
-				handleHTTPSRequest(urlString);
+	/**
+	 * Send the request to the origin as is, with its body read whole from the
+	 * client or the HTTP/2 stream, and relay the response, which is not cached
+	 * 
+	 * @param urlString URL requested
+	 * @param keepAlive false if the connection closes after this response
+	 * @return true if the connection can carry another request
+	 */
+	private boolean relayRequest(String urlString, boolean keepAlive) {
+		byte[] body = null;
+		if (stream != null) {
+			if (stream.body.size() > 0 || head.has("Content-Length")) {
+				body = stream.body.toByteArray();
+			}
+		} else {
+			try {
+				body = readRequestBody();
+			} catch (RequestHead.TooLarge e) {
+				requestFailed();
+				System.out.println(e.getMessage());
+				rejectRequest("413 Content Too Large");
+				return false;
+			} catch (IOException e) {
+				requestFailed();
+				System.out.println("Error reading the body of " + head.method() + " " + urlString + " : "
+						+ e.getMessage());
+				rejectRequest("400 Bad Request");
+				return false;
+			}
+		}
+		HttpHeaders headers = head.headers().endToEnd();
+		// The body is sent whole with its length, there is nothing to wait for
+		headers.remove("Expect");
+		try (HttpUpstream.Response response = HttpUpstream.send(head.method(), new URL(urlString),
+				headers, body)) {
+			return relayResponse(response, keepAlive, null);
+		} catch (IOException e) {
+			requestFailed();
+			System.out.println("Error relaying " + head.method() + " " + urlString);
+			e.printStackTrace();
+			return false;
+		}
+	}
 
-			} else {
-				// Check if we have a cached copy
-				File file;
-				if ((file = Proxy.getCachedPage(urlString)) != null) {
-					System.out.println("Cached Copy found for : " + urlString + "\n");
-					sendCachedPageToClient(file);
-				} else {
-					System.out.println("HTTP GET for : " + urlString + "\n");
-					sendNonCachedToClient(urlString);
+	/**
+	 * Read the whole body of a HTTP/1 request, framed by its length or chunked,
+	 * within the header timeout. A client expecting 100-continue is told to
+	 * send it first.
+	 * 
+	 * @return body, null if the request has none
+	 * @throws IOException if the body is malformed or cut short, TooLarge if
+	 *                     it is above ProxyConfig.CLIENT_MAX_REQUEST_BODY
+	 */
+	private byte[] readRequestBody() throws IOException {
+		int max = ProxyConfig.CLIENT_MAX_REQUEST_BODY;
+		InputStream in;
+		if (head.hasToken("Transfer-Encoding", "chunked")) {
+			in = new HttpUpstream.ChunkedInputStream(head.body(proxyToClientIs));
+		} else if (head.has("Content-Length")) {
+			long length;
+			try {
+				length = Long.parseLong(head.get("Content-Length").trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Content-Length: " + head.get("Content-Length"));
+			}
+			if (length < 0) {
+				throw new IOException("Invalid Content-Length: " + length);
+			}
+			if (length > max) {
+				throw new RequestHead.TooLarge("Request body of " + length + " bytes, above " + max);
+			}
+			in = new HttpUpstream.BodyInputStream(head.body(proxyToClientIs), length);
+		} else {
+			return null;
+		}
+		if (head.hasToken("Expect", "100-continue")) {
+			proxyToClientOs.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			proxyToClientOs.flush();
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[16 * 1024];
+		int read;
+		phase.restart(CloseReason.HEADER_TIMEOUT, ProxyConfig.TIMEOUT_HEADER);
+		while ((read = in.read(buffer)) != -1) {
+			if (body.size() + read > max) {
+				throw new RequestHead.TooLarge("Request body above " + max + " bytes");
+			}
+			body.write(buffer, 0, read);
+		}
+		phase.suspend();
+		return body.toByteArray();
+	}
+
+	/**
+	 * Serve a GET from the cache, from the fill of another request or from the
+	 * origin. A HEAD is answered from a fresh cached copy, otherwise it is sent
+	 * to the origin as a HEAD and fills nothing. A request carrying cookies or
+	 * credentials is relayed with all its fields and never cached.
+	 * 
+	 * @param urlString URL requested
+	 * @param keepAlive false if the connection closes after this response
+	 * @return true if the connection can carry another request
+	 */
+	private boolean serveGet(String urlString, boolean keepAlive) {
+		if (head.has("Cookie") || head.has("Authorization")) {
+			// The response may be personal, and the cache path sends the origin no field of the client
+			return relayRequest(urlString, keepAlive);
+		}
+		HttpHeaders requestHeaders = head.headers();
+		// Check if we have a fresh cached copy, a stale one is revalidated by the origin
+		CachedResponse cached = Proxy.getCachedPage(urlString);
+		if (cached != null && cached.isFresh(requestHeaders, System.currentTimeMillis())) {
+			System.out.println("Cached Copy found for : " + urlString + "\n");
+			Metrics.CACHE_HITS.increment();
+			return sendCachedPageToClient(cached, requestHeaders, keepAlive);
+		}
+		if (head.isMethod("HEAD")) {
+			return relayRequest(urlString, keepAlive);
+		}
+
+		// Only one request per URL goes to the origin, the others follow its fill,
+		// unless the URL was not cacheable lately
+		CacheFill fill = null;
+		if (!CacheFill.isUncacheable(urlString)) {
+			while ((fill = CacheFill.begin(urlString)) == null) {
+				CacheFill running = CacheFill.find(urlString);
+				if (running != null) {
+					System.out.println("Following cache fill for : " + urlString + "\n");
+					Boolean served = sendFillToClient(running, keepAlive);
+					if (served != null) {
+						Metrics.CACHE_SHARED.increment();
+						return served;
+					}
+					if (running.isAbandoned()) {
+						// Every follower asks the origin at once rather than waiting on a new leader
+						break;
+					}
 				}
+				// The fill shared no body, but its answer may have refreshed the cache
+				cached = Proxy.getCachedPage(urlString);
+				if (cached != null && cached.isFresh(requestHeaders, System.currentTimeMillis())) {
+					Metrics.CACHE_HITS.increment();
+					return sendCachedPageToClient(cached, requestHeaders, keepAlive);
+				}
+			}
+		}
+		try {
+			System.out.println("HTTP GET for : " + urlString + "\n");
+			return sendNonCachedToClient(urlString, requestHeaders, cached, fill, keepAlive);
+		} finally {
+			// Lets the followers go if nothing was published
+			if (fill != null) {
+				fill.abandon();
 			}
-		} catch (RuntimeException |
+		}
+	}
 
-				Error e) {
+	/**
+	 * Read the head of the next request, which may already be buffered behind
+	 * the previous one. Waiting for a request after the first one uses the
+	 * keep-alive timeout, the head has the header timeout from its first byte.
+	 * The response itself is not timed.
+	 * 
+	 * @param first true for the first request of the connection
+	 * @return false if the client closed, idled out or was too slow to send
+	 *         the head
+	 * @throws IOException if the head cannot be read or is malformed
+	 */
+	private boolean readRequest(boolean first) throws IOException {
+		head.next();
+		if (!first) {
+			phase.restart(CloseReason.KEEP_ALIVE_TIMEOUT, ProxyConfig.CLIENT_KEEP_ALIVE_TIMEOUT);
+		}
+		while (!head.parse()) {
+			boolean idle = head.isEmpty();
+			if (!idle && phase.reason() == CloseReason.KEEP_ALIVE_TIMEOUT) {
+				phase.restart(CloseReason.HEADER_TIMEOUT, ProxyConfig.TIMEOUT_HEADER);
+			}
+			int read;
 			try {
-				clientSocket.close();
-			} catch (IOException e1) {
-				e1.printStackTrace();
+				read = head.read(proxyToClientIs);
+			} catch (IOException e) {
+				if (timedOut()) {
+					// Counted by the reason of the timeout
+					return false;
+				}
+				throw e;
+			}
+			if (read < 0) {
+				if (idle) {
+					return false;
+				}
+				throw new EOFException("Connection closed inside an HTTP head");
 			}
-			throw e;
 		}
+		phase.suspend();
+		return true;
 	}
 
+	/**
+	 * Send the status line and head of a response, the body is written to
+	 * proxyToClientOs afterwards
+	 * 
+	 * @param status    status code and reason phrase, e.g. "200 OK"
+	 * @param headers   end to end fields of the response, framing included
+	 * @param keepAlive false to tell the client the connection closes after it
+	 * @throws IOException if the client connection fails
+	 */
+	private void writeHead(String status, HttpHeaders headers, boolean keepAlive) throws IOException {
+		if (stream != null) {
+			// The fields go in a HEADERS frame, the body in DATA frames
+			stream.sendHeaders(status, headers, false);
+			return;
+		}
+		String head = "HTTP/1.1 " + status + "\r\n" +
+				"Proxy-agent: ProxyServer/1.0\r\n" +
+				"Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n";
+		proxyToClientOs.write(head.getBytes(StandardCharsets.ISO_8859_1));
+		headers.writeTo(proxyToClientOs);
+	}
+
+	/**
+	 * Answer a request which cannot be served, the connection then closes. What
+	 * the client still sends is read for a moment first, closing with unread
+	 * bytes would reset the connection before the client reads the answer.
+	 * 
+	 * @param status status code and reason phrase
+	 */
+	private void rejectRequest(String status) {
+		try {
+			sendResponse(status, null, new byte[0], false);
+			clientSocket.shutdownOutput();
+			clientSocket.setSoTimeout(1000);
+			long deadline = System.currentTimeMillis() + 1000;
+			byte[] discard = new byte[16 * 1024];
+			while (System.currentTimeMillis() < deadline && proxyToClientIs.read(discard) != -1) {
+			}
+		} catch (IOException e) {
+			// Gone already, or still sending when the wait ended
+		}
+	}
+
+	/**
+	 * Send a response whose whole body is in memory
+	 * 
+	 * @return keepAlive
+	 */
+	private boolean sendResponse(String status, String contentType, byte[] body, boolean keepAlive)
+			throws IOException {
+		HttpHeaders headers = new HttpHeaders();
+		if (contentType != null) {
+			headers.add("Content-Type", contentType);
+		}
+		headers.add("Content-Length", Integer.toString(body.length));
+		writeHead(status, headers, keepAlive);
+		if (!head.isMethod("HEAD")) {
+			proxyToClientOs.write(body);
+		}
+		proxyToClientOs.flush();
+		return keepAlive;
+	}
+
+	/**
+	 * Relay the response of an origin to the client, keeping its end to end
+	 * headers and framing it for the client connection: with its own length when
+	 * known, chunked for a HTTP/1.1 client otherwise, or by closing the connection.
+	 * 
+	 * @param response  response of the origin, not closed
+	 * @param keepAlive false if the connection closes after this response
+	 * @param copy      also receives the body when not null, even if the client
+	 *                  leaves before its end
+	 * @return true if the connection can carry another request
+	 * @throws IOException if either connection fails
+	 */
+	private boolean relayResponse(HttpUpstream.Response response, boolean keepAlive, OutputStream copy)
+			throws IOException {
+		HttpHeaders headers = response.headers.endToEnd();
+
+		OutputStream body = proxyToClientOs;
+		ChunkedOutputStream chunked = null;
+		if (response.status != 204 && response.status != 304 && !head.isMethod("HEAD")) {
+			// Otherwise no body whatever the headers say, a HEAD keeping the length given by the origin
+			keepAlive = frameBody(headers, response.body.length, keepAlive);
+			if (headers.get("Transfer-Encoding") != null) {
+				body = chunked = new ChunkedOutputStream(proxyToClientOs);
+			}
+		}
+		IOException clientError = null;
+		try {
+			writeHead(response.statusLine.substring(response.statusLine.indexOf(' ') + 1), headers, keepAlive);
+		} catch (IOException e) {
+			clientError = e;
+		}
+
+		byte[] buffer = new byte[16 * 1024];
+		int read;
+		while ((read = response.body.read(buffer)) != -1) {
+			// The copy goes first, requests following the fill wait for it
+			if (copy != null) {
+				copy.write(buffer, 0, read);
+			}
+			if (clientError == null) {
+				try {
+					body.write(buffer, 0, read);
+				} catch (IOException e) {
+					clientError = e;
+				}
+			}
+			if (clientError != null && copy == null) {
+				throw clientError;
+			}
+		}
+		if (clientError == null) {
+			try {
+				if (chunked != null) {
+					chunked.finish();
+				}
+				proxyToClientOs.flush();
+			} catch (IOException e) {
+				clientError = e;
+			}
+		}
+		if (clientError != null) {
+			// A client gone before the end does not cut the copy short, only its connection
+			if (copy == null) {
+				throw clientError;
+			}
+			return false;
+		}
+		return keepAlive;
+	}
+
+
+	/**
+	 * Set the framing of a body: its length when known, chunked for a HTTP/1.1
+	 * client otherwise, a HTTP/2 stream needing neither
+	 * 
+	 * @param headers   headers of the response, updated
+	 * @param length    length of the body, negative if unknown
+	 * @param keepAlive false if the connection closes after this response
+	 * @return false if the connection must close to end the body
+	 */
+	private boolean frameBody(HttpHeaders headers, long length, boolean keepAlive) {
+		if (length >= 0) {
+			headers.set("Content-Length", Long.toString(length));
+			return keepAlive;
+		}
+		if (stream != null) {
+			// The end of the stream ends the body
+			return keepAlive;
+		}
+		if (clientHttp11) {
+			headers.set("Transfer-Encoding", "chunked");
+			return keepAlive;
+		}
+		// A HTTP/1.0 client only sees the end of the body when the connection closes
+		return false;
+	}
+
+	/**
+	 * Send the response another request is filling the cache with, streaming
+	 * its body as the fill writes it
+	 * 
+	 * @param fill      running fill of the requested URL
+	 * @param keepAlive false if the connection closes after this response
+	 * @return true if the connection can carry another request, null if the
+	 *         fill shares no body and nothing was sent
+	 */
+	private Boolean sendFillToClient(CacheFill fill, boolean keepAlive) {
+		try {
+			if (!fill.follow(ProxyConfig.UPSTREAM_READ_TIMEOUT)) {
+				return null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		try {
+			HttpHeaders headers = fill.headers();
+			headers.set("Age", "0");
+			keepAlive = frameBody(headers, fill.length(), keepAlive);
+			OutputStream body = proxyToClientOs;
+			ChunkedOutputStream chunked = null;
+			if (headers.get("Transfer-Encoding") != null) {
+				body = chunked = new ChunkedOutputStream(proxyToClientOs);
+			}
+			writeHead("200 OK", headers, keepAlive);
+
+			ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+			long position = 0;
+			int read;
+			while ((read = fill.read(buffer, position, ProxyConfig.UPSTREAM_READ_TIMEOUT)) != -1) {
+				body.write(buffer.array(), 0, read);
+				position += read;
+				buffer.clear();
+				// Send what arrived before waiting for more
+				proxyToClientOs.flush();
+			}
+			if (chunked != null) {
+				chunked.finish();
+			}
+			proxyToClientOs.flush();
+			return keepAlive;
+		} catch (IOException e) {
+			// The head is sent, the client can only learn of the failure by the close
+			requestFailed();
+			System.out.println("Error following cache fill of " + fill.url);
+			e.printStackTrace();
+			return false;
+		} finally {
+			fill.release();
+		}
+	}
 	
 	/** 
 	 * @param url
@@ -174,225 +735,201 @@ public class RequestHandler implements Runnable {
 	}
 
 	/**
-	 * Sends the specified cached file to the client
+	 * Sends the specified cached response to the client.
+	 * The store holds the body as received, or gzip compressed for text, see
+	 * Compression. A body is sent as stored when the client accepts its coding,
+	 * the kernel copying it straight from the page cache to the socket. A gzip
+	 * body is decompressed on the fly for a client not accepting gzip.
 	 * 
-	 * @param cachedFile The file to be sent (can be image/text)
+	 * @param cached         The response to be sent, its body can be image/text
+	 * @param requestHeaders headers of the client request
+	 * @param keepAlive      false if the connection closes after this response
+	 * @return true if the connection can carry another request
 	 */
-	private void sendCachedPageToClient(File cachedFile) {
-		// Read from File containing cached web page
-		try {
-			// If file is an image write data to client using buffered image.
-			String fileExtension = cachedFile.getName().substring(cachedFile.getName().lastIndexOf('.'));
-
-			// Response that will be sent to the server
-			String response;
-			if ((fileExtension.contains(".png")) || fileExtension.contains(".jpg") ||
-					fileExtension.contains(".jpeg") || fileExtension.contains(".gif")) {
-				// Read in image from storage
-				BufferedImage image = ImageIO.read(cachedFile);
-
-				if (image == null) {
-					System.out.println("Image " + cachedFile.getName() + " was null");
-					response = "HTTP/1.0 404 NOT FOUND \n" +
-							"Proxy-agent: ProxyServer/1.0\n" +
-							"\r\n";
-					proxyToClientBw.write(response);
-					proxyToClientBw.flush();
-				} else {
-					response = "HTTP/1.0 200 OK\n" +
-							"Proxy-agent: ProxyServer/1.0\n" +
-							"\r\n";
-					proxyToClientBw.write(response);
-					proxyToClientBw.flush();
-					ImageIO.write(image, fileExtension.substring(1), clientSocket.getOutputStream());
+	private boolean sendCachedPageToClient(CachedResponse cached, HttpHeaders requestHeaders, boolean keepAlive) {
+		// Read from the segment containing the cached web page
+		try (SegmentStore.Body body = Proxy.store.open(cached.hash)) {
+			if (body == null) {
+				throw new IOException("Body " + cached.hash + " missing from the store");
+			}
+			long length = body.length;
+			// Stored origin headers, with the age the response has reached
+			HttpHeaders headers = cached.headers.endToEnd();
+			headers.set("Age", Long.toString(cached.currentAge(System.currentTimeMillis()) / 1000));
+
+			if (Compression.isGzip(headers)) {
+				// Both codings are served for this URL, and the bytes differ from what the ETag names
+				if (!headers.hasToken("Vary", "Accept-Encoding")) {
+					headers.add("Vary", "Accept-Encoding");
+				}
+				String etag = headers.get("ETag");
+				if (etag != null && !etag.startsWith("W/")) {
+					headers.set("ETag", "W/" + etag);
+				}
+				if (!Compression.acceptsGzip(requestHeaders)) {
+					return sendDecompressed(body, headers, keepAlive);
 				}
 			}
 
-			// Standard text based file requested
-			else {
-				BufferedReader cachedFileBufferedReader = new BufferedReader(
-						new InputStreamReader(new FileInputStream(cachedFile)));
-
-				response = "HTTP/1.0 200 OK\n" +
-						"Proxy-agent: ProxyServer/1.0\n" +
-						"\r\n";
-				proxyToClientBw.write(response);
-				proxyToClientBw.flush();
+			headers.set("Content-Length", Long.toString(length));
+			writeHead("200 OK", headers, keepAlive);
+			proxyToClientOs.flush();
+			if (head.isMethod("HEAD")) {
+				return keepAlive;
+			}
 
-				String line;
-				while ((line = cachedFileBufferedReader.readLine()) != null) {
-					proxyToClientBw.write(line);
+			SocketChannel clientChannel = stream == null ? clientSocket.getChannel() : null;
+			if (clientChannel != null) {
+				long position = 0;
+				while (position < length) {
+					position += body.transferTo(position, length - position, clientChannel);
 				}
-				proxyToClientBw.flush();
-
-				// Close resources
-				if (cachedFileBufferedReader != null) {
-					cachedFileBufferedReader.close();
+			} else {
+				ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+				long position = 0;
+				int read;
+				while ((read = body.read(buffer, position)) != -1) {
+					proxyToClientOs.write(buffer.array(), 0, read);
+					position += read;
+					buffer.clear();
 				}
+				proxyToClientOs.flush();
 			}
-
-			// Close resources
-			if (proxyToClientBw != null) {
-				proxyToClientBw.close();
-			}
+			return keepAlive;
 
 		} catch (IOException e) {
+			requestFailed();
 			System.out.println("Error Sending Cached file to client");
 			e.printStackTrace();
+			return false;
 		}
 	}
 
 	/**
-	 * Sends the contents of the file specified by the urlString to the client
+	 * Send a gzip stored body decompressed. Its length is only known once sent,
+	 * so it goes chunked to a HTTP/1.1 client and ends with the connection
+	 * otherwise.
 	 * 
-	 * @param urlString URL ofthe file requested
+	 * @param body      gzip coded body
+	 * @param headers   headers of the stored response, updated
+	 * @param keepAlive false if the connection closes after this response
+	 * @return true if the connection can carry another request
+	 * @throws IOException if the body is corrupt or the client connection fails
 	 */
-	private void sendNonCachedToClient(String urlString) {
-		try {
-			// Compute a logical file name as per schema
-			// This allows the files on stored on disk to resemble that of the URL it was
-			// taken from
-			int fileExtensionIndex = urlString.lastIndexOf(".");
-			String fileExtension;
-
-			// Get the type of file
-			fileExtension = urlString.substring(fileExtensionIndex, urlString.length());
-
-			// Get the initial file name
-			String fileName = urlString.substring(0, fileExtensionIndex);
-
-			// Trim off http://www. as no need for it in file name
-			fileName = fileName.substring(fileName.indexOf('.') + 1);
-
-			// Remove any illegal characters from file name
-			fileName = fileName.replace("/", "__");
-			fileName = fileName.replace('.', '_');
+	private boolean sendDecompressed(SegmentStore.Body body, HttpHeaders headers, boolean keepAlive)
+			throws IOException {
+		Metrics.CACHE_DECOMPRESSED.increment();
+		headers.remove("Content-Encoding");
+		headers.remove("Content-Length");
+		keepAlive = frameBody(headers, -1, keepAlive);
+		OutputStream out = proxyToClientOs;
+		ChunkedOutputStream chunked = null;
+		if (headers.get("Transfer-Encoding") != null) {
+			out = chunked = new ChunkedOutputStream(proxyToClientOs);
+		}
+		writeHead("200 OK", headers, keepAlive);
+		if (head.isMethod("HEAD")) {
+			proxyToClientOs.flush();
+			return keepAlive;
+		}
 
-			// Trailing / result in index.html of that directory being fetched
-			if (fileExtension.contains("/")) {
-				fileExtension = fileExtension.replace("/", "__");
-				fileExtension = fileExtension.replace('.', '_');
-				fileExtension += ".html";
+		try (InputStream in = Compression.gunzip(body)) {
+			byte[] buffer = new byte[16 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
 			}
+		}
+		if (chunked != null) {
+			chunked.finish();
+		}
+		proxyToClientOs.flush();
+		return keepAlive;
+	}
 
-			fileName = fileName + fileExtension;
-
-			// Attempt to create File to cache to
-			boolean caching = true;
-			File fileToCache = null;
-			BufferedWriter fileToCacheBW = null;
-
+	/**
+	 * Sends the contents of the file specified by the urlString to the client.
+	 * A stale cached copy is revalidated with its validators, and sent from
+	 * disk when the origin answers it was not modified.
+	 * 
+	 * @param urlString      URL ofthe file requested
+	 * @param requestHeaders headers of the client request
+	 * @param cached         stale cached copy, null if none
+	 * @param fill           fill of the URL led by this request, null if the
+	 *                       response is not cached
+	 * @param keepAlive      false if the connection closes after this response
+	 * @return true if the connection can carry another request
+	 */
+	private boolean sendNonCachedToClient(String urlString, HttpHeaders requestHeaders, CachedResponse cached,
+			CacheFill fill, boolean keepAlive) {
+		try {
+			// Send the request over a pooled connection to the remote server,
+			// redirects and errors are relayed to the client
+			long requestTime = System.currentTimeMillis();
+			long upstreamStart = System.nanoTime();
+			HttpUpstream.Response response = HttpUpstream.get(new URL(urlString),
+					cached != null ? cached.conditionalHeaders() : null, false);
+			Metrics.UPSTREAM_RESPONSE.record(System.nanoTime() - upstreamStart);
+			long responseTime = System.currentTimeMillis();
 			try {
-				// Create File to cache
-				fileToCache = new File("cached/" + fileName);
-
-				if (!fileToCache.exists()) {
-					fileToCache.createNewFile();
+				if (response.status == 304 && cached != null) {
+					// Still valid, refresh the stored copy and serve it from disk
+					CachedResponse refreshed = cached.revalidated(response.headers.endToEnd(), requestTime,
+							responseTime);
+					Proxy.updateCachedPage(urlString, refreshed);
+					response.close();
+					Metrics.CACHE_REVALIDATED.increment();
+					System.out.println("Revalidated cached copy for : " + urlString + "\n");
+					return sendCachedPageToClient(refreshed, requestHeaders, keepAlive);
 				}
-
-				// Create Buffered output stream to write to cached copy of file
-				fileToCacheBW = new BufferedWriter(new FileWriter(fileToCache));
-			} catch (IOException e) {
-				System.out.println("Couldn't cache: " + fileName);
-				caching = false;
-				e.printStackTrace();
-			} catch (NullPointerException e) {
-				System.out.println("NPE opening file");
-			}
-
-			// Check if file is an image
-			if ((fileExtension.contains(".png")) || fileExtension.contains(".jpg") ||
-					fileExtension.contains(".jpeg") || fileExtension.contains(".gif")) {
-				// Create the URL
-				URL remoteURL = new URL(urlString);
-				BufferedImage image = ImageIO.read(remoteURL);
-
-				if (image != null) {
-					// Cache the image to disk
-					ImageIO.write(image, fileExtension.substring(1), fileToCache);
-
-					// Send response code to client
-					String line = "HTTP/1.0 200 OK\n" +
-							"Proxy-agent: ProxyServer/1.0\n" +
-							"\r\n";
-					proxyToClientBw.write(line);
-					proxyToClientBw.flush();
-
-					// Send them the image data
-					ImageIO.write(image, fileExtension.substring(1), clientSocket.getOutputStream());
-
-					// No image received from remote server
-				} else {
-					System.out.println("Sending 404 to client as image wasn't received from server"
-							+ fileName);
-					String error = "HTTP/1.0 404 NOT FOUND\n" +
-							"Proxy-agent: ProxyServer/1.0\n" +
-							"\r\n";
-					proxyToClientBw.write(error);
-					proxyToClientBw.flush();
-					return;
-				}
-			}
-			// File is a text file
-			else {
-				// Create the URL
-				URL remoteURL = new URL(urlString);
-				// Create a connection to remote server
-				HttpURLConnection proxyToServerCon = (HttpURLConnection) remoteURL.openConnection();
-				proxyToServerCon.setRequestProperty("Content-Type",
-						"application/x-www-form-urlencoded");
-				proxyToServerCon.setRequestProperty("Content-Language", "en-US");
-				proxyToServerCon.setUseCaches(false);
-				proxyToServerCon.setDoOutput(true);
-
-				// Create Buffered Reader from remote Server
-				BufferedReader proxyToServerBR = new BufferedReader(
-						new InputStreamReader(proxyToServerCon.getInputStream()));
-
-				// Send success code to client
-				String line = "HTTP/1.0 200 OK\n" +
-						"Proxy-agent: ProxyServer/1.0\n" +
-						"\r\n";
-				proxyToClientBw.write(line);
-
-				// Read from input stream between proxy and remote server
-				while ((line = proxyToServerBR.readLine()) != null) {
-					// Send on data to client
-					proxyToClientBw.write(line);
-
-					// Write to our cached copy of the file
-					if (caching) {
-						fileToCacheBW.write(line);
+				Metrics.CACHE_MISSES.increment();
+				if (response.status != 200 || !CachedResponse.isStorable(head.method(), requestHeaders, response.headers)) {
+					CacheFill.uncacheable(urlString);
+					if (fill != null) {
+						fill.abandon();
 					}
+					return relayResponse(response, keepAlive, null);
+				}
+				if (fill == null) {
+					// The next miss fills the cache again
+					CacheFill.cacheable(urlString);
+					return relayResponse(response, keepAlive, null);
 				}
 
-				// Ensure all data is sent by this point
-				proxyToClientBw.flush();
-
-				// Close resources
-				if (proxyToServerBR != null) {
-					proxyToServerBR.close();
+				// Headers needed to serve and revalidate the cached copy
+				HttpHeaders storedHeaders = response.headers.endToEnd();
+				storedHeaders.remove("Content-Length");
+
+				// Attempt to start the fill, followers read it as it grows
+				boolean caching = true;
+				try {
+					fill.start(new File(ProxyConfig.STORE_DIR), storedHeaders,
+							response.body.length >= 0 ? response.body.length : -1);
+				} catch (IOException e) {
+					System.out.println("Couldn't cache: " + urlString);
+					caching = false;
+					fill.abandon();
+					e.printStackTrace();
 				}
-			}
 
-			if (caching) {
-				// Ensure data written and add to our cached hash maps
-				fileToCacheBW.flush();
-				Proxy.addCachedPage(urlString, fileToCache);
-			}
+				// Text and images alike are relayed byte for byte, teeing into the cached copy
+				keepAlive = relayResponse(response, keepAlive, caching ? fill.output() : null);
 
-			// Close resources
-			if (fileToCacheBW != null) {
-				fileToCacheBW.close();
-			}
-
-			if (proxyToClientBw != null) {
-				proxyToClientBw.close();
+				if (caching) {
+					// Store the complete body and add it to our cache index
+					fill.complete(Proxy.store, storedHeaders, requestTime, responseTime);
+				}
+				return keepAlive;
+			} finally {
+				// The connection goes back to the pool
+				response.close();
 			}
 		}
 
 		catch (Exception e) {
+			requestFailed();
 			e.printStackTrace();
+			return false;
 		}
 	}
 
@@ -400,13 +937,16 @@ public class RequestHandler implements Runnable {
 	 * Handles HTTPS requests between client and remote server
 	 * 
 	 * @param urlString desired file to be transmitted over https
+	 * @param start     System.nanoTime() when the request was read
 	 */
-	private void handleHTTPSRequest(String urlString) {
-		// Extract the URL and port of remote
-		String url = urlString.substring(7);
-		String pieces[] = url.split(":");
-		url = pieces[0];
-		int port = Integer.valueOf(pieces[1]);
+	private void handleHTTPSRequest(String urlString, long start) {
+		// Host and port of remote, parsed with the request
+		String url = head.host();
+		int port = head.port();
+		if (url == null) {
+			System.out.println("Malformed request : " + head);
+			return;
+		}
 
 
 		// Path fileName = Path.of("www.youtube.com.pem");
@@ -428,19 +968,59 @@ public class RequestHandler implements Runnable {
         //     e.printStackTrace();
         // }
 
+		phase.restart(CloseReason.CONNECT_TIMEOUT, ProxyConfig.TIMEOUT_CONNECT);
 		try {
-			// Only first line of HTTPS request has been read at this point (CONNECT *)
-			// Read (and throw away) the rest of the initial data on the stream
-			for (int i = 0; i < 5; i++) {
-				proxyToClientBr.readLine();
-			}
+			// Event loop relay or interception, both work on channels
+			boolean intercept = Proxy.interceptTls;
+			if ((intercept || Proxy.tunnelMode == Proxy.TunnelMode.NIO) && clientSocket.getChannel() != null) {
+				SSLContext hostContext = null;
+				if (intercept) {
+					// Dynamically generate a certificate for a site
+					hostContext = ch.genCert(url);
+					if (hostContext == null) {
+						throw new IOException("No certificate for " + url);
+					}
+				}
+
+				SocketChannel proxyToServerChannel = UpstreamPool.get().openTunnel(url, port);
+				upstream = proxyToServerChannel;
+
+				proxyToClientBw.write("HTTP/1.0 200 Connection established\r\n" +
+						"Proxy-Agent: ProxyServer/1.0\r\n" +
+						"\r\n");
+				proxyToClientBw.flush();
+				Metrics.TUNNEL_SETUP.record(System.nanoTime() - start);
+
+				// Bytes the client sent right behind its request, such as its TLS ClientHello
+				ByteBuffer received = head.remaining();
+				if (intercept) {
+					// Terminate TLS on both legs and relay the decrypted traffic on this thread
+					phase.restart(CloseReason.HANDSHAKE_TIMEOUT, ProxyConfig.TIMEOUT_HANDSHAKE);
+					try {
+						closedBy = new TlsInterceptor(clientSocket.getChannel(), proxyToServerChannel, hostContext,
+								url, port, received, phase).run();
+					} finally {
+						proxyToServerChannel.close();
+					}
+					return;
+				}
 
-			// Get actual IP associated with this URL through DNS
-			InetAddress address = InetAddress.getByName(url);
+				// Event loop relay: no thread is kept for the tunnel once it is established
+				while (received.hasRemaining()) {
+					proxyToServerChannel.write(received);
+				}
+				// The engine times the tunnel from here, with what is left of the lifetime
+				long lifetimeLeft = lifetime == null ? 0 : lifetime.remaining();
+				if (phase.cancel() && (lifetime == null || lifetime.cancel())) {
+					TunnelEngine.get().register(clientSocket.getChannel(), proxyToServerChannel, lifetimeLeft, loop);
+					handedOff = true;
+				}
+				return;
+			}
 
 			// Open a socket to the remote server
-			Socket proxyToServerSocket = new Socket(address, port);
-			proxyToServerSocket.setSoTimeout(5000);
+			Socket proxyToServerSocket = UpstreamPool.get().openTunnel(url, port).socket();
+			upstream = proxyToServerSocket;
 
 
 			// // Load the trust store, the default type is "pkcs12", the alternative is "jks"
@@ -486,7 +1066,11 @@ public class RequestHandler implements Runnable {
 					"\r\n";
 			proxyToClientBw.write(line);
 			proxyToClientBw.flush();
+			Metrics.TUNNEL_SETUP.record(System.nanoTime() - start);
 
+			// Forward what the client sent right behind its request
+			ByteBuffer received = head.remaining();
+			proxyToServerSocket.getOutputStream().write(received.array(), received.position(), received.remaining());
 		
 			// Client and Remote will both start sending data to proxy at this point
 			// Proxy needs to asynchronously read data from each party and send it to the
@@ -502,27 +1086,26 @@ public class RequestHandler implements Runnable {
 
 			// Create a new thread to listen to client and transmit to server
 			ClientToServerHttpsTransmit clientToServerHttps = new ClientToServerHttpsTransmit(
-					clientSocket.getInputStream(), proxyToServerSocket.getOutputStream());
+					proxyToClientIs, proxyToServerSocket);
 
+			// The tunnel lives as long as bytes move in either direction
+			phase.restart(CloseReason.IDLE_TIMEOUT, ProxyConfig.TIMEOUT_IDLE);
 			httpsClientToServer = new Thread(clientToServerHttps);
 			httpsClientToServer.start();
 
 			// Listen to remote server and relay to client
+			TunnelStats.tunnels.increment();
+			TunnelStats.open.incrementAndGet();
 			try {
-				byte[] buffer = new byte[4096];
-				int read;
-				do {
-					read = proxyToServerSocket.getInputStream().read(buffer);
-					if (read > 0) {
-						clientSocket.getOutputStream().write(buffer, 0, read);
-						if (proxyToServerSocket.getInputStream().available() < 1) {
-							clientSocket.getOutputStream().flush();
-						}
-					}
-				} while (read >= 0);
-			} catch (SocketTimeoutException e) {
-			} catch (IOException e) { 
-				e.printStackTrace();
+				relay(proxyToServerSocket.getInputStream(), clientSocket.getOutputStream(), phase);
+				closedBy = clientEnded ? CloseReason.CLIENT : CloseReason.ORIGIN;
+			} catch (IOException e) {
+				if (!timedOut()) {
+					closedBy = CloseReason.ERROR;
+					e.printStackTrace();
+				}
+			} finally {
+				TunnelStats.open.decrementAndGet();
 			}
 
 			// Close resources
@@ -540,6 +1123,7 @@ public class RequestHandler implements Runnable {
 			}
 
 		} catch (SocketTimeoutException e) {
+			requestFailed();
 			String line = "HTTP/1.0 504 Timeout Occured after 10s\n" +
 					"User-Agent: ProxyServer/1.0\n" +
 					"\r\n";
@@ -550,11 +1134,57 @@ public class RequestHandler implements Runnable {
 				ioe.printStackTrace();
 			}
 		} catch (Exception e) {
+			if (timedOut()) {
+				System.out.println("HTTPS " + urlString + " closed by its " + phase.reason().label.replace('_', ' '));
+				return;
+			}
+			requestFailed();
 			System.out.println("Error on HTTPS : " + urlString);
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Copy one direction of a blocking tunnel until the end of its stream.
+	 * Each read takes whatever the socket holds, up to the buffer, and is
+	 * written at once to the unbuffered socket stream, so there is one write per
+	 * read and no call to ask what else is available. The buffer comes from the
+	 * heap pool and follows the throughput: a read filling it doubles the next
+	 * one, a read under a quarter of it halves it.
+	 * 
+	 * @param in   stream of the sending side
+	 * @param out  stream of the receiving side
+	 * @param idle timeout pushed back on every read, null for none
+	 * @throws IOException if either side fails
+	 */
+	private static void relay(InputStream in, OutputStream out, TimerWheel.Timeout idle) throws IOException {
+		ByteBuffer buffer = BufferPool.HEAP.acquire(ProxyConfig.TUNNEL_BUFFER_SIZE);
+		try {
+			int read;
+			while (true) {
+				TunnelStats.reads.increment();
+				read = in.read(buffer.array(), 0, buffer.capacity());
+				if (read < 0) {
+					break;
+				}
+				if (idle != null) {
+					idle.touch();
+				}
+				out.write(buffer.array(), 0, read);
+				TunnelStats.writes.increment();
+				TunnelStats.bytes.add(read);
+
+				int size = BufferPool.nextSize(buffer.capacity(), read);
+				if (size != buffer.capacity()) {
+					BufferPool.HEAP.release(buffer);
+					buffer = BufferPool.HEAP.acquire(size);
+				}
+			}
+		} finally {
+			BufferPool.HEAP.release(buffer);
+		}
+	}
+
 	/**
 	 * Listen to data from client and transmits it to server.
 	 * This is done on a separate thread as must be done
@@ -564,39 +1194,35 @@ public class RequestHandler implements Runnable {
 	class ClientToServerHttpsTransmit implements Runnable {
 
 		InputStream proxyToClientIS;
-		OutputStream proxyToServerOS;
+		Socket proxyToServerSocket;
 
 		/**
 		 * Creates Object to Listen to Client and Transmit that data to the server
 		 * 
-		 * @param proxyToClientIS Stream that proxy uses to receive data from client
-		 * @param proxyToServerOS Stream that proxy uses to transmit data to remote
-		 *                        server
+		 * @param proxyToClientIS     Stream that proxy uses to receive data from
+		 *                            client
+		 * @param proxyToServerSocket Socket that proxy uses to transmit data to
+		 *                            remote server
 		 */
-		public ClientToServerHttpsTransmit(InputStream proxyToClientIS, OutputStream proxyToServerOS) {
+		public ClientToServerHttpsTransmit(InputStream proxyToClientIS, Socket proxyToServerSocket) {
 			this.proxyToClientIS = proxyToClientIS;
-			this.proxyToServerOS = proxyToServerOS;
+			this.proxyToServerSocket = proxyToServerSocket;
 		}
 
 		@Override
 		public void run() {
 			try {
-				// Read byte by byte from client and send directly to server
-				byte[] buffer = new byte[4096];
-				int read;
-				do {
-					read = proxyToClientIS.read(buffer);
-					if (read > 0) {
-						proxyToServerOS.write(buffer, 0, read);
-						if (proxyToClientIS.available() < 1) {
-							proxyToServerOS.flush();
-						}
-					}
-				} while (read >= 0);
-			} catch (SocketTimeoutException ste) {
+				// Read from client and send directly to server
+				relay(proxyToClientIS, proxyToServerSocket.getOutputStream(), phase);
+				// Forward the half close so the server sees the end of stream and ends the tunnel
+				clientEnded = true;
+				proxyToServerSocket.shutdownOutput();
 			} catch (IOException e) {
-				System.out.println("Proxy to client HTTPS read timed out");
-				e.printStackTrace();
+				// The other direction or a timeout closing the sockets ends this one too
+				if (!clientSocket.isClosed() && !proxyToServerSocket.isClosed()) {
+					System.out.println("Proxy to client HTTPS read failed");
+					e.printStackTrace();
+				}
 			}
 		}
 	}
@@ -604,31 +1230,18 @@ public class RequestHandler implements Runnable {
 	/**
 	 * This method is called when user requests a page that is blocked by the proxy.
 	 * Sends an access forbidden message back to the client
+	 * 
+	 * @param keepAlive false if the connection closes after this response
+	 * @return true if the connection can carry another request
 	 */
-	private void blockedSiteRequested() {
+	private boolean blockedSiteRequested(boolean keepAlive) {
 		try {
-			BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-			String line = "HTTP/1.0 403 Access Forbidden \n" +
-					"User-Agent: ProxyServer/1.0\n" +
-					"\r\n";
-			bufferedWriter.write(line);
-			bufferedWriter.flush();
+			return sendResponse("403 Access Forbidden", null, new byte[0], keepAlive);
 		} catch (IOException e) {
 			System.out.println("Error writing to client when requested a blocked site");
 			e.printStackTrace();
+			return false;
 		}
 	}
-	
-	/** 
-	 * @param path
-	 * @return Certificate
-	 * @throws IOException
-	 * @throws CertificateException
-	 */
-	private static Certificate readCert(String path) throws IOException, CertificateException {
-        try (FileInputStream fin = new FileInputStream(path)) {
-            return CertificateFactory.getInstance("X.509").generateCertificate(fin);
-        }
-    }
 
 }
@@ -0,0 +1,539 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Head of an HTTP request, parsed in place in the buffer of its connection.
+ *
+ * The bytes of the client are read into a buffer kept for the whole
+ * connection and scanned as they arrive, each read resuming the scan where the
+ * previous one stopped. The request line and the header fields are recorded
+ * as offsets into the buffer: method, version, port and header tokens are
+ * matched on the bytes, and a String is only made for what a caller asks for.
+ * Bytes received after the head stay in the buffer. They are the next
+ * pipelined request, parsed by next() without reading the socket, or the
+ * first bytes of a tunnel, handed over by remaining().
+ */
+public final class RequestHead {
+	private static final int INITIAL_SIZE = 8 * 1024;
+
+	// Methods returned without allocating a String
+	private static final String[] METHODS = { "GET", "HEAD", "POST", "PUT", "DELETE", "CONNECT", "OPTIONS",
+			"TRACE", "PATCH" };
+
+	private final int maxSize;
+	private byte[] buffer = new byte[INITIAL_SIZE];
+	// Start of the head and end of the bytes received
+	private int start;
+	private int limit;
+	// Next byte to scan and start of its line
+	private int scan;
+	private int lineStart;
+	// End of the head, after its empty line, 0 while incomplete
+	private int end;
+
+	// Request line, methodEnd is 0 until it is parsed
+	private int methodEnd;
+	private int targetStart;
+	private int targetEnd;
+	private int versionStart;
+	private int versionEnd;
+
+	// Name start, name end, value start and value end of each field
+	private int[] fields = new int[4 * 16];
+	private int fieldCount;
+
+	// Host requested, from the target or the Host field, -1 if none
+	private int hostStart;
+	private int hostEnd;
+	private int port;
+
+	private HttpHeaders headers;
+
+	/**
+	 * @param maxSize longest head accepted, in bytes
+	 */
+	public RequestHead(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Drop the current head and start parsing the bytes following it
+	 */
+	public void next() {
+		if (end > 0) {
+			start = end;
+		}
+		if (start == limit) {
+			start = limit = 0;
+		}
+		scan = lineStart = start;
+		end = 0;
+		methodEnd = 0;
+		fieldCount = 0;
+		hostStart = hostEnd = -1;
+		port = -1;
+		headers = null;
+	}
+
+	/**
+	 * @return true while no byte of the next request was received
+	 */
+	public boolean isEmpty() {
+		return start == limit;
+	}
+
+	/**
+	 * Read what the client sent so far into the buffer
+	 *
+	 * @param in stream of the client connection
+	 * @return number of bytes read, -1 at the end of the stream
+	 * @throws IOException if the stream fails, TooLarge if the head is too long
+	 */
+	public int read(InputStream in) throws IOException {
+		if (limit == buffer.length) {
+			if (start > 0) {
+				// Move the partial head to the front of the buffer
+				shift(-start);
+			} else if (buffer.length < maxSize) {
+				buffer = Arrays.copyOf(buffer, Math.min(maxSize, buffer.length * 2));
+			} else {
+				throw new TooLarge("HTTP request head longer than " + maxSize + " bytes");
+			}
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read > 0) {
+			limit += read;
+		}
+		return read;
+	}
+
+	private void shift(int by) {
+		System.arraycopy(buffer, start, buffer, start + by, limit - start);
+		start += by;
+		limit += by;
+		scan += by;
+		lineStart += by;
+		if (methodEnd > 0) {
+			methodEnd += by;
+			targetStart += by;
+			targetEnd += by;
+			versionStart += by;
+			versionEnd += by;
+		}
+		for (int i = 0; i < fieldCount * 4; i++) {
+			fields[i] += by;
+		}
+	}
+
+	/**
+	 * Scan the bytes received since the last call
+	 *
+	 * @return true once the whole head is received
+	 * @throws IOException if the request line or a field is malformed
+	 */
+	public boolean parse() throws IOException {
+		if (end > 0) {
+			return true;
+		}
+		while (scan < limit) {
+			if (buffer[scan++] != '\n') {
+				continue;
+			}
+			int lineEnd = scan - 1;
+			if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+				lineEnd--;
+			}
+			if (methodEnd == 0) {
+				if (lineEnd == lineStart) {
+					// Empty lines before the request line are ignored
+					start = scan;
+				} else {
+					requestLine(lineStart, lineEnd);
+				}
+			} else if (lineEnd == lineStart) {
+				end = scan;
+				authority();
+				return true;
+			} else {
+				field(lineStart, lineEnd);
+			}
+			lineStart = scan;
+		}
+		return false;
+	}
+
+	/**
+	 * Split "METHOD target HTTP/x.y"
+	 */
+	private void requestLine(int from, int to) throws IOException {
+		int space = indexOf(' ', from, to);
+		int second = space < 0 ? -1 : indexOf(' ', space + 1, to);
+		if (space <= from || second <= space + 1 || indexOf(' ', second + 1, to) >= 0
+				|| !matches(second + 1, Math.min(to, second + 6), "HTTP/", false)) {
+			throw new IOException("Malformed request : " + string(from, to));
+		}
+		methodEnd = space;
+		targetStart = space + 1;
+		targetEnd = second;
+		versionStart = second + 1;
+		versionEnd = to;
+	}
+
+	/**
+	 * Record the offsets of a "Name: value" line, lines without a name are
+	 * ignored
+	 */
+	private void field(int from, int to) throws IOException {
+		if (buffer[from] == ' ' || buffer[from] == '\t') {
+			throw new IOException("Obsolete line folding in request head");
+		}
+		int colon = indexOf(':', from, to);
+		if (colon <= from) {
+			return;
+		}
+		int nameEnd = colon;
+		while (nameEnd > from && isSpace(buffer[nameEnd - 1])) {
+			nameEnd--;
+		}
+		int valueStart = colon + 1;
+		while (valueStart < to && isSpace(buffer[valueStart])) {
+			valueStart++;
+		}
+		int valueEnd = to;
+		while (valueEnd > valueStart && isSpace(buffer[valueEnd - 1])) {
+			valueEnd--;
+		}
+		if (fieldCount * 4 == fields.length) {
+			fields = Arrays.copyOf(fields, fields.length * 2);
+		}
+		int i = fieldCount++ * 4;
+		fields[i] = from;
+		fields[i + 1] = nameEnd;
+		fields[i + 2] = valueStart;
+		fields[i + 3] = valueEnd;
+	}
+
+	/**
+	 * Find the host and port requested: the authority of an absolute or
+	 * CONNECT target, otherwise the Host field
+	 */
+	private void authority() throws IOException {
+		int from;
+		int to;
+		boolean secure = isMethod("CONNECT");
+		if (targetEnd > targetStart && buffer[targetStart] != '/' && buffer[targetStart] != '*') {
+			from = targetStart;
+			int scheme = indexOf("://", targetStart, targetEnd);
+			if (scheme >= 0) {
+				secure = matches(targetStart, scheme, "https", true);
+				from = scheme + 3;
+			}
+			to = from;
+			while (to < targetEnd && buffer[to] != '/' && buffer[to] != '?' && buffer[to] != '#') {
+				to++;
+			}
+		} else {
+			int field = field("Host");
+			if (field < 0) {
+				return;
+			}
+			from = fields[field + 2];
+			to = fields[field + 3];
+		}
+		if (from == to) {
+			return;
+		}
+
+		int colon;
+		if (buffer[from] == '[') {
+			// IPv6 literal, kept without its brackets
+			int bracket = indexOf(']', from, to);
+			if (bracket < 0) {
+				throw new IOException("Malformed request : " + string(methodEnd + 1, targetEnd));
+			}
+			hostStart = from + 1;
+			hostEnd = bracket;
+			colon = bracket + 1 < to && buffer[bracket + 1] == ':' ? bracket + 1 : -1;
+		} else {
+			colon = indexOf(':', from, to);
+			hostStart = from;
+			hostEnd = colon < 0 ? to : colon;
+		}
+		if (colon < 0 || colon == to - 1) {
+			port = secure ? 443 : 80;
+			return;
+		}
+		port = 0;
+		for (int i = colon + 1; i < to; i++) {
+			byte b = buffer[i];
+			if (b < '0' || b > '9' || port > 65535) {
+				throw new IOException("Malformed request : bad port in " + string(from, to));
+			}
+			port = port * 10 + (b - '0');
+		}
+		if (port > 65535) {
+			throw new IOException("Malformed request : bad port in " + string(from, to));
+		}
+	}
+
+	/**
+	 * @param method method name, in upper case
+	 * @return true if the request uses it
+	 */
+	public boolean isMethod(String method) {
+		return matches(start, methodEnd, method, false);
+	}
+
+	/**
+	 * @return method of the request, a shared constant for the standard ones
+	 */
+	public String method() {
+		for (String method : METHODS) {
+			if (isMethod(method)) {
+				return method;
+			}
+		}
+		return string(start, methodEnd);
+	}
+
+	/**
+	 * @return request target as sent
+	 */
+	public String target() {
+		return string(targetStart, targetEnd);
+	}
+
+	/**
+	 * @return true for a HTTP/1.1 request
+	 */
+	public boolean isHttp11() {
+		return matches(versionStart, versionEnd, "HTTP/1.1", false);
+	}
+
+	/**
+	 * Absolute URL of the request, http:// being added to a target without
+	 * scheme and the Host field to a path. A request without host, see host(),
+	 * has no usable URL.
+	 *
+	 * @return URL used for the cache and the blocklist
+	 */
+	public String url() {
+		if (matches(targetStart, Math.min(targetEnd, targetStart + 4), "http", false)) {
+			return target();
+		}
+		if (targetEnd > targetStart && buffer[targetStart] == '/') {
+			int field = field("Host");
+			if (field >= 0) {
+				return "http://" + string(fields[field + 2], fields[field + 3]) + target();
+			}
+		}
+		return "http://" + target();
+	}
+
+	/**
+	 * @return host requested, without brackets for an IPv6 literal, null if
+	 *         none
+	 */
+	public String host() {
+		return hostStart < 0 ? null : string(hostStart, hostEnd);
+	}
+
+	/**
+	 * @return port requested, the default of the scheme if none is given, -1
+	 *         without a host
+	 */
+	public int port() {
+		return port;
+	}
+
+	/**
+	 * Value of the first field with this name
+	 *
+	 * @param name header name
+	 * @return value, null if absent
+	 */
+	public String get(String name) {
+		int field = field(name);
+		return field < 0 ? null : string(fields[field + 2], fields[field + 3]);
+	}
+
+	/**
+	 * @param name header name
+	 * @return true if the request has a field with this name
+	 */
+	public boolean has(String name) {
+		return field(name) >= 0;
+	}
+
+	/**
+	 * @param name  header name
+	 * @param token token looked for, such as "close" in Connection
+	 * @return true if one of the comma separated values of the header is token
+	 */
+	public boolean hasToken(String name, String token) {
+		for (int i = 0; i < fieldCount * 4; i += 4) {
+			if (!matches(fields[i], fields[i + 1], name, true)) {
+				continue;
+			}
+			int valueEnd = fields[i + 3];
+			int from = fields[i + 2];
+			while (from <= valueEnd) {
+				int comma = indexOf(',', from, valueEnd);
+				int to = comma < 0 ? valueEnd : comma;
+				int tokenStart = from;
+				int tokenEnd = to;
+				while (tokenStart < tokenEnd && isSpace(buffer[tokenStart])) {
+					tokenStart++;
+				}
+				while (tokenEnd > tokenStart && isSpace(buffer[tokenEnd - 1])) {
+					tokenEnd--;
+				}
+				if (matches(tokenStart, tokenEnd, token, true)) {
+					return true;
+				}
+				from = to + 1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Header fields as HttpHeaders, made on first use for the code working on
+	 * them such as the cache
+	 *
+	 * @return HttpHeaders
+	 */
+	public HttpHeaders headers() {
+		if (headers == null) {
+			headers = new HttpHeaders();
+			for (int i = 0; i < fieldCount * 4; i += 4) {
+				headers.add(string(fields[i], fields[i + 1]), string(fields[i + 2], fields[i + 3]));
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Stream of the request body: the bytes received after the head, then
+	 * those of the client. Only what is read is consumed, the bytes following
+	 * the body stay for next().
+	 *
+	 * @param in stream of the client connection
+	 * @return InputStream, framing is left to the caller
+	 */
+	public InputStream body(InputStream in) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (end < limit) {
+					int n = Math.min(len, limit - end);
+					System.arraycopy(buffer, end, b, off, n);
+					end += n;
+					return n;
+				}
+				return in.read(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Bytes received after the head, to be sent on by whoever takes over the
+	 * connection. They are consumed from this head.
+	 *
+	 * @return buffer wrapping them, valid until the next read
+	 */
+	public ByteBuffer remaining() {
+		int from = end > 0 ? end : start;
+		ByteBuffer rest = ByteBuffer.wrap(buffer, from, limit - from);
+		start = end = limit;
+		return rest;
+	}
+
+	/**
+	 * @return request line
+	 */
+	@Override
+	public String toString() {
+		return methodEnd == 0 ? "" : string(start, versionEnd);
+	}
+
+	/**
+	 * Offset of the first field with this name in fields, -1 if none
+	 */
+	private int field(String name) {
+		for (int i = 0; i < fieldCount * 4; i += 4) {
+			if (matches(fields[i], fields[i + 1], name, true)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the bytes from to to are s, ignoring ASCII case if asked
+	 */
+	private boolean matches(int from, int to, String s, boolean ignoreCase) {
+		if (to - from != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			int b = buffer[from + i];
+			int c = s.charAt(i);
+			if (b != c && !(ignoreCase && lower(b) == lower(c))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int lower(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private int indexOf(char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int indexOf(String s, int from, int to) {
+		for (int i = from; i <= to - s.length(); i++) {
+			if (matches(i, i + s.length(), s, false)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private String string(int from, int to) {
+		return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Head not fitting in the buffer, answered with a 431, or body above its
+	 * limit, answered with a 413
+	 */
+	static final class TooLarge extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		TooLarge(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,546 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content addressed store of cached bodies, appended to large segment files.
+ *
+ * A body is stored once per content: its SHA-256 is its address, and a body
+ * already stored only gains a reference. Each record of a segment is a small
+ * header (magic, length, hash) followed by the body, so the segments describe
+ * themselves and the store is rebuilt by scanning them on start.
+ * Bodies are read with positional reads and transferTo, straight from the
+ * segment to the socket.
+ *
+ * A body nobody references any more becomes dead space in its segment. A
+ * background task copies the live records of mostly dead segments to the
+ * active segment and deletes the old one once no reader uses it.
+ */
+public class SegmentStore {
+	private static final int MAGIC = 0x43414348;
+	private static final int HEADER_SIZE = 4 + 8 + 32;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	final LongAdder stored = new LongAdder();
+	final LongAdder deduplicated = new LongAdder();
+	final LongAdder compactions = new LongAdder();
+
+	private final File directory;
+	private final long segmentSize;
+	private final double compactRatio;
+	private final ConcurrentHashMap<String, Blob> blobs = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	private final ScheduledExecutorService compactor;
+
+	// Guarded by appendLock
+	private final Object appendLock = new Object();
+	private Segment active;
+
+	/**
+	 * Open the store, scanning the segments already in the directory
+	 *
+	 * @param directory          directory of the segment files
+	 * @param segmentSize        size at which a new segment is started
+	 * @param compactRatio       share of dead bytes making a segment compacted
+	 * @param compactIntervalMs  delay between compaction passes
+	 * @throws IOException if the directory cannot be read
+	 */
+	public SegmentStore(File directory, long segmentSize, double compactRatio, long compactIntervalMs)
+			throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.compactRatio = compactRatio;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		load();
+		this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "segment-compactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactor.scheduleWithFixedDelay(this::compact, compactIntervalMs, compactIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Scan the segments, keeping the first copy of every body. A record cut
+	 * short by a crash ends its segment.
+	 */
+	private void load() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Cannot list " + directory);
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".fill")) {
+				// Left over by a fill that never completed
+				file.delete();
+				continue;
+			}
+			if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			int id;
+			try {
+				id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segment segment = new Segment(id, file);
+			scan(segment);
+			segments.put(id, segment);
+		}
+		Map.Entry<Integer, Segment> last = segments.lastEntry();
+		active = last != null && last.getValue().size.get() < segmentSize ? last.getValue() : newSegment();
+	}
+
+	private void scan(Segment segment) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long position = 0;
+		long size = segment.channel.size();
+		while (position + HEADER_SIZE <= size) {
+			header.clear();
+			readFully(segment.channel, header, position);
+			header.flip();
+			long length = header.getLong(4);
+			if (header.getInt(0) != MAGIC || length < 0 || position + HEADER_SIZE + length > size) {
+				break;
+			}
+			byte[] hash = new byte[32];
+			header.position(12);
+			header.get(hash);
+			Blob blob = new Blob(segment, position + HEADER_SIZE, length);
+			if (blobs.putIfAbsent(toHex(hash), blob) != null) {
+				segment.deadBytes.addAndGet(HEADER_SIZE + length);
+			}
+			position += HEADER_SIZE + length;
+		}
+		if (position < size) {
+			System.out.println("Truncating " + segment.file + " after its last complete record");
+			segment.channel.truncate(position);
+		}
+		segment.size.set(position);
+	}
+
+	/**
+	 * Forget the bodies nobody referenced once the cache index was loaded
+	 */
+	public void releaseUnreferenced() {
+		for (String hash : blobs.keySet()) {
+			blobs.computeIfPresent(hash, (key, blob) -> {
+				if (blob.refs > 0) {
+					return blob;
+				}
+				blob.segment.deadBytes.addAndGet(HEADER_SIZE + blob.length);
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Store a body, or take a reference on the same content already stored
+	 *
+	 * @param source channel holding the body from position 0
+	 * @param length body length
+	 * @param digest SHA-256 of the body
+	 * @return hash of the body, referenced once for the caller
+	 * @throws IOException if the segment cannot be written
+	 */
+	public String put(FileChannel source, long length, byte[] digest) throws IOException {
+		String hash = toHex(digest);
+		if (retain(hash)) {
+			deduplicated.increment();
+			return hash;
+		}
+
+		Blob blob = append(source, 0, length, digest);
+		blob.refs = 1;
+		stored.increment();
+		blobs.merge(hash, blob, (existing, appended) -> {
+			// Same content stored meanwhile, this copy is dead already
+			appended.segment.deadBytes.addAndGet(HEADER_SIZE + appended.length);
+			existing.refs++;
+			return existing;
+		});
+		return hash;
+	}
+
+	/**
+	 * Store the content of a file
+	 *
+	 * @param file file to import
+	 * @return hash of the body, referenced once for the caller
+	 * @throws IOException if the file cannot be read
+	 */
+	public String put(File file) throws IOException {
+		try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MessageDigest digest = newDigest();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			long position = 0;
+			int read;
+			while ((read = source.read(buffer, position)) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+				position += read;
+			}
+			return put(source, position, digest.digest());
+		}
+	}
+
+	/**
+	 * Take one more reference on a stored body
+	 *
+	 * @param hash body hash
+	 * @return false if no such body is stored
+	 */
+	public boolean retain(String hash) {
+		return blobs.computeIfPresent(hash, (key, blob) -> {
+			blob.refs++;
+			return blob;
+		}) != null;
+	}
+
+	/**
+	 * Drop a reference, a body without reference becomes dead space
+	 *
+	 * @param hash body hash
+	 */
+	public void release(String hash) {
+		blobs.computeIfPresent(hash, (key, blob) -> {
+			if (--blob.refs > 0) {
+				return blob;
+			}
+			blob.segment.deadBytes.addAndGet(HEADER_SIZE + blob.length);
+			return null;
+		});
+	}
+
+	/**
+	 * Open a stored body for reading. The segment holding it stays on disk
+	 * until the Body is closed.
+	 *
+	 * @param hash body hash
+	 * @return Body, null if not stored
+	 */
+	public Body open(String hash) {
+		while (true) {
+			Blob blob = blobs.get(hash);
+			if (blob == null) {
+				return null;
+			}
+			Segment segment;
+			long offset;
+			synchronized (blob) {
+				segment = blob.segment;
+				offset = blob.offset;
+			}
+			if (segment.pin()) {
+				return new Body(segment, offset, blob.length);
+			}
+			// Moved by a compaction meanwhile, look again
+		}
+	}
+
+	/**
+	 * @return one line summary of the segments
+	 */
+	public String report() {
+		long size = 0;
+		long dead = 0;
+		for (Segment segment : segments.values()) {
+			size += segment.size.get();
+			dead += segment.deadBytes.get();
+		}
+		return String.format("store %d bodies in %d segments, %d bytes (%d dead), stored %d, deduplicated %d, compactions %d",
+				blobs.size(), segments.size(), size, dead, stored.sum(), deduplicated.sum(), compactions.sum());
+	}
+
+	/**
+	 * Stop compacting and close the segments
+	 */
+	public void close() {
+		compactor.shutdownNow();
+		for (Segment segment : segments.values()) {
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Write a record at the end of the active segment, starting a new segment
+	 * when it is full
+	 */
+	private Blob append(FileChannel source, long sourceOffset, long length, byte[] digest) throws IOException {
+		synchronized (appendLock) {
+			if (active.size.get() > 0 && active.size.get() + HEADER_SIZE + length > segmentSize) {
+				active = newSegment();
+			}
+			Segment segment = active;
+			long position = segment.size.get();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putLong(length).put(digest).flip();
+			while (header.hasRemaining()) {
+				segment.channel.write(header, position + HEADER_SIZE - header.remaining());
+			}
+			long copied = 0;
+			source.position(sourceOffset);
+			while (copied < length) {
+				long transferred = segment.channel.transferFrom(source, position + HEADER_SIZE + copied,
+						length - copied);
+				if (transferred <= 0) {
+					throw new IOException("Body shorter than its " + length + " bytes");
+				}
+				copied += transferred;
+			}
+			segment.size.set(position + HEADER_SIZE + length);
+			return new Blob(segment, position + HEADER_SIZE, length);
+		}
+	}
+
+	private Segment newSegment() throws IOException {
+		int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+		Segment segment = new Segment(id, file);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Copy the live bodies of mostly dead segments to the active segment, then
+	 * retire them
+	 */
+	private void compact() {
+		try {
+			for (Segment segment : segments.values()) {
+				if (segment == active || segment.size.get() == 0
+						|| segment.deadBytes.get() < segment.size.get() * compactRatio) {
+					continue;
+				}
+				List<Map.Entry<String, Blob>> live = new ArrayList<>();
+				for (Map.Entry<String, Blob> blob : blobs.entrySet()) {
+					if (blob.getValue().segment == segment) {
+						live.add(blob);
+					}
+				}
+				for (Map.Entry<String, Blob> entry : live) {
+					move(entry.getKey(), entry.getValue(), segment);
+				}
+				segments.remove(segment.id);
+				segment.retire();
+				compactions.increment();
+			}
+		} catch (IOException e) {
+			System.out.println("Segment compaction failed");
+			e.printStackTrace();
+		}
+	}
+
+	private void move(String hash, Blob blob, Segment from) throws IOException {
+		Blob copy;
+		try (FileChannel source = FileChannel.open(from.file.toPath(), StandardOpenOption.READ)) {
+			copy = append(source, blob.offset, blob.length, fromHex(hash));
+		}
+		// Readers opening it from now on use the new copy, unless it was released meanwhile
+		boolean[] moved = new boolean[1];
+		blobs.computeIfPresent(hash, (key, current) -> {
+			if (current == blob) {
+				synchronized (blob) {
+					blob.segment = copy.segment;
+					blob.offset = copy.offset;
+				}
+				moved[0] = true;
+			}
+			return current;
+		});
+		if (!moved[0]) {
+			copy.segment.deadBytes.addAndGet(HEADER_SIZE + copy.length);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of segment");
+			}
+		}
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Location of a stored body, moved by compactions
+	 */
+	static class Blob {
+		// Guarded by the Blob itself
+		Segment segment;
+		long offset;
+		final long length;
+		// Guarded by the map computing it
+		int refs;
+
+		Blob(Segment segment, long offset, long length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * One segment file. Readers pin it so a compaction does not delete it under
+	 * them, pins is -1 once it was retired.
+	 */
+	static class Segment {
+		final int id;
+		final File file;
+		final FileChannel channel;
+		final AtomicLong size = new AtomicLong();
+		final AtomicLong deadBytes = new AtomicLong();
+		private final AtomicInteger pins = new AtomicInteger();
+		private volatile boolean retired;
+
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		}
+
+		boolean pin() {
+			if (retired) {
+				return false;
+			}
+			pins.incrementAndGet();
+			if (retired) {
+				unpin();
+				return false;
+			}
+			return true;
+		}
+
+		void unpin() {
+			if (pins.decrementAndGet() == 0 && retired) {
+				delete();
+			}
+		}
+
+		void retire() {
+			retired = true;
+			if (pins.get() == 0) {
+				delete();
+			}
+		}
+
+		private synchronized void delete() {
+			if (!channel.isOpen()) {
+				return;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			file.delete();
+		}
+	}
+
+	/**
+	 * Open stored body, close it once read
+	 */
+	public static class Body implements AutoCloseable {
+		private final Segment segment;
+		private final long offset;
+		final long length;
+		private boolean closed;
+
+		Body(Segment segment, long offset, long length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Send part of the body to a channel, without copying it through the heap
+		 *
+		 * @param position offset in the body
+		 * @param count    bytes to send at most
+		 * @param target   destination
+		 * @return bytes sent
+		 * @throws IOException if either side fails
+		 */
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return segment.channel.transferTo(offset + position, Math.min(count, length - position), target);
+		}
+
+		/**
+		 * Read part of the body
+		 *
+		 * @param dst      destination
+		 * @param position offset in the body
+		 * @return bytes read, -1 at the end of the body
+		 * @throws IOException if the segment cannot be read
+		 */
+		public int read(ByteBuffer dst, long position) throws IOException {
+			if (position >= length) {
+				return -1;
+			}
+			if (dst.remaining() > length - position) {
+				dst.limit(dst.position() + (int) (length - position));
+			}
+			return segment.channel.read(dst, offset + position);
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				segment.unpin();
+			}
+		}
+	}
+}
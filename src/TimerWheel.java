@@ -0,0 +1,353 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Deadlines of every client connection, kept on one hierarchical timer wheel
+ * served by a single thread.
+ *
+ * The wheel has four levels of 256 slots. A slot of the first level holds the
+ * timeouts due on one tick, a slot of each next level 256 times as many
+ * ticks. When the ticks of a level wrap, the slot of the level above coming
+ * due is emptied into the lower levels. Filing, moving and firing a timeout
+ * are constant time whatever the number of connections.
+ *
+ * Connections push their deadline back on every read with touch(), which only
+ * writes the new deadline: the wheel looks at it when the slot comes due and
+ * files the timeout again if it moved, so traffic costs no queueing. Other
+ * changes, a new timeout, a cancelled one or an earlier deadline, are queued
+ * and applied by the wheel thread at its next tick, which alone touches the
+ * slots.
+ */
+public final class TimerWheel {
+	private static final int LEVELS = 4;
+	private static final int SLOT_BITS = 8;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int MASK = SLOTS - 1;
+	// Deadline of a timeout without any
+	private static final long NEVER = Long.MAX_VALUE;
+
+	// States of a Timeout
+	private static final int WAITING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+			.newUpdater(Timeout.class, "state");
+	private static final AtomicIntegerFieldUpdater<Timeout> QUEUED = AtomicIntegerFieldUpdater
+			.newUpdater(Timeout.class, "queued");
+
+	private static TimerWheel wheel;
+
+	private final long tickMillis;
+	private final long origin = System.nanoTime();
+	// Milliseconds since the wheel started, as of its last tick
+	private volatile long now;
+	// Last tick served, owned by the wheel thread
+	private long tick;
+	// Heads of the list of timeouts of each slot, owned by the wheel thread
+	private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+	private final Queue<Timeout> changes = new ConcurrentLinkedQueue<>();
+	private volatile int filed;
+	private final LongAdder scheduled = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+
+	/**
+	 * Return the shared wheel, starting its thread on first use
+	 *
+	 * @return TimerWheel
+	 */
+	public static synchronized TimerWheel get() {
+		if (wheel == null) {
+			wheel = new TimerWheel(ProxyConfig.TIMER_TICK);
+		}
+		return wheel;
+	}
+
+	/**
+	 * @return timeouts waiting on the shared wheel, 0 if it was not started
+	 */
+	static int pending() {
+		TimerWheel current = wheel;
+		return current == null ? 0 : current.filed;
+	}
+
+	private TimerWheel(long tickMillis) {
+		this.tickMillis = Math.max(1, tickMillis);
+		Thread thread = new Thread(this::run, "timer-wheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Start a timeout
+	 *
+	 * @param reason      why the connection closes if it fires
+	 * @param delayMillis milliseconds before it fires, 0 or less for never
+	 * @param action      run on the wheel thread when it fires, must not block
+	 * @return Timeout
+	 */
+	public Timeout schedule(CloseReason reason, long delayMillis, Runnable action) {
+		Timeout timeout = new Timeout(reason, delayMillis, action);
+		scheduled.increment();
+		QUEUED.set(timeout, 1);
+		changes.add(timeout);
+		return timeout;
+	}
+
+	private long deadline(long delayMillis) {
+		return delayMillis <= 0 ? NEVER : now + delayMillis;
+	}
+
+	private void run() {
+		while (true) {
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+			long due = elapsed / tickMillis;
+			if (due <= tick) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos((tick + 1) * tickMillis - elapsed));
+				continue;
+			}
+			now = elapsed;
+			// Late ticks, after a pause of the process, are caught up one by one
+			while (tick < due) {
+				advance(++tick);
+			}
+		}
+	}
+
+	/**
+	 * Serve one tick: bring the coarser slots coming due down, apply the
+	 * queued changes, then fire or file again the timeouts of the tick
+	 */
+	private void advance(long tick) {
+		for (int level = LEVELS - 1; level > 0; level--) {
+			if ((tick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+				int slot = (int) (tick >>> (level * SLOT_BITS)) & MASK;
+				Timeout timeout = detach(level, slot);
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					file(timeout);
+					timeout = next;
+				}
+			}
+		}
+
+		Timeout changed;
+		while ((changed = changes.poll()) != null) {
+			QUEUED.set(changed, 0);
+			file(changed);
+		}
+
+		Timeout timeout = detach(0, (int) tick & MASK);
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.state == WAITING && ticks(timeout.deadline) <= tick) {
+				expire(timeout);
+			} else {
+				// Touched since it was filed
+				file(timeout);
+			}
+			timeout = next;
+		}
+	}
+
+	private void expire(Timeout timeout) {
+		if (!STATE.compareAndSet(timeout, WAITING, EXPIRED)) {
+			return;
+		}
+		expired.increment();
+		try {
+			timeout.action.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private long ticks(long deadline) {
+		return (deadline + tickMillis - 1) / tickMillis;
+	}
+
+	/**
+	 * Take the timeouts of a slot out of it, filing them again is up to the
+	 * caller
+	 *
+	 * @return first timeout of the slot, followed through next
+	 */
+	private Timeout detach(int level, int slot) {
+		Timeout head = slots[level][slot];
+		slots[level][slot] = null;
+		int count = 0;
+		for (Timeout timeout = head; timeout != null; timeout = timeout.next) {
+			timeout.level = -1;
+			count++;
+		}
+		filed -= count;
+		return head;
+	}
+
+	/**
+	 * File a timeout by its current deadline, in the finest level where it is
+	 * less than a turn of that level away. A cancelled timeout, or one without
+	 * a deadline, is only taken out of its slot.
+	 */
+	private void file(Timeout timeout) {
+		unlink(timeout);
+		if (timeout.state != WAITING) {
+			return;
+		}
+		long deadline;
+		do {
+			deadline = timeout.deadline;
+			timeout.filedAt = deadline;
+			// An earlier deadline written meanwhile may not have been queued
+		} while (timeout.deadline < deadline);
+		if (deadline == NEVER) {
+			return;
+		}
+
+		long due = Math.max(ticks(deadline), tick);
+		int level = 0;
+		while (level < LEVELS - 1 && (due >>> (level * SLOT_BITS)) - (tick >>> (level * SLOT_BITS)) >= SLOTS) {
+			level++;
+		}
+		int shift = level * SLOT_BITS;
+		if ((due >>> shift) - (tick >>> shift) >= SLOTS) {
+			// Beyond the last level, filed again once its slot comes due
+			due = ((tick >>> shift) + MASK) << shift;
+		}
+		int slot = (int) (due >>> shift) & MASK;
+		timeout.level = level;
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = slots[level][slot];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		slots[level][slot] = timeout;
+		filed++;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.level < 0) {
+			return;
+		}
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[timeout.level][timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.level = -1;
+		filed--;
+	}
+
+	/**
+	 * @return one line of wheel counters
+	 */
+	String report() {
+		return String.format("timer wheel %d ms ticks, %d timeouts waiting, %d scheduled, %d fired", tickMillis,
+				filed, scheduled.sum(), expired.sum());
+	}
+
+	/**
+	 * Deadline of one phase of a connection. The same timeout is restarted for
+	 * each phase so a connection files a single one on the wheel.
+	 */
+	public final class Timeout {
+		private final Runnable action;
+		private volatile CloseReason reason;
+		private volatile long delay;
+		private volatile long deadline;
+		// Deadline the wheel filed, an earlier one has to be queued to be seen
+		private volatile long filedAt = NEVER;
+		volatile int state = WAITING;
+		volatile int queued;
+		// Links of the slot list, owned by the wheel thread
+		private Timeout prev;
+		private Timeout next;
+		private int level = -1;
+		private int slot;
+
+		private Timeout(CloseReason reason, long delayMillis, Runnable action) {
+			this.reason = reason;
+			this.action = action;
+			delay = delayMillis;
+			deadline = deadline(delayMillis);
+		}
+
+		/**
+		 * Push the deadline back by the delay of the phase, from now
+		 */
+		public void touch() {
+			if (delay > 0) {
+				moved(now + delay);
+			}
+		}
+
+		/**
+		 * Start a new phase, if the timeout did not fire or was cancelled
+		 *
+		 * @param reason      why the connection closes if it fires
+		 * @param delayMillis milliseconds before it fires, 0 or less for never
+		 */
+		public void restart(CloseReason reason, long delayMillis) {
+			if (state == WAITING) {
+				this.reason = reason;
+				delay = delayMillis;
+				moved(deadline(delayMillis));
+			}
+		}
+
+		/**
+		 * Stop timing until the next restart
+		 */
+		public void suspend() {
+			restart(reason, 0);
+		}
+
+		private void moved(long deadline) {
+			this.deadline = deadline;
+			if (deadline < filedAt && QUEUED.compareAndSet(this, 0, 1)) {
+				changes.add(this);
+			}
+		}
+
+		/**
+		 * @return true if the timeout was waiting, false if it fired already
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, WAITING, CANCELLED)) {
+				return state == CANCELLED;
+			}
+			// Taken out of its slot at the next tick
+			if (QUEUED.compareAndSet(this, 0, 1)) {
+				changes.add(this);
+			}
+			return true;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		public CloseReason reason() {
+			return reason;
+		}
+
+		/**
+		 * @return milliseconds left before the deadline, at least 1, or 0 if
+		 *         there is none
+		 */
+		public long remaining() {
+			long current = deadline;
+			return current == NEVER ? 0 : Math.max(1, current - now);
+		}
+	}
+}
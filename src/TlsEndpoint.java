@@ -0,0 +1,287 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * One TLS leg of an intercepted connection: an SSLEngine bound to a non
+ * blocking SocketChannel.
+ *
+ * No method ever blocks. When the channel cannot accept or provide more bytes
+ * the call returns and the caller waits for the selector, checking
+ * wantsWrite() to know whether encrypted bytes are still queued.
+ */
+public class TlsEndpoint {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	final SocketChannel channel;
+	final SSLEngine engine;
+	private ByteBuffer netIn;
+	private final ByteBuffer netOut;
+	// Receives the (never expected) application data unwrapped during the handshake
+	private ByteBuffer handshakeSink;
+	private boolean handshakeDone;
+	private boolean inboundDone;
+	private long handshakeStart;
+	private long handshakeNanos;
+
+	/**
+	 * @param channel non blocking channel of this leg
+	 * @param engine  engine already set to client or server mode
+	 */
+	public TlsEndpoint(SocketChannel channel, SSLEngine engine) {
+		this.channel = channel;
+		this.engine = engine;
+		int packetSize = engine.getSession().getPacketBufferSize();
+		this.netIn = ByteBuffer.allocate(packetSize);
+		this.netOut = ByteBuffer.allocate(packetSize);
+	}
+
+	/**
+	 * Take network bytes read from the channel before this endpoint was made
+	 *
+	 * @param bytes bytes received, consumed
+	 */
+	public void received(ByteBuffer bytes) {
+		if (bytes.remaining() > netIn.remaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(netIn.position() + bytes.remaining());
+			netIn.flip();
+			larger.put(netIn);
+			netIn = larger;
+		}
+		netIn.put(bytes);
+	}
+
+	/**
+	 * @return size a buffer must have to receive the data of any record
+	 */
+	public int applicationBufferSize() {
+		return engine.getSession().getApplicationBufferSize();
+	}
+
+	/**
+	 * Progress the handshake as far as possible without blocking
+	 *
+	 * @return true once the handshake is finished
+	 * @throws IOException if the handshake fails or the peer closes
+	 */
+	public boolean handshake() throws IOException {
+		if (handshakeDone) {
+			return true;
+		}
+		if (handshakeStart == 0) {
+			handshakeStart = System.nanoTime();
+			engine.beginHandshake();
+		}
+
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_WRAP:
+				if (!wrap(EMPTY)) {
+					return false;
+				}
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				if (!unwrapHandshake()) {
+					return false;
+				}
+				break;
+			case NEED_TASK:
+				runTasks();
+				break;
+			default:
+				// The last flight may still be queued, it is sent with the next flush
+				handshakeDone = true;
+				handshakeNanos = System.nanoTime() - handshakeStart;
+				flush();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return duration of the handshake, 0 until it is finished
+	 */
+	public long handshakeNanos() {
+		return handshakeNanos;
+	}
+
+	/**
+	 * Decrypt application data into dst
+	 *
+	 * @param dst buffer of at least applicationBufferSize() free bytes
+	 * @return number of bytes produced, 0 if more network data is needed, -1 once
+	 *         the peer closed
+	 * @throws IOException on a TLS or socket error
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (inboundDone) {
+			return -1;
+		}
+		while (true) {
+			if (netIn.position() > 0) {
+				netIn.flip();
+				SSLEngineResult result = engine.unwrap(netIn, dst);
+				netIn.compact();
+				runPostHandshake();
+
+				switch (result.getStatus()) {
+				case OK:
+					if (result.bytesProduced() > 0) {
+						return result.bytesProduced();
+					}
+					if (result.bytesConsumed() > 0) {
+						// Non application record such as a session ticket
+						continue;
+					}
+					break;
+				case CLOSED:
+					inboundDone = true;
+					return -1;
+				case BUFFER_OVERFLOW:
+					return 0;
+				case BUFFER_UNDERFLOW:
+					break;
+				}
+			}
+
+			int read = channel.read(netIn);
+			if (read < 0) {
+				inboundDone = true;
+				try {
+					engine.closeInbound();
+				} catch (SSLException e) {
+					// Peer closed without close_notify, nothing more to read anyway
+				}
+				return -1;
+			}
+			if (read == 0) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Encrypt as much of src as the outgoing buffer takes and try to send it
+	 *
+	 * @param src application data, left with the bytes not yet encrypted
+	 * @throws IOException on a TLS or socket error
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		while (src.hasRemaining() && wrap(src)) {
+		}
+	}
+
+	/**
+	 * Send the queued encrypted bytes
+	 *
+	 * @return true if nothing is left queued
+	 * @throws IOException on a socket error
+	 */
+	public boolean flush() throws IOException {
+		if (netOut.position() > 0) {
+			netOut.flip();
+			channel.write(netOut);
+			netOut.compact();
+		}
+		return netOut.position() == 0;
+	}
+
+	/**
+	 * @return true while encrypted bytes wait for the channel to be writable
+	 */
+	public boolean wantsWrite() {
+		return netOut.position() > 0;
+	}
+
+	/**
+	 * @return true once the peer closed its side
+	 */
+	public boolean isInboundDone() {
+		return inboundDone;
+	}
+
+	/**
+	 * Queue a close_notify and try to send it
+	 */
+	public void close() {
+		engine.closeOutbound();
+		try {
+			while (!engine.isOutboundDone() && wrap(EMPTY)) {
+			}
+			flush();
+		} catch (IOException e) {
+			// The peer is gone, the channel is closed by the caller
+		}
+	}
+
+	/**
+	 * Wrap src into the outgoing buffer, flushing it when full
+	 *
+	 * @return false if the outgoing buffer is full and the channel not writable
+	 */
+	private boolean wrap(ByteBuffer src) throws IOException {
+		SSLEngineResult result = engine.wrap(src, netOut);
+		switch (result.getStatus()) {
+		case BUFFER_OVERFLOW:
+			flush();
+			return !wantsWrite() && wrap(src);
+		case CLOSED:
+			flush();
+			return false;
+		default:
+			runPostHandshake();
+			return flush() || result.bytesProduced() > 0;
+		}
+	}
+
+	private boolean unwrapHandshake() throws IOException {
+		if (netIn.position() > 0) {
+			netIn.flip();
+			if (handshakeSink == null) {
+				handshakeSink = ByteBuffer.allocate(applicationBufferSize());
+			}
+			handshakeSink.clear();
+			SSLEngineResult result = engine.unwrap(netIn, handshakeSink);
+			netIn.compact();
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new EOFException("TLS connection closed during handshake");
+			}
+			if (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+				return true;
+			}
+		}
+		int read = channel.read(netIn);
+		if (read < 0) {
+			throw new EOFException("Peer closed during handshake");
+		}
+		return read > 0;
+	}
+
+	/**
+	 * Handle messages after the handshake, such as TLS 1.3 key updates
+	 */
+	private void runPostHandshake() throws IOException {
+		HandshakeStatus status = engine.getHandshakeStatus();
+		if (status == HandshakeStatus.NEED_TASK) {
+			runTasks();
+			status = engine.getHandshakeStatus();
+		}
+		if (status == HandshakeStatus.NEED_WRAP && handshakeDone) {
+			engine.wrap(EMPTY, netOut);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Man in the middle relay of a CONNECT request.
+ *
+ * The client TLS is terminated with the certificate minted for the host and
+ * a second TLS connection is opened to the host itself. Both legs are driven
+ * by an SSLEngine over non blocking channels, so the decrypted traffic can be
+ * relayed in both directions from a single thread.
+ *
+ * Upstream connections share one client SSLContext whose session cache lets
+ * repeated connections to a host resume their session, and the per host
+ * server contexts of the CertCache do the same for returning clients.
+ *
+ * The timeout of the connection is given the handshake phase by the caller,
+ * it moves to the idle phase once both legs are established and is pushed
+ * back whenever bytes move.
+ *
+ * The client is offered HTTP/2 with ALPN, see ProxyConfig.HTTP2. The upstream
+ * handshake then waits for the client one: a client choosing h2 is served by
+ * an Http2Connection on this thread, its requests going through the cache
+ * like proxied http:// ones, and the upstream leg is closed unused.
+ */
+public class TlsInterceptor {
+	private static SSLContext upstreamContext;
+
+	private final TlsEndpoint client;
+	private final TlsEndpoint server;
+	// Decrypted bytes waiting to be encrypted for the other leg
+	private final ByteBuffer toServer;
+	private final ByteBuffer toClient;
+	private final TimerWheel.Timeout timeout;
+	// Host and port of the CONNECT
+	private final String authority;
+
+	/**
+	 * Client SSLContext shared by every upstream connection so their sessions can
+	 * be resumed. Trust comes from the default JSSE trust store.
+	 *
+	 * @return SSLContext
+	 * @throws GeneralSecurityException if TLS is not available
+	 */
+	static synchronized SSLContext upstreamContext() throws GeneralSecurityException {
+		if (upstreamContext == null) {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			context.getClientSessionContext().setSessionCacheSize(ProxyConfig.TLS_SESSION_CACHE_SIZE);
+			context.getClientSessionContext().setSessionTimeout(ProxyConfig.TLS_SESSION_TIMEOUT);
+			upstreamContext = context;
+		}
+		return upstreamContext;
+	}
+
+	/**
+	 * Client engine checking the certificate of host, keyed by host and port so
+	 * the session cache can offer a previous session
+	 *
+	 * @param host remote host
+	 * @param port remote port
+	 * @return SSLEngine
+	 * @throws GeneralSecurityException if TLS is not available
+	 */
+	static SSLEngine upstreamEngine(String host, int port) throws GeneralSecurityException {
+		SSLEngine engine = upstreamContext().createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		SSLParameters parameters = engine.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(parameters);
+		return engine;
+	}
+
+	/**
+	 * @param clientChannel channel connected to the client, after the CONNECT
+	 *                      answer was sent
+	 * @param serverChannel channel connected to the host
+	 * @param hostContext   SSLContext presenting the certificate of the host
+	 * @param host          host requested by the client
+	 * @param port          port requested by the client
+	 * @param received      bytes of the client already read behind its request
+	 * @param timeout       timeout of the connection, in its handshake phase
+	 * @throws GeneralSecurityException if the upstream engine cannot be created
+	 */
+	public TlsInterceptor(SocketChannel clientChannel, SocketChannel serverChannel, SSLContext hostContext,
+			String host, int port, ByteBuffer received, TimerWheel.Timeout timeout) throws GeneralSecurityException {
+		this.timeout = timeout;
+		authority = port == 443 ? host : host + ":" + port;
+		SSLEngine clientEngine = hostContext.createSSLEngine();
+		clientEngine.setUseClientMode(false);
+		if (ProxyConfig.HTTP2) {
+			SSLParameters parameters = clientEngine.getSSLParameters();
+			parameters.setApplicationProtocols(new String[] { "h2", "http/1.1" });
+			clientEngine.setSSLParameters(parameters);
+		}
+		client = new TlsEndpoint(clientChannel, clientEngine);
+		client.received(received);
+		server = new TlsEndpoint(serverChannel, upstreamEngine(host, port));
+		toServer = emptyBuffer(client.applicationBufferSize());
+		toClient = emptyBuffer(server.applicationBufferSize());
+	}
+
+	private static ByteBuffer emptyBuffer(int capacity) {
+		ByteBuffer buffer = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Handshake both legs then relay until one side closes, or serve the
+	 * streams of a HTTP/2 client
+	 *
+	 * @return CLIENT or ORIGIN, the side which closed first
+	 * @throws IOException on a TLS or socket error
+	 */
+	public CloseReason run() throws IOException {
+		client.channel.configureBlocking(false);
+		server.channel.configureBlocking(false);
+		long start = System.currentTimeMillis();
+
+		try (Selector selector = Selector.open()) {
+			SelectionKey clientKey = client.channel.register(selector, SelectionKey.OP_READ);
+			SelectionKey serverKey = server.channel.register(selector, SelectionKey.OP_READ);
+			boolean established = false;
+
+			while (client.channel.isOpen() && server.channel.isOpen()) {
+				if (!established) {
+					established = handshake(start);
+					if (established) {
+						timeout.restart(CloseReason.IDLE_TIMEOUT, ProxyConfig.TIMEOUT_IDLE);
+						if (isHttp2()) {
+							server.channel.close();
+							return new Http2Connection(client, selector, clientKey, timeout, authority).run();
+						}
+					}
+				}
+				if (established) {
+					// Keep going while data moves, the engines may hold decrypted records
+					boolean moved = false;
+					while (pump(client, server, toServer) | pump(server, client, toClient)) {
+						moved = true;
+					}
+					if (moved) {
+						timeout.touch();
+					}
+					if (finished(client, server, toServer)) {
+						return CloseReason.CLIENT;
+					}
+					if (finished(server, client, toClient)) {
+						return CloseReason.ORIGIN;
+					}
+				}
+
+				clientKey.interestOps(interest(client, established ? toServer : null));
+				serverKey.interestOps(interest(server, established ? toClient : null));
+				selector.select(1000);
+				selector.selectedKeys().clear();
+			}
+			// Closed under the relay, by a timeout
+			return CloseReason.CLIENT;
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * Progress both handshakes, recording their cost once both are done
+	 */
+	private boolean handshake(long start) throws IOException {
+		boolean clientDone;
+		boolean serverDone;
+		try {
+			client.flush();
+			server.flush();
+			clientDone = client.handshake();
+			// With HTTP/2 offered, the upstream leg is only needed once the client chose HTTP/1.1
+			serverDone = (clientDone || !ProxyConfig.HTTP2) && (isHttp2() || server.handshake());
+		} catch (IOException e) {
+			(client.handshakeNanos() == 0 ? TlsStats.CLIENT : TlsStats.UPSTREAM).failures.increment();
+			throw e;
+		}
+		if (clientDone && serverDone) {
+			TlsStats.CLIENT.record(client.handshakeNanos(), isResumed(client, start));
+			if (!isHttp2()) {
+				TlsStats.UPSTREAM.record(server.handshakeNanos(), isResumed(server, start));
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true once the client chose h2 with ALPN
+	 */
+	private boolean isHttp2() {
+		return "h2".equals(client.engine.getApplicationProtocol());
+	}
+
+	/**
+	 * A resumed session was created by an earlier handshake
+	 */
+	private static boolean isResumed(TlsEndpoint endpoint, long start) {
+		return endpoint.engine.getSession().getCreationTime() < start;
+	}
+
+	/**
+	 * Move decrypted data from one leg to the other
+	 *
+	 * @return true if any byte moved
+	 */
+	private static boolean pump(TlsEndpoint from, TlsEndpoint to, ByteBuffer pending) throws IOException {
+		to.flush();
+		int before = pending.remaining();
+		if (before > 0) {
+			to.write(pending);
+			// Stop reading this side until the other one drains
+			return pending.remaining() != before;
+		}
+
+		pending.clear();
+		int read = from.read(pending);
+		pending.flip();
+		if (read > 0) {
+			to.write(pending);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A direction is finished once its source closed and everything was sent
+	 */
+	private static boolean finished(TlsEndpoint from, TlsEndpoint to, ByteBuffer pending) throws IOException {
+		return from.isInboundDone() && !pending.hasRemaining() && to.flush();
+	}
+
+	private static int interest(TlsEndpoint endpoint, ByteBuffer pending) {
+		int ops = 0;
+		if (pending == null || !pending.hasRemaining()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (endpoint.wantsWrite()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		return ops;
+	}
+}
@@ -0,0 +1,58 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handshake counters of the intercepted connections, per leg.
+ * A resumed handshake skips the certificate and key exchange, so the ratio
+ * of resumed handshakes is the share of handshake CPU saved.
+ */
+public final class TlsStats {
+	static final Leg CLIENT = new Leg("client");
+	static final Leg UPSTREAM = new Leg("upstream");
+
+	private TlsStats() {
+	}
+
+	/**
+	 * Handshake counters of one leg
+	 */
+	static class Leg {
+		final String name;
+		final LongAdder handshakes = new LongAdder();
+		final LongAdder resumed = new LongAdder();
+		final LongAdder failures = new LongAdder();
+		final LongAdder fullNanos = new LongAdder();
+		final LongAdder resumedNanos = new LongAdder();
+
+		Leg(String name) {
+			this.name = name;
+		}
+
+		void record(long nanos, boolean resumption) {
+			handshakes.increment();
+			if (resumption) {
+				resumed.increment();
+				resumedNanos.add(nanos);
+			} else {
+				fullNanos.add(nanos);
+			}
+		}
+
+		@Override
+		public String toString() {
+			long total = handshakes.sum();
+			long resumedCount = resumed.sum();
+			long full = total - resumedCount;
+			return String.format("%-8s handshakes %d, resumed %d (%.1f%%), failed %d, avg full %.2f ms, avg resumed %.2f ms",
+					name, total, resumedCount, total == 0 ? 0.0 : 100.0 * resumedCount / total, failures.sum(),
+					full == 0 ? 0.0 : fullNanos.sum() / 1e6 / full,
+					resumedCount == 0 ? 0.0 : resumedNanos.sum() / 1e6 / resumedCount);
+		}
+	}
+
+	/**
+	 * @return one line per leg
+	 */
+	static String report() {
+		return CLIENT + "\n" + UPSTREAM;
+	}
+}
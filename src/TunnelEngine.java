@@ -0,0 +1,401 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Relays established CONNECT tunnels on a small set of selector threads.
+ *
+ * Each tunnel is a pair of non blocking SocketChannels. Both directions of
+ * every tunnel are served by the event loop the tunnel was registered on, so
+ * an idle tunnel costs no thread at all.
+ * When the receiving side cannot absorb the data fast enough the read
+ * interest of the sending side is dropped until the pending bytes are
+ * written, which propagates the backpressure to the TCP window of the sender.
+ *
+ * Relay buffers come from the direct BufferPool when bytes arrive and go back
+ * once they are written, so idle tunnels hold none. While a write is pending
+ * the sender is still read into the free part of the buffer, and the bytes
+ * leave together with the next write. The size of the next buffer follows
+ * how full the last one got, bulk transfers move to larger buffers and fewer
+ * system calls per megabyte.
+ *
+ * A tunnel moving no byte for the idle timeout is closed, as is one reaching
+ * the end of its lifetime. Both timeouts are kept on the TimerWheel, which
+ * hands the tunnel back to its loop to close it there.
+ */
+public class TunnelEngine {
+	private static TunnelEngine engine;
+
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * Return the shared engine, starting its event loops on first use
+	 *
+	 * @return TunnelEngine
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public static synchronized TunnelEngine get() throws IOException {
+		if (engine == null) {
+			engine = new TunnelEngine(ProxyConfig.TUNNEL_LOOPS);
+		}
+		return engine;
+	}
+
+	/**
+	 * Stop the shared engine if it was started, closing all of its tunnels
+	 */
+	public static synchronized void shutdown() {
+		if (engine != null) {
+			for (EventLoop loop : engine.loops) {
+				loop.stop();
+			}
+			engine = null;
+		}
+	}
+
+	private TunnelEngine(int loopCount) throws IOException {
+		loops = new EventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++) {
+			loops[i] = new EventLoop(i);
+			loops[i].thread.start();
+		}
+	}
+
+	/**
+	 * Hand an established tunnel over to one of the event loops.
+	 * From this point on the engine owns both channels and closes them.
+	 *
+	 * @param client channel connected to the client
+	 * @param server channel connected to the remote server
+	 * @throws IOException if the channels cannot be switched to non blocking
+	 */
+	public void register(SocketChannel client, SocketChannel server) throws IOException {
+		register(client, server, ProxyConfig.TIMEOUT_LIFETIME, -1);
+	}
+
+	/**
+	 * Hand an established tunnel over to an event loop, closing it after
+	 * lifetime milliseconds
+	 *
+	 * @param client   channel connected to the client
+	 * @param server   channel connected to the remote server
+	 * @param lifetime milliseconds left to the connection, 0 for no limit
+	 * @param index    loop of the acceptor which took the connection, negative
+	 *                 for the next loop in turn
+	 * @throws IOException if the channels cannot be switched to non blocking
+	 */
+	public void register(SocketChannel client, SocketChannel server, long lifetime, int index) throws IOException {
+		client.configureBlocking(false);
+		server.configureBlocking(false);
+		TunnelStats.tunnels.increment();
+		TunnelStats.open.incrementAndGet();
+		EventLoop loop = loops[Math.floorMod(index < 0 ? nextLoop.getAndIncrement() : index, loops.length)];
+		loop.registered.increment();
+		loop.pending.add(new Tunnel(loop, client, server, lifetime));
+		loop.selector.wakeup();
+	}
+
+	/**
+	 * Number of tunnels currently open on all the loops
+	 *
+	 * @return int
+	 */
+	public int activeTunnels() {
+		int count = 0;
+		for (EventLoop loop : loops) {
+			count += loop.active;
+		}
+		return count;
+	}
+
+	/**
+	 * @return one line per event loop with its open and registered tunnels, or
+	 *         a note that the engine is not started
+	 */
+	static synchronized String loopReport() {
+		if (engine == null) {
+			return "tunnel loops not started";
+		}
+		StringBuilder text = new StringBuilder();
+		for (EventLoop loop : engine.loops) {
+			text.append(text.length() == 0 ? "" : "\n").append(String.format("%s %d open, %d registered",
+					loop.thread.getName(), loop.active, loop.registered.sum()));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Selector thread serving every tunnel registered on it
+	 */
+	class EventLoop implements Runnable {
+		final Selector selector;
+		final LongAdder registered = new LongAdder();
+		final Queue<Tunnel> pending = new ConcurrentLinkedQueue<>();
+		// Tunnels whose timeout fired, closed by the loop
+		final Queue<Tunnel> expired = new ConcurrentLinkedQueue<>();
+		final Thread thread;
+		volatile boolean running = true;
+		// Tunnels attached and not closed yet, written by the loop thread only
+		volatile int active;
+
+		EventLoop(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "tunnel-loop-" + index);
+			thread.setDaemon(true);
+			Metrics.gauge("proxy_tunnel_loop_" + index + "_open", "Tunnels open on event loop " + index, "gauge",
+					() -> active);
+		}
+
+		void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+
+				Tunnel tunnel;
+				while ((tunnel = pending.poll()) != null) {
+					tunnel.attach(selector);
+				}
+				while ((tunnel = expired.poll()) != null) {
+					tunnel.close(tunnel.idle.isExpired() ? CloseReason.IDLE_TIMEOUT : CloseReason.LIFETIME_TIMEOUT);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					((Tunnel) key.attachment()).handle(key);
+				}
+			}
+
+			// Close every tunnel still open on this loop
+			for (SelectionKey key : selector.keys()) {
+				((Tunnel) key.attachment()).close(null);
+			}
+			Tunnel tunnel;
+			while ((tunnel = pending.poll()) != null) {
+				tunnel.close(null);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * One direction of a tunnel: bytes read from src are buffered and written to
+	 * dst
+	 */
+	static class Direction {
+		final SocketChannel src;
+		final SocketChannel dst;
+		// Taken from the pool while bytes are in flight, null otherwise
+		ByteBuffer buffer;
+		// Size of the next buffer taken, and most bytes the current one held
+		int size = ProxyConfig.TUNNEL_BUFFER_SIZE;
+		int peak;
+		boolean eof;
+		boolean done;
+
+		Direction(SocketChannel src, SocketChannel dst) {
+			this.src = src;
+			this.dst = dst;
+		}
+
+		/**
+		 * @return true while bytes read from src are still waiting to be written
+		 */
+		boolean hasPending() {
+			return buffer != null && buffer.position() > 0;
+		}
+
+		/**
+		 * @return true if a read is worth a system call: no buffer yet, or at least
+		 *         a quarter of it free behind the pending bytes
+		 */
+		boolean hasRoom() {
+			return buffer == null || buffer.remaining() >= buffer.capacity() / 4;
+		}
+
+		void read() throws IOException {
+			if (buffer == null) {
+				buffer = BufferPool.DIRECT.acquire(size);
+			}
+			TunnelStats.reads.increment();
+			if (src.read(buffer) < 0) {
+				eof = true;
+			}
+			peak = Math.max(peak, buffer.position());
+			flush();
+		}
+
+		void flush() throws IOException {
+			if (hasPending()) {
+				buffer.flip();
+				TunnelStats.writes.increment();
+				TunnelStats.bytes.add(dst.write(buffer));
+				buffer.compact();
+			}
+			if (buffer != null && buffer.position() == 0) {
+				// Drained, the buffer goes back until more bytes arrive
+				size = BufferPool.nextSize(buffer.capacity(), peak);
+				release();
+			}
+			if (eof && !hasPending() && !done) {
+				// Forward the half close so the other side sees the end of stream
+				dst.shutdownOutput();
+				done = true;
+			}
+		}
+
+		void release() {
+			if (buffer != null) {
+				BufferPool.DIRECT.release(buffer);
+				buffer = null;
+				peak = 0;
+			}
+		}
+	}
+
+	/**
+	 * Pair of channels relayed in both directions
+	 */
+	static class Tunnel {
+		final SocketChannel client;
+		final SocketChannel server;
+		final Direction upstream;
+		final Direction downstream;
+		final EventLoop loop;
+		final TimerWheel.Timeout idle;
+		final TimerWheel.Timeout lifetime;
+		SelectionKey clientKey;
+		SelectionKey serverKey;
+		// Side whose stream ended first
+		CloseReason endedBy;
+		boolean closed;
+
+		Tunnel(EventLoop loop, SocketChannel client, SocketChannel server, long lifetime) {
+			this.loop = loop;
+			this.client = client;
+			this.server = server;
+			upstream = new Direction(client, server);
+			downstream = new Direction(server, client);
+			Runnable expire = () -> {
+				loop.expired.add(this);
+				loop.selector.wakeup();
+			};
+			idle = TimerWheel.get().schedule(CloseReason.IDLE_TIMEOUT, ProxyConfig.TIMEOUT_IDLE, expire);
+			this.lifetime = lifetime > 0 ? TimerWheel.get().schedule(CloseReason.LIFETIME_TIMEOUT, lifetime, expire)
+					: null;
+		}
+
+		void attach(Selector selector) {
+			try {
+				clientKey = client.register(selector, SelectionKey.OP_READ, this);
+				serverKey = server.register(selector, SelectionKey.OP_READ, this);
+				loop.active++;
+			} catch (IOException e) {
+				close(CloseReason.ERROR);
+			}
+		}
+
+		void handle(SelectionKey key) {
+			try {
+				Direction in = key == clientKey ? upstream : downstream;
+				Direction out = key == clientKey ? downstream : upstream;
+				if (key.isWritable()) {
+					out.flush();
+				}
+				if (key.isReadable()) {
+					idle.touch();
+					in.read();
+					if (in.eof && endedBy == null) {
+						endedBy = in == upstream ? CloseReason.CLIENT : CloseReason.ORIGIN;
+					}
+				}
+
+				if (upstream.done && downstream.done) {
+					close(endedBy);
+				} else {
+					updateInterest();
+				}
+			} catch (IOException | CancelledKeyException e) {
+				close(CloseReason.ERROR);
+			}
+		}
+
+		/**
+		 * Read from a side while its buffer has room, write to a side only when
+		 * data is pending for it
+		 */
+		private void updateInterest() {
+			clientKey.interestOps(interest(upstream, downstream));
+			serverKey.interestOps(interest(downstream, upstream));
+		}
+
+		private static int interest(Direction from, Direction to) {
+			int ops = 0;
+			if (!from.eof && from.hasRoom()) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (to.hasPending()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			return ops;
+		}
+
+		/**
+		 * @param reason counted unless null, when the engine shuts down
+		 */
+		void close(CloseReason reason) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (serverKey != null) {
+				loop.active--;
+			}
+			if (reason != null) {
+				reason.count();
+			}
+			idle.cancel();
+			if (lifetime != null) {
+				lifetime.cancel();
+			}
+			upstream.release();
+			downstream.release();
+			TunnelStats.open.decrementAndGet();
+			try {
+				client.close();
+			} catch (IOException e) {
+			}
+			if (Proxy.connections != null) {
+				Proxy.connections.unregister(client.socket());
+			}
+			try {
+				server.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the CONNECT relays, blocking and nio alike.
+ * Reads and writes count the system calls made to move the bytes, their
+ * ratio to the megabytes relayed shows how well writes are coalesced, and the
+ * buffers in use per open tunnel the memory a tunnel costs.
+ */
+public final class TunnelStats {
+	static final LongAdder tunnels = new LongAdder();
+	static final AtomicInteger open = new AtomicInteger();
+	static final LongAdder bytes = new LongAdder();
+	static final LongAdder reads = new LongAdder();
+	static final LongAdder writes = new LongAdder();
+
+	private TunnelStats() {
+	}
+
+	/**
+	 * @return one line of relay counters, then one per buffer pool
+	 */
+	static String report() {
+		int active = open.get();
+		double megabytes = bytes.sum() / (1024.0 * 1024.0);
+		long buffers = BufferPool.DIRECT.inUseBytes() + BufferPool.HEAP.inUseBytes();
+		return String.format(
+				"tunnels %d open of %d, relayed %.1f MB, %.0f reads and %.0f writes per MB, %.1f KB of buffers per open tunnel%n%s%n%s",
+				active, tunnels.sum(), megabytes, megabytes == 0 ? 0.0 : reads.sum() / megabytes,
+				megabytes == 0 ? 0.0 : writes.sum() / megabytes, active == 0 ? 0.0 : buffers / 1024.0 / active,
+				BufferPool.DIRECT.report(), BufferPool.HEAP.report());
+	}
+}
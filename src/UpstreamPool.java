@@ -0,0 +1,292 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Keep-alive connections to origin servers, pooled per scheme, host and port.
+ *
+ * A connection released after a complete response goes back to the idle
+ * list of its origin and the next request to that origin reuses it instead
+ * of paying TCP and TLS setup again. Idle connections are checked before
+ * reuse and closed once idle for too long.
+ * HTTPS connections come from the shared upstream SSLContext, so even a new
+ * connection usually resumes the TLS session of a previous one.
+ * New connections resolve through the DnsCache and race the addresses of the
+ * origin with HappyEyeballs.
+ */
+public class UpstreamPool {
+	private static UpstreamPool pool;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder stale = new LongAdder();
+	final LongAdder evicted = new LongAdder();
+	final LongAdder tunnels = new LongAdder();
+
+	private final Map<String, HostPool> hosts = new ConcurrentHashMap<>();
+	private final int maxIdlePerHost;
+	private final int maxPerHost;
+	private final long idleTimeoutMillis;
+	private final ScheduledExecutorService evictor;
+
+	/**
+	 * Return the shared pool, configured from ProxyConfig
+	 *
+	 * @return UpstreamPool
+	 */
+	public static synchronized UpstreamPool get() {
+		if (pool == null) {
+			pool = new UpstreamPool(ProxyConfig.POOL_MAX_IDLE_PER_HOST, ProxyConfig.POOL_MAX_PER_HOST,
+					ProxyConfig.POOL_IDLE_TIMEOUT);
+		}
+		return pool;
+	}
+
+	/**
+	 * @param maxIdlePerHost    idle connections kept per origin
+	 * @param maxPerHost        connections open at once per origin
+	 * @param idleTimeoutMillis how long an idle connection is kept
+	 */
+	public UpstreamPool(int maxIdlePerHost, int maxPerHost, long idleTimeoutMillis) {
+		this.maxIdlePerHost = maxIdlePerHost;
+		this.maxPerHost = maxPerHost;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "upstream-pool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1000, idleTimeoutMillis / 4);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Take an idle connection to the origin, or open a new one
+	 *
+	 * @param secure true for https
+	 * @param host   origin host
+	 * @param port   origin port
+	 * @return UpstreamConnection to release once the response is read
+	 * @throws IOException if no connection could be made in time
+	 */
+	public UpstreamConnection acquire(boolean secure, String host, int port) throws IOException {
+		String key = (secure ? "https://" : "http://") + host + ":" + port;
+		HostPool hostPool = hosts.computeIfAbsent(key, k -> new HostPool(maxPerHost));
+
+		// Most recently used first, it is the least likely to have been closed
+		UpstreamConnection connection;
+		while ((connection = hostPool.idle.pollFirst()) != null) {
+			if (connection.isReusable()) {
+				hits.increment();
+				return connection;
+			}
+			stale.increment();
+			discard(connection);
+		}
+
+		try {
+			if (!hostPool.slots.tryAcquire(ProxyConfig.UPSTREAM_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				throw new SocketTimeoutException("No free connection to " + key);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection to " + key, e);
+		}
+		try {
+			connection = new UpstreamConnection(hostPool, secure, host, port);
+		} catch (IOException e) {
+			hostPool.slots.release();
+			throw e;
+		}
+		misses.increment();
+		return connection;
+	}
+
+	/**
+	 * Give a connection back once its response has been fully read
+	 *
+	 * @param connection connection from acquire
+	 * @param reusable   false if the connection must be closed
+	 */
+	public void release(UpstreamConnection connection, boolean reusable) {
+		HostPool hostPool = connection.owner;
+		if (reusable && hostPool.idle.size() < maxIdlePerHost) {
+			connection.idleSince = System.currentTimeMillis();
+			hostPool.idle.offerFirst(connection);
+		} else {
+			discard(connection);
+		}
+	}
+
+	/**
+	 * Open a connection for a CONNECT tunnel.
+	 * Tunnels carry opaque bytes and are closed with the tunnel, so they are
+	 * never returned to the pool.
+	 *
+	 * @param host origin host
+	 * @param port origin port
+	 * @return SocketChannel in blocking mode
+	 * @throws IOException if the connection fails
+	 */
+	public SocketChannel openTunnel(String host, int port) throws IOException {
+		SocketChannel channel = HappyEyeballs.connect(host, port, ProxyConfig.UPSTREAM_CONNECT_TIMEOUT);
+		tunnels.increment();
+		return channel;
+	}
+
+	private void discard(UpstreamConnection connection) {
+		connection.closeQuietly();
+		connection.owner.slots.release();
+	}
+
+	/**
+	 * Close connections idle for longer than the idle timeout
+	 */
+	private void evictIdle() {
+		long oldest = System.currentTimeMillis() - idleTimeoutMillis;
+		for (HostPool hostPool : hosts.values()) {
+			Iterator<UpstreamConnection> it = hostPool.idle.descendingIterator();
+			while (it.hasNext()) {
+				UpstreamConnection connection = it.next();
+				if (connection.idleSince < oldest && hostPool.idle.remove(connection)) {
+					evicted.increment();
+					discard(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return one line summary of the pool counters
+	 */
+	public String report() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		int idle = 0;
+		for (HostPool hostPool : hosts.values()) {
+			idle += hostPool.idle.size();
+		}
+		return String.format("pool hits %d, misses %d (%.1f%% reused), stale %d, evicted %d, idle %d, tunnels %d",
+				hitCount, misses.sum(), total == 0 ? 0.0 : 100.0 * hitCount / total, stale.sum(), evicted.sum(),
+				idle, tunnels.sum());
+	}
+
+	/**
+	 * Connections of one origin
+	 */
+	static class HostPool {
+		final ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<>();
+		final Semaphore slots;
+
+		HostPool(int maxPerHost) {
+			slots = new Semaphore(maxPerHost);
+		}
+	}
+
+	/**
+	 * One connection to an origin, plain or TLS, with its buffered streams.
+	 * The streams are kept for the lifetime of the connection since they may
+	 * hold bytes belonging to it.
+	 */
+	static class UpstreamConnection {
+		final HostPool owner;
+		final String host;
+		final int port;
+		final SocketChannel channel;
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		volatile long idleSince;
+
+		UpstreamConnection(HostPool owner, boolean secure, String host, int port) throws IOException {
+			this.owner = owner;
+			this.host = host;
+			this.port = port;
+			channel = HappyEyeballs.connect(host, port, ProxyConfig.UPSTREAM_CONNECT_TIMEOUT);
+			try {
+				channel.socket().setSoTimeout(ProxyConfig.UPSTREAM_READ_TIMEOUT);
+				channel.socket().setTcpNoDelay(true);
+				socket = secure ? startTls(channel.socket(), host, port) : channel.socket();
+				in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+				out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		private static SSLSocket startTls(Socket raw, String host, int port) throws IOException {
+			try {
+				SSLSocket ssl = (SSLSocket) TlsInterceptor.upstreamContext().getSocketFactory()
+						.createSocket(raw, host, port, true);
+				SSLParameters parameters = ssl.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(parameters);
+				ssl.setSoTimeout(ProxyConfig.UPSTREAM_READ_TIMEOUT);
+
+				long start = System.currentTimeMillis();
+				long startNanos = System.nanoTime();
+				try {
+					ssl.startHandshake();
+				} catch (IOException e) {
+					TlsStats.UPSTREAM.failures.increment();
+					throw e;
+				}
+				TlsStats.UPSTREAM.record(System.nanoTime() - startNanos, ssl.getSession().getCreationTime() < start);
+				return ssl;
+			} catch (GeneralSecurityException e) {
+				throw new IOException("TLS not available", e);
+			}
+		}
+
+		/**
+		 * Health check before reuse: an idle origin should send nothing, any
+		 * readable byte or end of stream means it closed or broke the connection
+		 */
+		boolean isReusable() {
+			if (!channel.isOpen() || socket.isClosed()) {
+				return false;
+			}
+			try {
+				if (in.available() > 0) {
+					return false;
+				}
+				channel.configureBlocking(false);
+				try {
+					return channel.read(ByteBuffer.allocate(1)) == 0;
+				} finally {
+					channel.configureBlocking(true);
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		void closeQuietly() {
+			try {
+				socket.close();
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}